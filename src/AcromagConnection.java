@@ -0,0 +1,1146 @@
+import net.wimpi.modbus.ModbusException;
+import net.wimpi.modbus.ModbusIOException;
+import net.wimpi.modbus.ModbusSlaveException;
+import net.wimpi.modbus.msg.*;
+import net.wimpi.modbus.procimg.InputRegister;
+import net.wimpi.modbus.procimg.Register;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
+
+
+/**
+ * Class that owns the one and only Modbus/TCP connection to the Acromag. If the link drops, it keeps trying to
+ * reconnect (backing off exponentially) while everyone else is told immediately that we're not connected instead
+ * of being made to wait for it.
+ *
+ * The socket is non-blocking and served by the shared ModbusReactor thread. Requests can be submitted from any
+ * thread and are sent straight away, each with its own transaction ID, so any number of them can be outstanding
+ * at once; responses are matched back to their requests by that ID. Futures returned by this class are completed
+ * on the reactor thread, so anything chained onto them must not block
+ *
+ * Requests that are made every poll can instead be sent as an Exchange, whose frames and responses live in buffers
+ * that are reused from one poll to the next, so that polling doesn't allocate anything at all
+ */
+class AcromagConnection {
+
+    // Delays (ms) between reconnection attempts, which double after every failure. The delay only goes back to the
+    // minimum once a connection has answered a request, so an Acromag (or proxy) that accepts connections and then
+    // drops them is backed off from like one that refuses them
+    private final int MIN_RECONNECT_DELAY = 250;
+    private final int MAX_RECONNECT_DELAY = 30000;
+
+    // Fraction of the delay that is randomized so that several clients don't retry in lock step
+    private final double RECONNECT_JITTER = 0.2;
+
+    // Largest Modbus/TCP frame (7 byte header + 253 byte PDU)
+    private static final int MAX_FRAME_LENGTH = 260;
+
+    // Modbus function codes sent by an Exchange
+    private static final int READ_INPUT_REGISTERS = 0x04;
+    private static final int WRITE_MULTIPLE_REGISTERS = 0x10;
+
+    private volatile String ipAddress;
+    private volatile int port;
+    private final int timeout;
+
+    private volatile boolean connected = false;
+    private volatile boolean running = false;
+    private volatile long generation = 0;
+
+    private final AtomicInteger transactionCounter = new AtomicInteger();
+    private final ModbusStatistics statistics = new ModbusStatistics();
+    private final ModbusReactor reactor = ModbusReactor.getInstance();
+    private final Random random = new Random();
+
+    // Everything below is only touched on the reactor thread
+    private SocketChannel channel;
+    private SelectionKey key;
+    private final ByteBuffer inbound = ByteBuffer.allocate(4 * MAX_FRAME_LENGTH);
+    private final ArrayDeque<ByteBuffer> outbound = new ArrayDeque<ByteBuffer>();
+    private final Map<Integer, Transaction> pending = new HashMap<Integer, Transaction>();
+    private ModbusReactor.Timer connectTimer;
+    private ModbusReactor.Timer reconnectTimer;
+    private int reconnectDelay = MIN_RECONNECT_DELAY;
+    private int connectAttempt = 0;         // Lets a lookup that's no longer wanted be ignored when it finishes
+    private boolean resolving = false;
+    private Thread resolver;                // Thread doing the most recent lookup, which may outlive its attempt
+    private ModbusReactor.Timer resolveTimer;
+
+    // Exchange handed over to the reactor but not yet sent, and the task that sends it
+    private final AtomicReference<Exchange> submittedExchange = new AtomicReference<Exchange>();
+    private final ModbusReactor.ReusableTask sendExchangeTask = new ModbusReactor.ReusableTask() {
+        @Override
+        public void run() {
+            sendExchange();
+        }
+    };
+
+    // Exchange that has been sent and is waiting for its responses, only touched on the reactor thread
+    private Exchange activeExchange;
+
+    private final ModbusReactor.Handler handler = new ModbusReactor.Handler() {
+        @Override
+        public void handleReady(SelectionKey key) {
+            handleChannelReady(key);
+        }
+    };
+
+
+    /**
+     * Request that has been sent and is waiting for its response
+     */
+    private static class Transaction {
+        final ModbusRequest request;
+        final CompletableFuture<ModbusResponse> future;
+        final long submitTime;      // ns
+        long sendTime;              // ns
+        ModbusReactor.Timer timer;
+
+        Transaction(ModbusRequest request, CompletableFuture<ModbusResponse> future, long submitTime){
+            this.request    = request;
+            this.future     = future;
+            this.submitTime = submitTime;
+        }
+    }
+
+
+    /**
+     * Requests that are sent back to back and waited on together, like executeAll(), but encoded straight into a
+     * buffer that is kept along with a buffer for each response. An exchange is meant to be filled and executed
+     * over and over again by one thread, and doing so doesn't allocate unless something goes wrong. A connection
+     * only has one exchange in flight at a time
+     */
+    static final class Exchange {
+
+        // Offsets of the fields of a Modbus/TCP frame
+        private static final int TRANSACTION_ID = 0;
+        private static final int LENGTH = 4;
+        private static final int FUNCTION_CODE = 7;
+        private static final int DATA = 8;
+
+        // No exchange has been sent yet / the exchange is waiting for its responses
+        private static final int IDLE = 0;
+        private static final int IN_FLIGHT = 1;
+
+        private final byte[] requestBytes;
+        private final ByteBuffer requestBuffer;
+        private final int[] requestOffsets;
+        private final int[] functionCodes;
+        private final int[] references;
+        private final int[] wordCounts;
+        private final int[] transactionIDs;
+        private int numRequests;
+
+        private final byte[][] responses;
+        private final int[] responseLengths;
+        private int numResponses;
+
+        private volatile int state = IDLE;
+        private volatile boolean abandoned;
+        private ModbusIOException failure;
+        private Thread waiter;
+        private long expectedGeneration;
+        private long submitTime;        // ns
+        private long sendTime;          // ns
+
+
+        /**
+         * Basic constructor
+         * @param maxRequests Most requests the exchange will ever hold
+         */
+        Exchange(int maxRequests){
+            requestBytes    = new byte[maxRequests * MAX_FRAME_LENGTH];
+            requestBuffer   = ByteBuffer.wrap(requestBytes);
+            requestOffsets  = new int[maxRequests];
+            functionCodes   = new int[maxRequests];
+            references      = new int[maxRequests];
+            wordCounts      = new int[maxRequests];
+            transactionIDs  = new int[maxRequests];
+            responses       = new byte[maxRequests][MAX_FRAME_LENGTH];
+            responseLengths = new int[maxRequests];
+        }
+
+
+        /**
+         * Remove every request, so that the exchange can be filled again
+         */
+        void clear(){
+            numRequests = 0;
+        }
+
+
+        /**
+         * Add a request for a block of input registers
+         * @param reference Address of the first register
+         * @param count Number of registers
+         * @return Index of the request, which is also the index of its response
+         */
+        int addReadInputRegisters(int reference, int count){
+            int offset = startRequest(READ_INPUT_REGISTERS, reference, count, 4);
+            putShort(offset + DATA, reference);
+            putShort(offset + DATA + 2, count);
+            return numRequests++;
+        }
+
+
+        /**
+         * Add a request that writes a block of holding registers
+         * @param reference Address of the first register
+         * @param values Array holding the values to write
+         * @param first Index of the first value to write
+         * @param count Number of values to write
+         * @return Index of the request, which is also the index of its response
+         */
+        int addWriteMultipleRegisters(int reference, int[] values, int first, int count){
+            int offset = startRequest(WRITE_MULTIPLE_REGISTERS, reference, count, 5 + 2 * count);
+            putShort(offset + DATA, reference);
+            putShort(offset + DATA + 2, count);
+            requestBytes[offset + DATA + 4] = (byte) (2 * count);
+            for (int i = 0; i < count; i++) {
+                putShort(offset + DATA + 5 + 2 * i, values[first + i]);
+            }
+            return numRequests++;
+        }
+
+
+        /**
+         * Check whether the Acromag answered a request with an exception
+         * @param index Index of the request
+         * @return true if the response is an exception response
+         */
+        boolean isException(int index){
+            return (responses[index][FUNCTION_CODE] & 0x80) != 0;
+        }
+
+
+        /**
+         * Return a register of the response to a read request
+         * @param index Index of the request
+         * @param register Index of the register within the block that was read
+         * @return Value of the register, as a signed 16 bit value
+         */
+        int getRegister(int index, int register){
+            byte[] response = responses[index];
+            return (short) (((response[DATA + 1 + 2 * register] & 0xFF) << 8) | (response[DATA + 2 + 2 * register] & 0xFF));
+        }
+
+
+        /**
+         * Convenience function for writing the header of a new request
+         * @param functionCode Function code of the request
+         * @param reference Address the request starts at
+         * @param wordCount Number of registers the request reads or writes
+         * @param dataLength Number of bytes of data after the function code
+         * @return Offset of the request within the buffer
+         */
+        private int startRequest(int functionCode, int reference, int wordCount, int dataLength){
+            int offset = (numRequests == 0) ? 0 : requestOffsets[numRequests - 1] + 6 + getShort(requestBytes, requestOffsets[numRequests - 1] + LENGTH);
+
+            requestOffsets[numRequests] = offset;
+            functionCodes[numRequests]  = functionCode;
+            references[numRequests]     = reference;
+            wordCounts[numRequests]     = wordCount;
+
+            // The transaction ID is filled in when the request is sent. The protocol ID and unit ID are always 0
+            putShort(offset + TRANSACTION_ID, 0);
+            putShort(offset + 2, 0);
+            putShort(offset + LENGTH, 2 + dataLength);
+            requestBytes[offset + 6] = 0;
+            requestBytes[offset + FUNCTION_CODE] = (byte) functionCode;
+            return offset;
+        }
+
+
+        /**
+         * Convenience function for finding which request a response belongs to
+         * @param transactionID Transaction ID of the response
+         * @return Index of the request, -1 if it isn't one of ours or has already been answered
+         */
+        private int indexOf(int transactionID){
+            for (int i = 0; i < numRequests; i++) {
+                if (transactionIDs[i] == transactionID && responseLengths[i] == 0) return i;
+            }
+            return -1;
+        }
+
+
+        /**
+         * Convenience function for checking that a response is the kind of answer its request expects
+         * @param index Index of the request
+         * @return true if the response can be read
+         */
+        private boolean isWellFormed(int index){
+            byte[] response = responses[index];
+            int functionCode = response[FUNCTION_CODE] & 0xFF;
+
+            if (functionCode == (functionCodes[index] | 0x80)) return responseLengths[index] >= DATA + 1;
+            if (functionCode != functionCodes[index]) return false;
+            if (functionCode == READ_INPUT_REGISTERS) {
+                return responseLengths[index] >= DATA + 1 + 2 * wordCounts[index] && (response[DATA] & 0xFF) == 2 * wordCounts[index];
+            }
+            return true;
+        }
+
+
+        private void putShort(int offset, int value){
+            requestBytes[offset]     = (byte) (value >> 8);
+            requestBytes[offset + 1] = (byte) value;
+        }
+
+        private static int getShort(byte[] bytes, int offset){
+            return ((bytes[offset] & 0xFF) << 8) | (bytes[offset + 1] & 0xFF);
+        }
+    }
+
+
+    /**
+     * Basic constructor, the connection isn't attempted until start() is called
+     * @param ipAddress IP address of the Acromag
+     * @param port Modbus port to use in communications
+     * @param timeout Time (ms) before we give up on connecting or on a response
+     */
+    AcromagConnection(String ipAddress, int port, int timeout){
+        this.ipAddress = ipAddress;
+        this.port      = port;
+        this.timeout   = timeout;
+    }
+
+
+    /**
+     * Start establishing (and re-establishing) the connection in the background
+     */
+    synchronized void start(){
+        if (running) return;
+        running = true;
+
+        reactor.execute(new Runnable() {
+            @Override
+            public void run() {
+                connect();
+            }
+        });
+    }
+
+
+    /**
+     * Close the connection for good
+     */
+    void close(){
+        running = false;
+
+        reactor.execute(new Runnable() {
+            @Override
+            public void run() {
+                cancelReconnect();
+                cancelResolve();
+                closeChannel(new ModbusIOException("Connection to " + ipAddress + " closed"));
+            }
+        });
+    }
+
+
+    /**
+     * Point the connection at a different Acromag. If the address actually changed, the current connection
+     * is dropped and a connection to the new one is attempted straight away
+     * @param ipAddress IP address of the Acromag
+     * @param port Modbus port to use in communications
+     */
+    void setAddress(String ipAddress, int port){
+        if (ipAddress.equals(this.ipAddress) && port == this.port) return;
+
+        this.ipAddress = ipAddress;
+        this.port      = port;
+
+        reactor.execute(new Runnable() {
+            @Override
+            public void run() {
+                cancelReconnect();
+                cancelResolve();
+                resolver = null;    // A lookup of the old address mustn't hold up the new one
+                closeChannel(new ModbusIOException("Acromag address changed"));
+                reconnectDelay = MIN_RECONNECT_DELAY;
+                connect();
+            }
+        });
+    }
+
+
+    /**
+     * Check the state of the connection, this never blocks
+     * @return true if connected, false otherwise
+     */
+    boolean isConnected(){
+        return connected;
+    }
+
+
+    /**
+     * Return a number that changes every time a new connection is established, so that users of the
+     * connection can tell when anything they've cached about the Acromag needs to be re-read
+     * @return Count of successful connections
+     */
+    long getGeneration(){
+        return generation;
+    }
+
+
+    /**
+     * Return the IP address of the Acromag
+     * @return the IP address as a string
+     */
+    String getAddress(){
+        return ipAddress;
+    }
+
+
+    /**
+     * Return the statistics of every transaction made over this connection
+     * @return Statistics of the connection
+     */
+    ModbusStatistics getStatistics(){
+        return statistics;
+    }
+
+
+    /**
+     * Method that sends a request to the Acromag without waiting for its response. The request goes out on the
+     * connection that is current when this is called; if that connection drops first, the future fails
+     * @param request Request to send
+     * @return Future of the response, which may be an exception response. It fails with a ModbusIOException if
+     * we're not connected, the exchange failed or no response arrived in time
+     */
+    CompletableFuture<ModbusResponse> submit(final ModbusRequest request){
+
+        final CompletableFuture<ModbusResponse> future = new CompletableFuture<ModbusResponse>();
+        if (!connected) {
+            future.completeExceptionally(new ModbusIOException("Not connected to " + ipAddress));
+            return future;
+        }
+
+
+        // Encode the request here so the reactor only has to copy bytes
+        final Transaction transaction = new Transaction(request, future, System.nanoTime());
+        final long expectedGeneration = generation;
+        final int id = nextTransactionID();
+        final ByteBuffer message;
+        try {
+            message = encode(request, id);
+        } catch (IOException e) {
+            future.completeExceptionally(new ModbusIOException("Unable to encode request: " + e.getMessage()));
+            return future;
+        }
+
+        reactor.execute(new Runnable() {
+            @Override
+            public void run() {
+                send(id, message, transaction, expectedGeneration);
+            }
+        });
+        return future;
+    }
+
+
+    /**
+     * Method that sends a request to the Acromag and checks its response without waiting for it
+     * @param request Request to send
+     * @return Future of the response, which fails with a ModbusSlaveException if the Acromag answered with an exception
+     */
+    CompletableFuture<ModbusResponse> submitChecked(ModbusRequest request){
+        return submit(request).thenCompose(new Function<ModbusResponse, CompletableFuture<ModbusResponse>>() {
+            @Override
+            public CompletableFuture<ModbusResponse> apply(ModbusResponse response) {
+                CompletableFuture<ModbusResponse> checked = new CompletableFuture<ModbusResponse>();
+                try {
+                    checkResponse(response);
+                    checked.complete(response);
+                } catch (ModbusSlaveException e) {
+                    checked.completeExceptionally(e);
+                }
+                return checked;
+            }
+        });
+    }
+
+
+    /**
+     * Method that sends a request to the Acromag and waits for its response
+     * @param request Request to send
+     * @return Response of the Acromag
+     * @throws ModbusException if we're not connected, the exchange failed, or the Acromag answered with an exception
+     */
+    ModbusResponse execute(ModbusRequest request) throws ModbusException {
+        ModbusResponse response = executeAll(request)[0];
+        checkResponse(response);
+        return response;
+    }
+
+
+    /**
+     * Method that pipelines several requests to the Acromag. Every request is sent back to back without waiting,
+     * and this returns once all of their responses have come back. The whole exchange therefore costs about one
+     * round trip instead of one per request
+     * @param requests Requests to send, in order
+     * @return Response to each request, in the same order as the requests. Some may be exception responses
+     * @throws ModbusIOException if we're not connected or the exchange failed
+     */
+    ModbusResponse[] executeAll(ModbusRequest... requests) throws ModbusIOException {
+
+        // Waiting on the reactor thread would stop the responses from ever being read
+        if (reactor.isReactorThread()) throw new IllegalStateException("Blocking Modbus call made on the I/O thread");
+
+        List<CompletableFuture<ModbusResponse>> futures = new ArrayList<CompletableFuture<ModbusResponse>>(requests.length);
+        for (ModbusRequest request : requests) {
+            futures.add(submit(request));
+        }
+
+        ModbusResponse[] responses = new ModbusResponse[requests.length];
+        for (int i = 0; i < requests.length; i++) {
+            responses[i] = await(futures.get(i));
+        }
+        return responses;
+    }
+
+
+    /**
+     * Method that sends every request of an exchange back to back and waits for all of their responses, which are
+     * left in the exchange. Nothing is allocated unless the exchange fails
+     * @param exchange Exchange to send, which mustn't be in use by another thread
+     * @throws ModbusIOException if we're not connected, the exchange failed or not every response arrived in time.
+     * Until the connection has dealt with an exchange that failed, executing it again fails straight away
+     */
+    void execute(Exchange exchange) throws ModbusIOException {
+
+        // Waiting on the reactor thread would stop the responses from ever being read
+        if (reactor.isReactorThread()) throw new IllegalStateException("Blocking Modbus call made on the I/O thread");
+
+        if (exchange.state != Exchange.IDLE) throw new ModbusIOException("Previous exchange with " + ipAddress + " hasn't finished");
+        if (!connected) throw new ModbusIOException("Not connected to " + ipAddress);
+        if (exchange.numRequests == 0) return;
+
+
+        // Give every request its transaction ID, and everything else the reactor needs to know
+        for (int i = 0; i < exchange.numRequests; i++) {
+            int id = nextTransactionID();
+            exchange.transactionIDs[i]  = id;
+            exchange.responseLengths[i] = 0;
+            exchange.putShort(exchange.requestOffsets[i] + Exchange.TRANSACTION_ID, id);
+        }
+        int last = exchange.numRequests - 1;
+        exchange.requestBuffer.clear();
+        exchange.requestBuffer.limit(exchange.requestOffsets[last] + 6 + Exchange.getShort(exchange.requestBytes, exchange.requestOffsets[last] + Exchange.LENGTH));
+
+        exchange.numResponses       = 0;
+        exchange.failure            = null;
+        exchange.abandoned          = false;
+        exchange.waiter             = Thread.currentThread();
+        exchange.expectedGeneration = generation;
+        exchange.submitTime         = System.nanoTime();
+        exchange.state              = Exchange.IN_FLIGHT;
+
+        if (!submittedExchange.compareAndSet(null, exchange)) {
+            exchange.state = Exchange.IDLE;
+            throw new ModbusIOException("Another exchange with " + ipAddress + " is waiting to be sent");
+        }
+        reactor.execute(sendExchangeTask);
+
+
+        // Wait for the reactor to finish with it
+        long deadline = exchange.submitTime + TimeUnit.MILLISECONDS.toNanos(timeout);
+        while (exchange.state == Exchange.IN_FLIGHT) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                abandonExchange(exchange);
+                throw new ModbusIOException("Timed out waiting for a response from " + ipAddress);
+            }
+            if (Thread.currentThread().isInterrupted()) {
+                abandonExchange(exchange);
+                throw new ModbusIOException("Interrupted while waiting for a response");
+            }
+            LockSupport.parkNanos(this, remaining);
+        }
+
+        if (exchange.failure != null) throw exchange.failure;
+    }
+
+
+    /**
+     * Method that checks whether the Acromag answered a request with an exception
+     * @param response Response to check
+     * @throws ModbusSlaveException if the response is an exception response
+     */
+    static void checkResponse(ModbusResponse response) throws ModbusSlaveException {
+        if (response instanceof ExceptionResponse) {
+            throw new ModbusSlaveException(((ExceptionResponse) response).getExceptionCode());
+        }
+    }
+
+
+    InputRegister[] readInputRegisters(int reference, int count) throws ModbusException {
+        ReadInputRegistersResponse response = (ReadInputRegistersResponse) execute(new ReadInputRegistersRequest(reference, count));
+        return response.getRegisters();
+    }
+
+    Register[] readMultipleRegisters(int reference, int count) throws ModbusException {
+        ReadMultipleRegistersResponse response = (ReadMultipleRegistersResponse) execute(new ReadMultipleRegistersRequest(reference, count));
+        return response.getRegisters();
+    }
+
+    void writeSingleRegister(int reference, Register register) throws ModbusException {
+        execute(new WriteSingleRegisterRequest(reference, register));
+    }
+
+    void writeMultipleRegisters(int reference, Register[] registers) throws ModbusException {
+        execute(new WriteMultipleRegistersRequest(reference, registers));
+    }
+
+
+    CompletableFuture<InputRegister[]> readInputRegistersAsync(int reference, int count){
+        return submitChecked(new ReadInputRegistersRequest(reference, count)).thenApply(new Function<ModbusResponse, InputRegister[]>() {
+            @Override
+            public InputRegister[] apply(ModbusResponse response) {
+                return ((ReadInputRegistersResponse) response).getRegisters();
+            }
+        });
+    }
+
+    CompletableFuture<Register[]> readMultipleRegistersAsync(int reference, int count){
+        return submitChecked(new ReadMultipleRegistersRequest(reference, count)).thenApply(new Function<ModbusResponse, Register[]>() {
+            @Override
+            public Register[] apply(ModbusResponse response) {
+                return ((ReadMultipleRegistersResponse) response).getRegisters();
+            }
+        });
+    }
+
+    CompletableFuture<ModbusResponse> writeSingleRegisterAsync(int reference, Register register){
+        return submitChecked(new WriteSingleRegisterRequest(reference, register));
+    }
+
+    CompletableFuture<ModbusResponse> writeMultipleRegistersAsync(int reference, Register[] registers){
+        return submitChecked(new WriteMultipleRegistersRequest(reference, registers));
+    }
+
+
+    /**
+     * Method that waits for the response of a submitted request
+     * @param future Future of the response
+     * @return Response of the Acromag
+     * @throws ModbusIOException if the exchange failed or we were interrupted
+     */
+    private static ModbusResponse await(CompletableFuture<ModbusResponse> future) throws ModbusIOException {
+        try {
+            return future.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ModbusIOException("Interrupted while waiting for a response");
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof ModbusIOException) throw (ModbusIOException) e.getCause();
+            throw new ModbusIOException(String.valueOf(e.getCause().getMessage()));
+        }
+    }
+
+
+    /**
+     * Start connecting to the Acromag. Looking the address up can block for as long as the resolver takes to give
+     * up, which mustn't hold up the reactor or the other Acromags on it, so it's done on a thread of its own and
+     * the connection is then made to the resolved address. A lookup that takes longer than the timeout counts as a
+     * failed attempt. Runs on the reactor thread
+     */
+    private void connect(){
+        reconnectTimer = null;
+        if (!running || channel != null || resolving) return;
+
+        // A lookup that's hung past its timeout is left to finish on its own, rather than starting another one
+        // beside it every time we back off
+        if (resolver != null && resolver.isAlive()) {
+            connectFailed(new ModbusIOException("Still waiting to resolve " + ipAddress));
+            return;
+        }
+
+        resolving = true;
+        final int attempt = ++connectAttempt;
+        final String ipAddress = this.ipAddress;
+        final int port = this.port;
+
+        resolver = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                InetSocketAddress address = null;
+                String failure = null;
+                try {
+                    address = new InetSocketAddress(ipAddress, port);
+                    if (address.isUnresolved()) failure = "Unable to resolve " + ipAddress;
+                } catch (RuntimeException e) {
+                    failure = "Failed to connect to " + ipAddress + ": " + e;
+                }
+
+                final InetSocketAddress resolved = address;
+                final String resolveFailure = failure;
+                reactor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        connect(attempt, resolved, resolveFailure);
+                    }
+                });
+            }
+        }, "Acromag Resolver " + ipAddress);
+        resolver.setDaemon(true);
+        resolver.start();
+
+        // The resolver may take far longer than we'd wait for the Acromag itself, so treat that as a failed attempt
+        resolveTimer = reactor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                resolveTimer = null;
+                if (attempt != connectAttempt) return;
+                cancelResolve();
+                connectFailed(new ModbusIOException("Timed out resolving " + ipAddress));
+            }
+        }, timeout);
+    }
+
+
+    /**
+     * Connect to the address that was looked up for a connection attempt. Runs on the reactor thread
+     * @param attempt Number of the attempt the address was looked up for
+     * @param address Resolved address of the Acromag, null if it couldn't be looked up
+     * @param failure Why the address couldn't be looked up, null if it was
+     */
+    private void connect(int attempt, InetSocketAddress address, String failure){
+        if (attempt != connectAttempt) return;
+        cancelResolve();
+        if (!running || channel != null) return;
+
+        if (failure != null) {
+            connectFailed(new ModbusIOException(failure));
+            return;
+        }
+
+        try {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+
+            if (channel.connect(address)) {
+                key = reactor.register(channel, SelectionKey.OP_READ, handler);
+                onConnected();
+                return;
+            }
+
+            // Give up if the connection isn't established in time
+            key = reactor.register(channel, SelectionKey.OP_CONNECT, handler);
+            connectTimer = reactor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    connectTimer = null;
+                    connectFailed(new ModbusIOException("Timed out connecting to " + ipAddress));
+                }
+            }, timeout);
+        }
+        catch (IOException e) {
+            connectFailed(new ModbusIOException("Failed to connect to " + ipAddress + ": " + e.getMessage()));
+        }
+        catch (RuntimeException e) {
+            // e.g. UnresolvedAddressException or SecurityException. The channel has to be let go of here too,
+            // or every later attempt would think it's still connecting
+            connectFailed(new ModbusIOException("Failed to connect to " + ipAddress + ": " + e));
+        }
+    }
+
+
+    /**
+     * Record that a new connection has been established. Runs on the reactor thread
+     */
+    private void onConnected(){
+        if (connectTimer != null) connectTimer.cancel();
+        connectTimer = null;
+
+        inbound.clear();
+        outbound.clear();
+
+        if (generation > 0) statistics.recordReconnect();
+        generation++;
+        connected = true;
+    }
+
+
+    /**
+     * Deal with a failed connection attempt by backing off before trying again. Runs on the reactor thread
+     * @param cause Reason the attempt failed
+     */
+    private void connectFailed(ModbusIOException cause){
+        closeChannel(cause);
+        if (running) scheduleBackoff();
+    }
+
+
+    /**
+     * Drop a connection that had been established, and try to restore it after backing off. A connection that had
+     * been answering requests is retried after the minimum delay. Runs on the reactor thread
+     * @param cause Reason the connection is being dropped
+     */
+    private void dropConnection(ModbusIOException cause){
+        if (connected) statistics.recordDisconnect();
+        closeChannel(cause);
+        if (running) scheduleBackoff();
+    }
+
+
+    /**
+     * Schedule the next connection attempt after the current delay, with jitter, and double the delay for the one
+     * after that. Runs on the reactor thread
+     */
+    private void scheduleBackoff(){
+        long jitter = (long) (reconnectDelay * RECONNECT_JITTER * (2 * random.nextDouble() - 1));
+        scheduleReconnect(reconnectDelay + jitter);
+        reconnectDelay = Math.min(2 * reconnectDelay, MAX_RECONNECT_DELAY);
+    }
+
+
+    /**
+     * Record that the connection has answered a request, which shows it's healthy enough that the next drop
+     * shouldn't be backed off from for long. Runs on the reactor thread
+     */
+    private void recordAnswer(){
+        reconnectDelay = MIN_RECONNECT_DELAY;
+    }
+
+
+    /**
+     * Close the current channel (if any) and fail every request that was waiting on it. Runs on the reactor thread
+     * @param cause Reason the channel is being closed
+     */
+    private void closeChannel(ModbusIOException cause){
+        connected = false;
+
+        if (connectTimer != null) connectTimer.cancel();
+        connectTimer = null;
+
+        if (key != null) key.cancel();
+        key = null;
+
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Nothing more we can do with it
+            }
+        }
+        channel = null;
+
+        inbound.clear();
+        outbound.clear();
+
+        for (Transaction transaction : pending.values()) {
+            transaction.timer.cancel();
+            transaction.future.completeExceptionally(cause);
+        }
+        pending.clear();
+
+        if (activeExchange != null) finishExchange(activeExchange, cause);
+    }
+
+
+    private void scheduleReconnect(long delay){
+        cancelReconnect();
+        reconnectTimer = reactor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                connect();
+            }
+        }, delay);
+    }
+
+    private void cancelReconnect(){
+        if (reconnectTimer != null) reconnectTimer.cancel();
+        reconnectTimer = null;
+    }
+
+    private void cancelResolve(){
+        if (resolveTimer != null) resolveTimer.cancel();
+        resolveTimer = null;
+        connectAttempt++;
+        resolving = false;
+    }
+
+
+    /**
+     * Queue an encoded request on the channel and start waiting for its response. Runs on the reactor thread
+     * @param id Transaction ID of the request
+     * @param message Encoded request
+     * @param transaction Transaction that is waiting for the response
+     * @param expectedGeneration Generation of the connection the request was submitted on
+     */
+    private void send(final int id, ByteBuffer message, final Transaction transaction, long expectedGeneration){
+
+        if (channel == null || !connected || generation != expectedGeneration) {
+            transaction.future.completeExceptionally(new ModbusIOException("Connection to " + ipAddress + " was lost"));
+            return;
+        }
+
+        // The Acromag isn't answering if this goes off, so treat the link as dead
+        transaction.sendTime = System.nanoTime();
+        transaction.timer = reactor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (pending.get(id) != transaction) return;
+                statistics.recordTimeout(transaction.request);
+                dropConnection(new ModbusIOException("Timed out waiting for a response from " + ipAddress));
+            }
+        }, timeout);
+
+        Transaction replaced = pending.put(id, transaction);
+        if (replaced != null) {
+            replaced.timer.cancel();
+            replaced.future.completeExceptionally(new ModbusIOException("Transaction ID reused before a response arrived"));
+        }
+
+        outbound.add(message);
+        flush();
+    }
+
+
+    /**
+     * Send the exchange that has been handed over, unless whoever handed it over has already given up on it.
+     * Runs on the reactor thread
+     */
+    private void sendExchange(){
+        Exchange exchange = submittedExchange.getAndSet(null);
+        if (exchange == null) return;
+
+        if (exchange.abandoned) {
+            finishExchange(exchange, new ModbusIOException("Exchange with " + ipAddress + " was given up on before it was sent"));
+            return;
+        }
+        if (channel == null || !connected || generation != exchange.expectedGeneration) {
+            finishExchange(exchange, new ModbusIOException("Connection to " + ipAddress + " was lost"));
+            return;
+        }
+        if (activeExchange != null) {
+            finishExchange(exchange, new ModbusIOException("Another exchange with " + ipAddress + " is in flight"));
+            return;
+        }
+
+        activeExchange = exchange;
+        exchange.sendTime = System.nanoTime();
+        outbound.add(exchange.requestBuffer);
+        flush();
+    }
+
+
+    /**
+     * Give up on an exchange whose responses didn't arrive in time. If it was sent, the Acromag isn't answering,
+     * so the link is treated as dead just as it is for a single request
+     * @param exchange Exchange to give up on
+     */
+    private void abandonExchange(final Exchange exchange){
+        exchange.abandoned = true;
+
+        reactor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (activeExchange != exchange) return;
+                for (int i = 0; i < exchange.numRequests; i++) {
+                    if (exchange.responseLengths[i] == 0) statistics.recordTimeout(exchange.functionCodes[i], exchange.references[i]);
+                }
+                dropConnection(new ModbusIOException("Timed out waiting for a response from " + ipAddress));
+            }
+        });
+    }
+
+
+    /**
+     * Record a response of the exchange in flight, which is finished once every response has arrived.
+     * Runs on the reactor thread
+     * @param exchange Exchange in flight
+     * @param index Index of the request that was answered
+     */
+    private void receiveExchange(Exchange exchange, int index){
+        if (!exchange.isWellFormed(index)) {
+            finishExchange(exchange, new ModbusIOException("Malformed response from " + ipAddress));
+            return;
+        }
+
+        recordAnswer();
+
+        long now = System.nanoTime();
+        statistics.recordTransaction(exchange.functionCodes[index], exchange.references[index],
+                exchange.sendTime - exchange.submitTime, now - exchange.sendTime, exchange.isException(index));
+
+        if (++exchange.numResponses == exchange.numRequests) finishExchange(exchange, null);
+    }
+
+
+    /**
+     * Hand an exchange back to the thread waiting on it. Runs on the reactor thread
+     * @param exchange Exchange that is finished
+     * @param failure Reason it failed, null if every response arrived
+     */
+    private void finishExchange(Exchange exchange, ModbusIOException failure){
+        if (activeExchange == exchange) activeExchange = null;
+
+        exchange.failure = failure;
+        exchange.state = Exchange.IDLE;
+        LockSupport.unpark(exchange.waiter);
+    }
+
+
+    /**
+     * Handle a readiness event of the channel. Runs on the reactor thread
+     * @param readyKey Key of the channel that is ready
+     */
+    private void handleChannelReady(SelectionKey readyKey){
+        if (readyKey != key) return;
+
+        try {
+            if (readyKey.isConnectable()) {
+                channel.finishConnect();
+                key.interestOps(SelectionKey.OP_READ);
+                onConnected();
+                return;
+            }
+
+            if (readyKey.isReadable()) read();
+            if (key != null && key.isValid() && readyKey.isWritable()) flush();
+        }
+        catch (IOException e) {
+            if (connected) {
+                dropConnection(new ModbusIOException("Connection to " + ipAddress + " failed: " + e.getMessage()));
+            } else {
+                connectFailed(new ModbusIOException("Failed to connect to " + ipAddress + ": " + e.getMessage()));
+            }
+        }
+    }
+
+
+    /**
+     * Write as much of the queued requests as the channel will take, and ask to be told when it can take more
+     */
+    private void flush(){
+        try {
+            while (!outbound.isEmpty()) {
+                ByteBuffer message = outbound.peek();
+                channel.write(message);
+                if (message.hasRemaining()) {
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+                outbound.poll();
+            }
+            key.interestOps(SelectionKey.OP_READ);
+        }
+        catch (IOException e) {
+            dropConnection(new ModbusIOException("Failed to send to " + ipAddress + ": " + e.getMessage()));
+        }
+    }
+
+
+    /**
+     * Read whatever has arrived and hand every complete frame to its transaction
+     * @throws IOException if the channel failed or the Acromag sent something that isn't Modbus/TCP
+     */
+    private void read() throws IOException {
+        if (channel.read(inbound) < 0) throw new IOException("Connection closed by the Acromag");
+
+        inbound.flip();
+        while (inbound.remaining() >= 6) {
+
+            // The header tells us how long the rest of the frame is
+            int length = inbound.getShort(inbound.position() + 4) & 0xFFFF;
+            if (length < 2 || 6 + length > MAX_FRAME_LENGTH) throw new IOException("Malformed frame received");
+            if (inbound.remaining() < 6 + length) break;
+
+            // Responses of the exchange in flight go straight into its buffers
+            Exchange exchange = activeExchange;
+            int index = (exchange == null) ? -1 : exchange.indexOf(inbound.getShort(inbound.position()) & 0xFFFF);
+            if (index >= 0) {
+                inbound.get(exchange.responses[index], 0, 6 + length);
+                exchange.responseLengths[index] = 6 + length;
+                receiveExchange(exchange, index);
+                continue;
+            }
+
+            byte[] frame = new byte[6 + length];
+            inbound.get(frame);
+            dispatch(frame);
+        }
+        inbound.compact();
+    }
+
+
+    /**
+     * Decode a response and complete the transaction it belongs to. Responses that nobody is waiting for,
+     * such as ones arriving after their transaction was given up on, are discarded
+     * @param frame Complete Modbus/TCP frame
+     */
+    private void dispatch(byte[] frame){
+        int id = ((frame[0] & 0xFF) << 8) | (frame[1] & 0xFF);
+
+        Transaction transaction = pending.remove(id);
+        if (transaction == null) return;
+        transaction.timer.cancel();
+
+        long now = System.nanoTime();
+        try {
+            ModbusResponse response = ModbusResponse.createModbusResponse(frame[7] & 0xFF);
+            response.readFrom(new DataInputStream(new ByteArrayInputStream(frame)));
+
+            recordAnswer();
+            statistics.recordTransaction(transaction.request, transaction.sendTime - transaction.submitTime,
+                    now - transaction.sendTime, response instanceof ExceptionResponse);
+            transaction.future.complete(response);
+        }
+        catch (IOException e) {
+            transaction.future.completeExceptionally(new ModbusIOException("Malformed response: " + e.getMessage()));
+        }
+    }
+
+
+    /**
+     * Convenience function for encoding a request as a Modbus/TCP frame
+     * @param request Request to encode
+     * @param id Transaction ID to give it
+     * @return Buffer holding the frame
+     * @throws IOException if the request can't be encoded
+     */
+    private ByteBuffer encode(ModbusRequest request, int id) throws IOException {
+        request.setTransactionID(id);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(MAX_FRAME_LENGTH);
+        request.writeTo(new DataOutputStream(bytes));
+        return ByteBuffer.wrap(bytes.toByteArray());
+    }
+
+
+    /**
+     * Convenience function for getting the transaction ID of the next request
+     * @return Transaction ID between 1 and 65535
+     */
+    private int nextTransactionID(){
+        return (transactionCounter.getAndIncrement() & 0x7FFFFFFF) % 0xFFFF + 1;
+    }
+}
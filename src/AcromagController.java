@@ -1,59 +1,117 @@
-import net.wimpi.modbus.facade.ModbusTCPMaster;
-import net.wimpi.modbus.net.TCPMasterConnection;
+import net.wimpi.modbus.msg.*;
 import net.wimpi.modbus.procimg.InputRegister;
 import net.wimpi.modbus.procimg.Register;
 import net.wimpi.modbus.procimg.SimpleRegister;
 
-import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Function;
 
 
 /**
- * Class the handles all writing and reading to the Acromag unit
+ * Class the handles all writing and reading to the Acromag unit.
+ *
+ * The blocking methods are meant to be called from a single control thread. Each also has an ...Async variant
+ * that returns immediately with a CompletableFuture, so that independent reads and writes (possibly to several
+ * Acromags) can be in flight at once and composed without a thread blocked on each. Those futures fail with the
+ * same exceptions the blocking methods throw, and complete on the Modbus I/O thread so nothing chained onto them
+ * may block
  */
 class AcromagController {
 
     private final int MAX_DATA_VALUE = 30000;
     private final double MIN_ACCEPTABLE_REFERENCE_VOLTAGE = 9.0;
 
-    private TCPMasterConnection connection;
-    private ModbusTCPMaster master;
+    // How far (V) the reference has to move before the setpoints are rescaled against it. It is well above the noise
+    // of the reference, and at most 0.1% of full scale, so an unchanged setpoint keeps the same data value
+    private final double REFERENCE_DEADBAND = 0.01;
 
+    // How often (ms) the cached channel configurations are re-read even if nothing has invalidated them
+    private final long CHANNEL_CONFIG_REFRESH_PERIOD = 10 * 60 * 1000;
 
-    AcromagController(){
-    }
+    // Connection to the Acromag, and the generation of it that our cached values came from
+    private final AcromagConnection connection;
+    private long connectionGeneration = -1;
+
+    // Which channel does what on this Acromag, and the limits of the power supply behind it
+    private volatile DeviceConfiguration configuration;
+
+    // Most recent reading (V) of the "REFERENCE" channel, NaN until the inputs have been read on this connection
+    private volatile double latestReferenceVoltage = Double.NaN;
+
+    // Cached config registers of the input and output channels, which hold the range (5V or 10V) of each channel
+    private volatile ChannelConfig channelConfig;
+
+    // Data values currently held by the output channels, and whether we have confirmed each of them with a write
+    private int[] outputChannelData;
+    private boolean[] outputChannelConfirmed = new boolean[Constants.getNumChannels()];
+
+    // Output channels that an asynchronous write has touched since the control thread last looked (bit n for channel
+    // n). The I/O thread only ever sets bits here, and the control thread takes them and unconfirms the channels
+    private final AtomicInteger asyncWrittenChannels = new AtomicInteger();
+
+    // Reference (V) the HVPS setpoints are currently scaled against, NaN until the first one is scaled
+    private double outputReference = Double.NaN;
+
+    // Time (ms) of the last write that refreshed every output channel, 0 if one is due
+    private long lastFullOutputRefresh = 0;
+
+    // Output values staged for the next frame, only used while isStaging is true
+    private final OutputFrame outputFrame = new OutputFrame(Constants.getNumChannels());
+    private boolean isStaging;
+
+    // Span of output values that has been sent but not yet confirmed
+    private int pendingOutputChannel;
+    private int pendingOutputCount;
+    private final int[] pendingOutputData = new int[Constants.getNumChannels()];
+    private boolean pendingFullOutputRefresh;
+
+    // Requests sent every poll, and the buffer the inputs are read into. Both are reused from one poll to the
+    // next, so that polling doesn't allocate while everything goes as expected. The buffer is never published
+    // anywhere but the return value of the blocking reads
+    private final AcromagConnection.Exchange exchange = new AcromagConnection.Exchange(2);
+    private final InputBuffer inputs = new InputBuffer(Constants.getNumChannels());
 
 
     /**
-     * Basic constructor
-     * @param ipAddress IP address that will be used to attempt to establish communication with the Acromag
-     * @param port Modbus port to use in communications
+     * Config registers of every channel as read from one connection. Instances are never modified, so they can be
+     * shared between the control thread and the I/O thread
      */
-    AcromagController(String ipAddress, Integer port) throws Exceptions.AcromagConnectionException {
-        this(ipAddress, port, Configuration.getPollPeriod());
+    private static class ChannelConfig {
+        final long generation;
+        final long timestamp;
+        final int[] input;
+        final int[] output;
+
+        ChannelConfig(long generation, long timestamp, int[] input, int[] output){
+            this.generation = generation;
+            this.timestamp  = timestamp;
+            this.input      = input;
+            this.output     = output;
+        }
     }
 
 
     /**
      * Basic constructor
-     * @param ipAddress IP address that will be used to attempt to establish communication with the Acromag
-     * @param port Modbus port to use in communications
-     * @param timeout Time (ms) before we give up trying to connect
+     * @param connection Connection that will be used to communicate with the Acromag
+     * @param configuration Settings of the device
      */
-    AcromagController(String ipAddress, Integer port, Integer timeout) throws Exceptions.AcromagConnectionException {
+    AcromagController(AcromagConnection connection, DeviceConfiguration configuration){
+        this.connection    = connection;
+        this.configuration = configuration;
+    }
 
-        try {
-            connection = new TCPMasterConnection(InetAddress.getByName(ipAddress));
-            connection.setTimeout(timeout);
-            connection.setPort(port);
-            connection.connect();
 
-            master = new ModbusTCPMaster(ipAddress, port);
-            master.connect();
-        }
-        catch (Exception e) {
-            disconnect();
-            throw new Exceptions.AcromagConnectionException(ipAddress);
-        }
+    /**
+     * Change which channel does what, or the limits of the power supply. Takes effect from the next read or write
+     * @param configuration New settings of the device
+     */
+    void setConfiguration(DeviceConfiguration configuration){
+        this.configuration = configuration;
     }
 
 
@@ -62,7 +120,6 @@ class AcromagController {
      * @return true if connected, false otherwise
      */
     boolean isConnected(){
-        if (connection == null || master == null) return false;
         return connection.isConnected();
     }
 
@@ -72,7 +129,7 @@ class AcromagController {
      * @return the IP address as a string
      */
     String getAddress(){
-        return connection.getAddress().toString();
+        return connection.getAddress();
     }
 
 
@@ -80,8 +137,367 @@ class AcromagController {
      * Disconnect from the Acromag
      */
     void disconnect(){
-        if (connection != null) connection.close();
-        if (master != null)     master.disconnect();
+        connection.close();
+    }
+
+
+    /**
+     * Method that makes sure we're connected, and forgets everything we've cached about the Acromag
+     * if this is a different connection than the last time we checked
+     * @throws Exceptions.AcromagConnectionException
+     */
+    private void checkConnection() throws Exceptions.AcromagConnectionException {
+
+        if (!isConnected()) throw new Exceptions.AcromagConnectionException(connection.getAddress());
+
+        long generation = connection.getGeneration();
+        if (generation != connectionGeneration) {
+            connectionGeneration = generation;
+
+            latestReferenceVoltage = Double.NaN;
+            outputReference = Double.NaN;
+            invalidateChannelConfiguration();
+            outputChannelData = null;
+            for (int i = 0; i < outputChannelConfirmed.length; i++) {
+                outputChannelConfirmed[i] = false;
+            }
+            requestFullOutputRefresh();
+        }
+    }
+
+
+    /**
+     * Discard the cached channel configurations so that they are re-read on the next access.
+     * This should be called whenever the range of a channel may have been changed on the Acromag
+     */
+    void invalidateChannelConfiguration(){
+        channelConfig = null;
+        latestReferenceVoltage = Double.NaN;
+    }
+
+
+    /**
+     * Method that reads the config registers of every input and output channel. Each set of registers
+     * is contiguous so this only takes two Modbus transactions
+     * @return The configurations that were read, which are now cached
+     * @throws Exceptions.ReadInputVoltageException
+     */
+    private ChannelConfig loadChannelConfiguration() throws Exceptions.ReadInputVoltageException, Exceptions.AcromagConnectionException {
+
+        checkConnection();
+        long generation = connection.getGeneration();
+
+        int numChannels = Constants.getNumChannels();
+        int inputConfigAddress  = Constants.getInputChannelConfigAddress(0);
+        int outputConfigAddress = Constants.getOutputChannelConfigAddress(0);
+
+
+        // Read the input config registers
+        InputRegister[] inputRegisters;
+        try {
+            inputRegisters = connection.readInputRegisters(inputConfigAddress, numChannels);
+        }
+        catch (Exception e) {
+            throw new Exceptions.ReadInputVoltageException(0, numChannels - 1, inputConfigAddress);
+        }
+
+
+        // Read the output config registers
+        Register[] outputRegisters;
+        try {
+            outputRegisters = connection.readMultipleRegisters(outputConfigAddress, numChannels);
+        }
+        catch (Exception e) {
+            throw new Exceptions.ReadInputVoltageException(0, numChannels - 1, outputConfigAddress);
+        }
+
+
+        return storeChannelConfiguration(generation, inputRegisters, outputRegisters);
+    }
+
+
+    /**
+     * Method that caches the config registers of every channel
+     * @param generation Generation of the connection the registers were read on
+     * @param inputRegisters Config registers of the input channels
+     * @param outputRegisters Config registers of the output channels
+     * @return The cached configurations
+     */
+    private ChannelConfig storeChannelConfiguration(long generation, InputRegister[] inputRegisters, Register[] outputRegisters){
+        int numChannels = Constants.getNumChannels();
+
+        int[] inputConfig  = new int[numChannels];
+        int[] outputConfig = new int[numChannels];
+        for (int i = 0; i < numChannels; i++) {
+            inputConfig[i]  = inputRegisters[i].toShort();
+            outputConfig[i] = outputRegisters[i].toShort();
+        }
+
+        ChannelConfig config = new ChannelConfig(generation, System.currentTimeMillis(), inputConfig, outputConfig);
+        channelConfig = config;
+        return config;
+    }
+
+
+    /**
+     * Method that makes sure the cached channel configurations are present and not older than the refresh period
+     * @return The cached configurations
+     * @throws Exceptions.ReadInputVoltageException
+     */
+    private ChannelConfig checkChannelConfiguration() throws Exceptions.ReadInputVoltageException, Exceptions.AcromagConnectionException {
+        ChannelConfig config = channelConfig;
+        if (isCurrent(config)) return config;
+
+        return loadChannelConfiguration();
+    }
+
+
+    /**
+     * Check whether cached channel configurations can still be used
+     * @param config Cached configurations, may be null
+     * @return true if they came from the current connection and are not older than the refresh period
+     */
+    private boolean isCurrent(ChannelConfig config){
+        if (config == null) return false;
+        if (config.generation != connection.getGeneration()) return false;
+        return System.currentTimeMillis() - config.timestamp <= CHANNEL_CONFIG_REFRESH_PERIOD;
+    }
+
+
+    /**
+     * Method that makes sure we know what every output channel currently holds
+     * @throws Exceptions.ReadInputVoltageException
+     */
+    private void checkOutputChannelData() throws Exceptions.ReadInputVoltageException, Exceptions.AcromagConnectionException {
+        if (outputChannelData == null) loadOutputChannelData();
+    }
+
+
+    /**
+     * Method that reads the data registers of every output channel in a single Modbus transaction
+     * so that we know what each channel is currently outputting
+     * @throws Exceptions.ReadInputVoltageException
+     */
+    private void loadOutputChannelData() throws Exceptions.ReadInputVoltageException, Exceptions.AcromagConnectionException {
+
+        checkConnection();
+
+        int numChannels = Constants.getNumChannels();
+        int dataAddress = Constants.getOutputChannelDataAddress(0);
+
+        Register[] dataRegisters;
+        try {
+            dataRegisters = connection.readMultipleRegisters(dataAddress, numChannels);
+        }
+        catch (Exception e) {
+            throw new Exceptions.ReadInputVoltageException(0, numChannels - 1, dataAddress);
+        }
+
+        int[] data = new int[numChannels];
+        for (int i = 0; i < numChannels; i++) {
+            data[i] = dataRegisters[i].toShort();
+        }
+
+        outputChannelData = data;
+    }
+
+
+    /**
+     * Force the next write of every output channel to go to the Acromag even if its value hasn't changed
+     */
+    void requestFullOutputRefresh(){
+        lastFullOutputRefresh = 0;
+    }
+
+
+    /**
+     * Method that decides whether an output channel needs to be written. Values that match what we last wrote are
+     * skipped, unless the periodic full refresh is due so that the hardware can't drift from what we think we commanded
+     * @param channelID Integer ID (0-15) of the output channel
+     * @param dataValue Raw data value we want the channel to hold
+     * @return true if the value should be written
+     */
+    private boolean isOutputDirty(int channelID, int dataValue){
+        if (asyncWrittenChannels.get() != 0) takeAsyncWrittenChannels();
+        if (isFullOutputRefreshDue()) return true;
+        if (!outputChannelConfirmed[channelID]) return true;
+        return outputChannelData[channelID] != dataValue;
+    }
+
+
+    /**
+     * Method that unconfirms every output channel that an asynchronous write has touched, since we no longer know
+     * what it holds. Only called on the control thread
+     */
+    private void takeAsyncWrittenChannels(){
+        int written = asyncWrittenChannels.getAndSet(0);
+        for (int channelID = 0; channelID < outputChannelConfirmed.length; channelID++) {
+            if ((written & (1 << channelID)) != 0) outputChannelConfirmed[channelID] = false;
+        }
+    }
+
+
+    /**
+     * Check whether the output channels are due for a full refresh
+     * @return true if every output should be rewritten
+     */
+    private boolean isFullOutputRefreshDue(){
+        if (lastFullOutputRefresh == 0) return true;
+        return System.currentTimeMillis() - lastFullOutputRefresh >= configuration.getOutputRefreshPeriod();
+    }
+
+
+    /**
+     * Start staging an output frame. Until commitOutputFrame() is called, every output setter only records
+     * its value instead of writing it to the Acromag. Any frame that was previously being staged is discarded
+     */
+    void beginOutputFrame(){
+        outputFrame.clear();
+        isStaging = true;
+    }
+
+
+    /**
+     * Write every value staged since beginOutputFrame() to the Acromag. The output data registers are contiguous,
+     * so the whole span of changed channels goes out in a single Modbus transaction. Channels inside that span
+     * that are unchanged are rewritten with the value they currently hold. If nothing changed, nothing is sent
+     * @throws Exceptions.WriteOutputVoltageException
+     */
+    void commitOutputFrame() throws Exceptions.WriteOutputVoltageException, Exceptions.ReadInputVoltageException, Exceptions.AcromagConnectionException {
+
+        if (!prepareOutputFrame()) return;
+
+        exchange.clear();
+        int write = addOutputRequest();
+        try {
+            connection.execute(exchange);
+        }
+        catch (Exception e) {
+            throw failOutputFrame();
+        }
+
+        if (exchange.isException(write)) throw failOutputFrame();
+        confirmOutputFrame();
+    }
+
+
+    /**
+     * Method that commits the staged output frame and samples every input channel in a single pipelined exchange.
+     * Both requests are sent back to back, so the cycle costs about one round trip. The inputs are read after
+     * the outputs have been written
+     * @return Voltages (V) currently being read by all input channels, in a buffer that is refilled by the next read
+     * @throws Exceptions.WriteOutputVoltageException
+     * @throws Exceptions.ReadInputVoltageException
+     */
+    InputBuffer commitOutputFrameAndReadInputs() throws Exceptions.WriteOutputVoltageException, Exceptions.ReadInputVoltageException, Exceptions.AcromagConnectionException {
+
+        if (!prepareOutputFrame()) return readInputs();
+
+        ChannelConfig config = checkChannelConfiguration();
+
+
+        // Send both at once
+        exchange.clear();
+        int write = addOutputRequest();
+        int read  = addInputRequest();
+        long timestamp = System.currentTimeMillis();
+        try {
+            connection.execute(exchange);
+        }
+        catch (Exception e) {
+            throw failOutputFrame();
+        }
+
+
+        // Check how each of them went
+        if (exchange.isException(write)) throw failOutputFrame();
+        confirmOutputFrame();
+
+        if (exchange.isException(read)) {
+            throw new Exceptions.ReadInputVoltageException(0, Constants.getNumChannels() - 1, Constants.getInputChannelDataAddress(0));
+        }
+        return storeInputs(timestamp, config, read);
+    }
+
+
+    /**
+     * Method that works out which of the staged values need writing, and stages the span of them to be sent.
+     * Staging ends here whether or not anything needs to be written
+     * @return true if there's something to write
+     * @throws Exceptions.ReadInputVoltageException
+     */
+    private boolean prepareOutputFrame() throws Exceptions.ReadInputVoltageException, Exceptions.AcromagConnectionException {
+
+        OutputFrame frame = outputFrame;
+        if (!isStaging) return false;
+        isStaging = false;
+
+        if (frame.isEmpty()) return false;
+        checkConnection();
+        checkOutputChannelData();
+
+
+        // Find the span of channels that actually need writing
+        pendingFullOutputRefresh = isFullOutputRefreshDue();
+        int firstChannel = Constants.getNumChannels();
+        int lastChannel  = -1;
+        for (int channelID = frame.getFirstChannel(); channelID <= frame.getLastChannel(); channelID++) {
+            if (frame.isStaged(channelID) && isOutputDirty(channelID, frame.getData(channelID))) {
+                firstChannel = Math.min(firstChannel, channelID);
+                lastChannel  = channelID;
+            }
+        }
+
+        if (lastChannel < firstChannel) return false;
+
+
+        // Collect the values of the whole span
+        pendingOutputChannel = firstChannel;
+        pendingOutputCount   = lastChannel - firstChannel + 1;
+        for (int i = 0; i < pendingOutputCount; i++) {
+            int channelID = firstChannel + i;
+            pendingOutputData[i] = frame.isStaged(channelID) ? frame.getData(channelID) : outputChannelData[channelID];
+        }
+        return true;
+    }
+
+
+    /**
+     * Method that adds the request that writes the prepared output frame to the exchange
+     * @return Index of the request in the exchange
+     */
+    private int addOutputRequest(){
+        return exchange.addWriteMultipleRegisters(Constants.getOutputChannelDataAddress(pendingOutputChannel), pendingOutputData, 0, pendingOutputCount);
+    }
+
+
+    /**
+     * Method that records that the Acromag accepted a prepared output frame
+     */
+    private void confirmOutputFrame(){
+        for (int i = 0; i < pendingOutputCount; i++) {
+            outputChannelData[pendingOutputChannel + i] = pendingOutputData[i];
+            outputChannelConfirmed[pendingOutputChannel + i] = true;
+        }
+
+        if (pendingFullOutputRefresh) lastFullOutputRefresh = System.currentTimeMillis();
+    }
+
+
+    /**
+     * Method that records that writing a prepared output frame failed
+     * @return Exception describing the failure
+     */
+    private Exceptions.WriteOutputVoltageException failOutputFrame(){
+        int firstChannel = pendingOutputChannel;
+        int lastChannel  = firstChannel + pendingOutputCount - 1;
+
+        // We no longer know what these channels hold
+        for (int channelID = firstChannel; channelID <= lastChannel; channelID++) {
+            outputChannelConfirmed[channelID] = false;
+        }
+
+        return new Exceptions.WriteOutputVoltageException(firstChannel, lastChannel, Constants.getOutputChannelDataAddress(firstChannel));
     }
 
 
@@ -93,12 +509,27 @@ class AcromagController {
      */
     void setPowerSupplyEnable(boolean isOn) throws Exceptions.ReadInputVoltageException, Exceptions.WriteOutputVoltageException, Exceptions.AcromagConnectionException, Exceptions.BadReferenceVoltageException {
         if (isOn){
-            setChannelOutputVoltage(Configuration.getHvEnableChannel(), getReferenceVoltage());
+            setChannelOutputVoltage(configuration.getHvEnableChannel(), getOutputReferenceVoltage());
         }else{
             // If we're turning off the HVPS we also should zero out the voltage and current
-            setChannelOutputVoltage(Configuration.getHvEnableChannel(), 0.0);
-            setPowerSupplyVoltage(0.0);
-            setPowerSupplyCurrent(0.0);
+            // Zero is zero regardless of the reference, so don't let a bad reference stop us here
+            setChannelOutputVoltage(configuration.getHvEnableChannel(), 0.0);
+            setChannelOutputVoltage(configuration.getVoltageControlChannel(), 0.0);
+            setChannelOutputVoltage(configuration.getCurrentControlChannel(), 0.0);
+        }
+    }
+
+
+    /**
+     * Method that zeroes output channels that nothing drives any more, so that a channel that has been remapped
+     * doesn't carry on holding whatever it was last set to
+     * @param channelMask Bit n set for every output channel n that should be zeroed
+     * @throws Exceptions.ReadInputVoltageException
+     * @throws Exceptions.WriteOutputVoltageException
+     */
+    void zeroOutputChannels(int channelMask) throws Exceptions.ReadInputVoltageException, Exceptions.WriteOutputVoltageException, Exceptions.AcromagConnectionException {
+        for (int channelID = 0; channelID < Constants.getNumChannels(); channelID++) {
+            if (getBit(channelMask, channelID) == 1) setChannelOutputVoltage(channelID, 0.0);
         }
     }
 
@@ -110,14 +541,8 @@ class AcromagController {
      * @throws Exceptions.WriteOutputVoltageException
      */
     void setPowerSupplyVoltage(double voltage) throws Exceptions.ReadInputVoltageException, Exceptions.WriteOutputVoltageException, Exceptions.AcromagConnectionException, Exceptions.BadReferenceVoltageException {
-        // Sanity check
-        voltage = Math.min(Constants.getPowerSupplyMaxVoltage(), voltage);
-        voltage = Math.min(Configuration.getMaxAllowablePowerSupplyVoltage(), voltage);
-
-        double referenceMax = getReferenceVoltage();
-        double acromagVoltage = (voltage / Constants.getPowerSupplyMaxVoltage()) * referenceMax;
-
-        setChannelOutputVoltage(Configuration.getVoltageControlChannel(), acromagVoltage);
+        double acromagVoltage = getVoltageControl(voltage, getOutputReferenceVoltage());
+        setChannelOutputVoltage(configuration.getVoltageControlChannel(), acromagVoltage);
     }
 
 
@@ -128,13 +553,37 @@ class AcromagController {
      * @throws Exceptions.WriteOutputVoltageException
      */
     void setPowerSupplyCurrent(double current) throws Exceptions.ReadInputVoltageException, Exceptions.WriteOutputVoltageException, Exceptions.AcromagConnectionException, Exceptions.BadReferenceVoltageException{
+        double acromagVoltage = getCurrentControl(current, getOutputReferenceVoltage());
+        setChannelOutputVoltage(configuration.getCurrentControlChannel(), acromagVoltage);
+    }
+
+
+    /**
+     * Method that converts an HVPS voltage setting into the voltage of the "LOCAL V-CONTROL" channel
+     * @param voltage Desired voltage (kV) of the HVPS
+     * @param referenceMax HVPS IO reference "10 volts" (V)
+     * @return Voltage (V) the control channel should output
+     */
+    private double getVoltageControl(double voltage, double referenceMax){
         // Sanity check
-        current = Math.min(Constants.getPowerSupplyMaxCurrent(), current);
+        voltage = Math.min(Constants.getPowerSupplyMaxVoltage(), voltage);
+        voltage = Math.min(configuration.getMaxAllowablePowerSupplyVoltage(), voltage);
+
+        return (voltage / Constants.getPowerSupplyMaxVoltage()) * referenceMax;
+    }
+
 
-        double referenceMax = getReferenceVoltage();
-        double acromagVoltage = (current / Constants.getPowerSupplyMaxCurrent()) * referenceMax;
+    /**
+     * Method that converts an HVPS current setting into the voltage of the "LOCAL I-CONTROL" channel
+     * @param current Desired current (mA) of the HVPS
+     * @param referenceMax HVPS IO reference "10 volts" (V)
+     * @return Voltage (V) the control channel should output
+     */
+    private double getCurrentControl(double current, double referenceMax){
+        // Sanity check
+        current = Math.min(Constants.getPowerSupplyMaxCurrent(), current);
 
-        setChannelOutputVoltage(Configuration.getCurrentControlChannel(), acromagVoltage);
+        return (current / Constants.getPowerSupplyMaxCurrent()) * referenceMax;
     }
 
 
@@ -146,10 +595,10 @@ class AcromagController {
      */
     void setLdEnable(boolean isOn) throws Exceptions.ReadInputVoltageException, Exceptions.WriteOutputVoltageException, Exceptions.AcromagConnectionException {
         if (isOn){
-            setChannelOutputVoltage(Configuration.getLdEnableChannel(), Constants.getLaserDiodeOnVoltage());
+            setChannelOutputVoltage(configuration.getLdEnableChannel(), Constants.getLaserDiodeOnVoltage());
         }else{
             // If we're turning off the laser diode we should zero out the current
-            setChannelOutputVoltage(Configuration.getLdEnableChannel(), 0.0);
+            setChannelOutputVoltage(configuration.getLdEnableChannel(), 0.0);
             setLaserDiodeCurrent(0.0);
         }
     }
@@ -162,11 +611,20 @@ class AcromagController {
      * @throws Exceptions.WriteOutputVoltageException
      */
     void setLaserDiodeCurrent(double current) throws Exceptions.ReadInputVoltageException, Exceptions.WriteOutputVoltageException, Exceptions.AcromagConnectionException {
+        setChannelOutputVoltage(configuration.getLdCurrentControlChannel(), getLaserDiodeControl(current));
+    }
+
+
+    /**
+     * Method that converts a laser diode current setting into the voltage of its control channel
+     * @param current Desired current (mA) to the laser diode
+     * @return Voltage (V) the control channel should output
+     */
+    private double getLaserDiodeControl(double current){
         // Sanity check
         current = Math.min(Constants.getLaserDiodeMaxCurrent(), current);
 
-        double acromagVoltage = current * Constants.getVoltagePerLdCurrent();
-        setChannelOutputVoltage(Configuration.getLdCurrentControlChannel(), acromagVoltage);
+        return current * Constants.getVoltagePerLdCurrent();
     }
 
 
@@ -176,8 +634,19 @@ class AcromagController {
      * @throws Exceptions.ReadInputVoltageException
      */
     double getPowerSupplyVoltage() throws Exceptions.ReadInputVoltageException, Exceptions.AcromagConnectionException, Exceptions.BadReferenceVoltageException {
-        double referenceMax = getReferenceVoltage();
-        double acromagVoltage = getAcromagInputVoltage(Configuration.getVoltageMonitorChannel());
+        return getPowerSupplyVoltage(readInputs());
+    }
+
+
+    /**
+     * Method that returns the voltage (kV) inferred from the "V-MONITOR" channel of previously taken readings
+     * @param inputs Readings of the input channels to use
+     * @return HVPS voltage (kV) inferred at the time of the readings
+     * @throws Exceptions.BadReferenceVoltageException
+     */
+    double getPowerSupplyVoltage(InputReadings inputs) throws Exceptions.BadReferenceVoltageException {
+        double referenceMax = getReferenceVoltage(inputs);
+        double acromagVoltage = inputs.getVoltage(configuration.getVoltageMonitorChannel());
 
         return (acromagVoltage / referenceMax) * Constants.getPowerSupplyMaxVoltage();
     }
@@ -189,65 +658,178 @@ class AcromagController {
      * @throws Exceptions.ReadInputVoltageException
      */
     double getPowerSupplyCurrent() throws Exceptions.ReadInputVoltageException, Exceptions.AcromagConnectionException, Exceptions.BadReferenceVoltageException {
-        double referenceMax = getReferenceVoltage();
-        double acromagVoltage = getAcromagInputVoltage(Configuration.getCurrentMonitorChannel());
+        return getPowerSupplyCurrent(readInputs());
+    }
+
+
+    /**
+     * Method that returns the current (mA) inferred from the "I-MONITOR" channel of previously taken readings
+     * @param inputs Readings of the input channels to use
+     * @return HVPS current (mA) inferred at the time of the readings
+     * @throws Exceptions.BadReferenceVoltageException
+     */
+    double getPowerSupplyCurrent(InputReadings inputs) throws Exceptions.BadReferenceVoltageException {
+        double referenceMax = getReferenceVoltage(inputs);
+        double acromagVoltage = inputs.getVoltage(configuration.getCurrentMonitorChannel());
 
         return (acromagVoltage / referenceMax) * Constants.getPowerSupplyMaxCurrent();
     }
 
 
     /**
-     * Method that returns the voltage being read on the "REFERENCE" channel
+     * Method that returns the voltage being read on the "REFERENCE" channel. The output setters scale
+     * against this, so the most recent reading is used if there is one
      * @return HVPS IO reference "10 volts" (V) currently being read
      * @throws Exceptions.ReadInputVoltageException
      */
     private double getReferenceVoltage() throws Exceptions.ReadInputVoltageException, Exceptions.AcromagConnectionException, Exceptions.BadReferenceVoltageException {
-        double referenceVoltage = getAcromagInputVoltage(Configuration.getReferenceVoltageChannel());
+        double referenceVoltage = latestReferenceVoltage;
+        if (Double.isNaN(referenceVoltage)) return getReferenceVoltage(readInputs());
+
+        return checkReferenceVoltage(referenceVoltage);
+    }
+
 
-        if (referenceVoltage < MIN_ACCEPTABLE_REFERENCE_VOLTAGE) throw new Exceptions.BadReferenceVoltageException(Configuration.getReferenceVoltageChannel(), referenceVoltage);
+    /**
+     * Method that returns the reference the HVPS setpoints are scaled against. It only follows the "REFERENCE"
+     * channel once that has moved by more than the deadband, so that the noise on the reference doesn't change
+     * the data value of every setpoint on every poll, and unchanged setpoints aren't rewritten
+     * @return HVPS IO reference "10 volts" (V) to scale the setpoints against
+     * @throws Exceptions.ReadInputVoltageException
+     */
+    private double getOutputReferenceVoltage() throws Exceptions.ReadInputVoltageException, Exceptions.AcromagConnectionException, Exceptions.BadReferenceVoltageException {
+        double referenceVoltage = getReferenceVoltage();
+
+        if (Double.isNaN(outputReference) || Math.abs(referenceVoltage - outputReference) > REFERENCE_DEADBAND) {
+            outputReference = referenceVoltage;
+        }
+        return outputReference;
+    }
+
+
+    /**
+     * Method that returns the voltage read on the "REFERENCE" channel of previously taken readings
+     * @param inputs Readings of the input channels to use
+     * @return HVPS IO reference "10 volts" (V) at the time of the readings
+     * @throws Exceptions.BadReferenceVoltageException
+     */
+    private double getReferenceVoltage(InputReadings inputs) throws Exceptions.BadReferenceVoltageException {
+        return checkReferenceVoltage(inputs.getVoltage(configuration.getReferenceVoltageChannel()));
+    }
+
+
+    /**
+     * Method that makes sure a reading of the "REFERENCE" channel shows the HVPS to be connected
+     * @param referenceVoltage Voltage (V) read on the "REFERENCE" channel
+     * @return The same voltage (V)
+     * @throws Exceptions.BadReferenceVoltageException
+     */
+    private double checkReferenceVoltage(double referenceVoltage) throws Exceptions.BadReferenceVoltageException {
+        if (referenceVoltage < MIN_ACCEPTABLE_REFERENCE_VOLTAGE) throw new Exceptions.BadReferenceVoltageException(configuration.getReferenceVoltageChannel(), referenceVoltage);
         return referenceVoltage;
     }
 
 
     /**
-     * Method that sets the voltage of the Acromag's output voltage channel corresponding to
-     * the specified channelID. Actual addresses are hard coded in the Constants Class
-     * @param channelID Integer ID (0-15) of the input channel
-     * @return Voltage (V) currently being read by the input channel
+     * Method that samples every input channel of the Acromag at once. The data registers of the input
+     * channels are contiguous, so they are all fetched in a single Modbus transaction which keeps the
+     * reference, V-monitor and I-monitor values coherent in time
+     * @return Voltages (V) currently being read by all input channels, in a buffer that is refilled by the next read.
+     *         Take a snapshot of it to keep the readings or hand them to another thread
      * @throws Exceptions.ReadInputVoltageException
      */
-    private double getAcromagInputVoltage(int channelID) throws Exceptions.ReadInputVoltageException, Exceptions.AcromagConnectionException{
+    InputBuffer readInputs() throws Exceptions.ReadInputVoltageException, Exceptions.AcromagConnectionException {
 
-        if (!isConnected()) throw new Exceptions.AcromagConnectionException(Configuration.getAcromagIpAddress());
+        checkConnection();
 
-        // Get the addresses we need from the dictionary
-        int configAddress = Constants.getInputChannelConfigAddress(channelID);
-        int dataAddress   = Constants.getInputChannelDataAddress(channelID);
+        // Make sure we know the range of every channel
+        ChannelConfig config = checkChannelConfiguration();
+        exchange.clear();
+        int read = addInputRequest();
 
 
-        // Read the config register
-        InputRegister configRegister = null;
+        // Read the data registers
+        long timestamp = System.currentTimeMillis();
         try {
-            configRegister = master.readInputRegisters(configAddress, 1)[0];
-        }catch (Exception e) {
-            throw new Exceptions.ReadInputVoltageException(channelID, configAddress);
+            connection.execute(exchange);
+        }
+        catch (Exception e) {
+            throw new Exceptions.ReadInputVoltageException(0, Constants.getNumChannels() - 1, Constants.getInputChannelDataAddress(0));
         }
 
+        if (exchange.isException(read)) {
+            throw new Exceptions.ReadInputVoltageException(0, Constants.getNumChannels() - 1, Constants.getInputChannelDataAddress(0));
+        }
+        return storeInputs(timestamp, config, read);
+    }
+
+
+    /**
+     * Method that adds the request for the data registers of every input channel to the exchange. The channels
+     * occupy a contiguous block starting at the address of channel 0
+     * @return Index of the request in the exchange
+     */
+    private int addInputRequest(){
+        return exchange.addReadInputRegisters(Constants.getInputChannelDataAddress(0), Constants.getNumChannels());
+    }
+
+
+    /**
+     * Method that converts the input data registers read by the exchange into the reused buffer, and keeps the
+     * reading of the reference
+     * @param timestamp Wall clock time (ms) at which the registers were read
+     * @param config Configurations of the channels
+     * @param read Index of the request in the exchange that read the registers
+     * @return Voltages (V) being read by all input channels
+     */
+    private InputBuffer storeInputs(long timestamp, ChannelConfig config, int read){
+        int numChannels = Constants.getNumChannels();
+        int[] configs = config.input;
 
-        // Read the data register
-        InputRegister dataRegister = null;
-        try{
-            dataRegister = master.readInputRegisters(dataAddress, 1)[0];
+        inputs.setTimestamp(timestamp);
+        for (int i = 0; i < numChannels; i++) {
+            inputs.setVoltage(i, getInputVoltage(configs[i], exchange.getRegister(read, i)));
         }
-        catch (Exception e){
-            throw new Exceptions.ReadInputVoltageException(channelID, dataAddress);
+
+        latestReferenceVoltage = inputs.getVoltage(configuration.getReferenceVoltageChannel());
+        return inputs;
+    }
+
+
+    /**
+     * Method that converts the input data registers into a new snapshot, and keeps the reading of the reference
+     * @param timestamp Wall clock time (ms) at which the registers were read
+     * @param config Configurations of the channels
+     * @param dataRegisters Data registers of every input channel
+     * @return Snapshot of the voltages (V) being read by all input channels
+     */
+    private InputSnapshot storeInputs(long timestamp, ChannelConfig config, InputRegister[] dataRegisters){
+        int numChannels = Constants.getNumChannels();
+        int[] configs = config.input;
+
+        // Convert every channel to a voltage
+        double[] voltages = new double[numChannels];
+        for (int i = 0; i < numChannels; i++) {
+            voltages[i] = getInputVoltage(configs[i], dataRegisters[i].toShort());
         }
 
+        latestReferenceVoltage = voltages[configuration.getReferenceVoltageChannel()];
+        return new InputSnapshot(timestamp, voltages);
+    }
+
+
+    /**
+     * Method that converts the raw registers of an input channel into the voltage being read
+     * @param config Value of the channel's config register
+     * @param data Value of the channel's data register
+     * @return Voltage (V) corresponding to the data value
+     */
+    double getInputVoltage(int config, int data){
 
         // The voltage corresponding to the max data value is either 5V or 10V depending on whether the
         // 0th bit of the config register is 0 or 1 respectively
         double maxVoltage;
-        int bit = getBit(configRegister.toShort(), 0);
+        int bit = getBit(config, 0);
         if (bit == 0){
             maxVoltage = 5.0;
         }else{
@@ -256,13 +838,14 @@ class AcromagController {
 
 
         // Return the corresponding voltage
-        return maxVoltage * ((double) dataRegister.toShort() / (double) MAX_DATA_VALUE);
+        return maxVoltage * ((double) data / (double) MAX_DATA_VALUE);
     }
 
 
     /**
      * Method that sets the voltage of the Acromag's output voltage channel corresponding to
-     * the specified channelID. Actual addresses are hard coded in the Constants Class
+     * the specified channelID. Actual addresses are hard coded in the Constants Class.
+     * If an output frame is being staged, the value is only recorded until the frame is committed
      * @param channelID Integer ID (0-15) of the output channel
      * @param voltage Desired voltage (V) of the output channel
      * @throws Exceptions.WriteOutputVoltageException
@@ -270,27 +853,363 @@ class AcromagController {
      */
     void setChannelOutputVoltage(int channelID, double voltage) throws Exceptions.WriteOutputVoltageException, Exceptions.ReadInputVoltageException, Exceptions.AcromagConnectionException {
 
-        if (!isConnected()) throw new Exceptions.AcromagConnectionException(Configuration.getAcromagIpAddress());
+        checkConnection();
+
+        // Get the address we need from the dictionary
+        int dataAddress = Constants.getOutputChannelDataAddress(channelID);
 
-        // Get the addresses we need from the dictionary
-        int configAddress = Constants.getOutputChannelConfigAddress(channelID);
-        int dataAddress   = Constants.getOutputChannelDataAddress(channelID);
 
+        // Make sure we know the range of the channel and what it currently holds
+        ChannelConfig config = checkChannelConfiguration();
+        checkOutputChannelData();
 
-        // Read the config register
-        Register configRegister = null;
+
+        // Calculate the data value corresponding to the requested voltage
+        int dataValue = getOutputData(config.output[channelID], voltage);
+
+
+        // Stage the value if we're building a frame
+        if (isStaging){
+            outputFrame.stage(channelID, dataValue);
+            return;
+        }
+
+
+        // Skip the write if the channel already holds this value
+        if (!isOutputDirty(channelID, dataValue)) return;
+
+
+        // Otherwise set that value to the data channel
         try {
-            configRegister = master.readMultipleRegisters(configAddress, 1)[0];
+            Register dataRegister = new SimpleRegister(dataValue);
+            connection.writeSingleRegister(dataAddress, dataRegister);
         }
         catch (Exception e){
-            throw new Exceptions.ReadInputVoltageException(channelID, configAddress);
+            outputChannelConfirmed[channelID] = false;
+            throw new Exceptions.WriteOutputVoltageException(channelID, voltage, dataAddress);
         }
 
+        outputChannelData[channelID] = dataValue;
+        outputChannelConfirmed[channelID] = true;
+    }
+
+
+    /**
+     * Asynchronous version of readInputs()
+     * @return Future of the snapshot of the voltages (V) currently being read by all input channels
+     */
+    CompletableFuture<InputSnapshot> readInputsAsync(){
+
+        if (!isConnected()) return failed(new Exceptions.AcromagConnectionException(connection.getAddress()));
+
+        return checkChannelConfigurationAsync().thenCompose(new Function<ChannelConfig, CompletableFuture<InputSnapshot>>() {
+            @Override
+            public CompletableFuture<InputSnapshot> apply(final ChannelConfig config) {
+
+                int address = Constants.getInputChannelDataAddress(0);
+                final long timestamp = System.currentTimeMillis();
+                CompletableFuture<InputRegister[]> registers = connection.readInputRegistersAsync(address, Constants.getNumChannels());
+
+                return orFail(registers, new Exceptions.ReadInputVoltageException(0, Constants.getNumChannels() - 1, address))
+                        .thenApply(new Function<InputRegister[], InputSnapshot>() {
+                            @Override
+                            public InputSnapshot apply(InputRegister[] dataRegisters) {
+                                return storeInputs(timestamp, config, dataRegisters);
+                            }
+                        });
+            }
+        });
+    }
+
+
+    /**
+     * Asynchronous read of a contiguous span of the input channels, for when only a few of them are needed. The
+     * span is fetched in a single Modbus transaction. Channels outside the span are NaN in the snapshot, and it
+     * doesn't replace the latest reading of the reference
+     * @param firstChannel ID of the first channel to read
+     * @param lastChannel ID of the last channel to read
+     * @return Future of the snapshot of the voltages (V) currently being read by the span
+     */
+    CompletableFuture<InputSnapshot> readInputsAsync(final int firstChannel, final int lastChannel){
+
+        if (!isConnected()) return failed(new Exceptions.AcromagConnectionException(connection.getAddress()));
+
+        return checkChannelConfigurationAsync().thenCompose(new Function<ChannelConfig, CompletableFuture<InputSnapshot>>() {
+            @Override
+            public CompletableFuture<InputSnapshot> apply(final ChannelConfig config) {
+
+                final int address = Constants.getInputChannelDataAddress(firstChannel);
+                final long timestamp = System.currentTimeMillis();
+                CompletableFuture<InputRegister[]> registers = connection.readInputRegistersAsync(address, lastChannel - firstChannel + 1);
+
+                return orFail(registers, new Exceptions.ReadInputVoltageException(firstChannel, lastChannel, address))
+                        .thenApply(new Function<InputRegister[], InputSnapshot>() {
+                            @Override
+                            public InputSnapshot apply(InputRegister[] dataRegisters) {
+                                double[] voltages = new double[Constants.getNumChannels()];
+                                Arrays.fill(voltages, Double.NaN);
+                                for (int i = firstChannel; i <= lastChannel; i++) {
+                                    voltages[i] = getInputVoltage(config.input[i], dataRegisters[i - firstChannel].toShort());
+                                }
+                                return new InputSnapshot(timestamp, voltages);
+                            }
+                        });
+            }
+        });
+    }
+
+
+    /**
+     * Asynchronous version of getPowerSupplyVoltage()
+     * @return Future of the HVPS voltage (kV) currently being inferred
+     */
+    CompletableFuture<Double> getPowerSupplyVoltageAsync(){
+        return readInputsAsync().thenCompose(new Function<InputSnapshot, CompletableFuture<Double>>() {
+            @Override
+            public CompletableFuture<Double> apply(InputSnapshot inputs) {
+                try {
+                    return CompletableFuture.completedFuture(getPowerSupplyVoltage(inputs));
+                } catch (Exceptions.BadReferenceVoltageException e) {
+                    return failed(e);
+                }
+            }
+        });
+    }
+
+
+    /**
+     * Asynchronous version of getPowerSupplyCurrent()
+     * @return Future of the HVPS current (mA) currently being inferred
+     */
+    CompletableFuture<Double> getPowerSupplyCurrentAsync(){
+        return readInputsAsync().thenCompose(new Function<InputSnapshot, CompletableFuture<Double>>() {
+            @Override
+            public CompletableFuture<Double> apply(InputSnapshot inputs) {
+                try {
+                    return CompletableFuture.completedFuture(getPowerSupplyCurrent(inputs));
+                } catch (Exceptions.BadReferenceVoltageException e) {
+                    return failed(e);
+                }
+            }
+        });
+    }
+
+
+    /**
+     * Asynchronous version of setPowerSupplyEnable(). Turning the HVPS off zeroes the voltage and current
+     * at the same time, and doesn't depend on the reference
+     * @param isOn Desired state (true is on / false is off) of the HVPS
+     * @return Future that completes once every write has been acknowledged
+     */
+    CompletableFuture<Void> setPowerSupplyEnableAsync(boolean isOn){
+        if (isOn) {
+            return readReferenceVoltageAsync().thenCompose(new Function<Double, CompletableFuture<Void>>() {
+                @Override
+                public CompletableFuture<Void> apply(Double referenceMax) {
+                    return setChannelOutputVoltageAsync(configuration.getHvEnableChannel(), referenceMax);
+                }
+            });
+        }
+
+        return CompletableFuture.allOf(
+                setChannelOutputVoltageAsync(configuration.getHvEnableChannel(), 0.0),
+                setChannelOutputVoltageAsync(configuration.getVoltageControlChannel(), 0.0),
+                setChannelOutputVoltageAsync(configuration.getCurrentControlChannel(), 0.0));
+    }
+
+
+    /**
+     * Asynchronous version of setPowerSupplyVoltage(). The reference is read first so that the setting is
+     * scaled against the current one
+     * @param voltage Desired voltage (kV) of the HVPS
+     * @return Future that completes once the write has been acknowledged
+     */
+    CompletableFuture<Void> setPowerSupplyVoltageAsync(final double voltage){
+        return readReferenceVoltageAsync().thenCompose(new Function<Double, CompletableFuture<Void>>() {
+            @Override
+            public CompletableFuture<Void> apply(Double referenceMax) {
+                return setChannelOutputVoltageAsync(configuration.getVoltageControlChannel(), getVoltageControl(voltage, referenceMax));
+            }
+        });
+    }
+
+
+    /**
+     * Asynchronous version of setPowerSupplyCurrent(). The reference is read first so that the setting is
+     * scaled against the current one
+     * @param current Desired current (mA) of the HVPS
+     * @return Future that completes once the write has been acknowledged
+     */
+    CompletableFuture<Void> setPowerSupplyCurrentAsync(final double current){
+        return readReferenceVoltageAsync().thenCompose(new Function<Double, CompletableFuture<Void>>() {
+            @Override
+            public CompletableFuture<Void> apply(Double referenceMax) {
+                return setChannelOutputVoltageAsync(configuration.getCurrentControlChannel(), getCurrentControl(current, referenceMax));
+            }
+        });
+    }
+
+
+    /**
+     * Asynchronous version of setLdEnable()
+     * @param isOn Desired state (true is on / false is off) of the laser diode
+     * @return Future that completes once every write has been acknowledged
+     */
+    CompletableFuture<Void> setLdEnableAsync(boolean isOn){
+        if (isOn) return setChannelOutputVoltageAsync(configuration.getLdEnableChannel(), Constants.getLaserDiodeOnVoltage());
+
+        return CompletableFuture.allOf(
+                setChannelOutputVoltageAsync(configuration.getLdEnableChannel(), 0.0),
+                setLaserDiodeCurrentAsync(0.0));
+    }
+
+
+    /**
+     * Asynchronous version of setLaserDiodeCurrent()
+     * @param current Desired current (mA) to the laser diode
+     * @return Future that completes once the write has been acknowledged
+     */
+    CompletableFuture<Void> setLaserDiodeCurrentAsync(double current){
+        return setChannelOutputVoltageAsync(configuration.getLdCurrentControlChannel(), getLaserDiodeControl(current));
+    }
+
+
+    /**
+     * Asynchronous version of setChannelOutputVoltage(). The value is always written (it never joins an output
+     * frame and isn't compared against what the channel holds), and the channel is left unconfirmed afterwards
+     * so that the next blocking write of it goes out even if it matches what the control thread last wrote
+     * @param channelID Integer ID (0-15) of the output channel
+     * @param voltage Desired voltage (V) of the output channel
+     * @return Future that completes once the write has been acknowledged
+     */
+    CompletableFuture<Void> setChannelOutputVoltageAsync(final int channelID, final double voltage){
+
+        if (!isConnected()) return failed(new Exceptions.AcromagConnectionException(connection.getAddress()));
+
+        return checkChannelConfigurationAsync().thenCompose(new Function<ChannelConfig, CompletableFuture<Void>>() {
+            @Override
+            public CompletableFuture<Void> apply(ChannelConfig config) {
+
+                int dataAddress = Constants.getOutputChannelDataAddress(channelID);
+                Register dataRegister = new SimpleRegister(getOutputData(config.output[channelID], voltage));
+                CompletableFuture<ModbusResponse> write = connection.writeSingleRegisterAsync(dataAddress, dataRegister);
+
+                return orFail(write, new Exceptions.WriteOutputVoltageException(channelID, voltage, dataAddress))
+                        .whenComplete(new BiConsumer<ModbusResponse, Throwable>() {
+                            @Override
+                            public void accept(ModbusResponse response, Throwable error) {
+                                // Runs on the I/O thread, so the control thread is left to unconfirm the channel
+                                int bit = 1 << channelID;
+                                int written;
+                                do {
+                                    written = asyncWrittenChannels.get();
+                                } while (!asyncWrittenChannels.compareAndSet(written, written | bit));
+                            }
+                        })
+                        .thenApply(new Function<ModbusResponse, Void>() {
+                            @Override
+                            public Void apply(ModbusResponse response) {
+                                return null;
+                            }
+                        });
+            }
+        });
+    }
+
+
+    /**
+     * Method that reads a new snapshot and returns the voltage of its "REFERENCE" channel
+     * @return Future of the HVPS IO reference "10 volts" (V)
+     */
+    private CompletableFuture<Double> readReferenceVoltageAsync(){
+        return readInputsAsync().thenCompose(new Function<InputSnapshot, CompletableFuture<Double>>() {
+            @Override
+            public CompletableFuture<Double> apply(InputSnapshot inputs) {
+                try {
+                    return CompletableFuture.completedFuture(getReferenceVoltage(inputs));
+                } catch (Exceptions.BadReferenceVoltageException e) {
+                    return failed(e);
+                }
+            }
+        });
+    }
+
+
+    /**
+     * Asynchronous version of checkChannelConfiguration(). Both sets of config registers are requested at once
+     * @return Future of the cached configurations
+     */
+    private CompletableFuture<ChannelConfig> checkChannelConfigurationAsync(){
+
+        ChannelConfig config = channelConfig;
+        if (isCurrent(config)) return CompletableFuture.completedFuture(config);
+
+        final long generation = connection.getGeneration();
+        int numChannels = Constants.getNumChannels();
+        int inputConfigAddress  = Constants.getInputChannelConfigAddress(0);
+        int outputConfigAddress = Constants.getOutputChannelConfigAddress(0);
+
+        CompletableFuture<InputRegister[]> inputRegisters = orFail(connection.readInputRegistersAsync(inputConfigAddress, numChannels),
+                new Exceptions.ReadInputVoltageException(0, numChannels - 1, inputConfigAddress));
+        CompletableFuture<Register[]> outputRegisters = orFail(connection.readMultipleRegistersAsync(outputConfigAddress, numChannels),
+                new Exceptions.ReadInputVoltageException(0, numChannels - 1, outputConfigAddress));
+
+        return inputRegisters.thenCombine(outputRegisters, new BiFunction<InputRegister[], Register[], ChannelConfig>() {
+            @Override
+            public ChannelConfig apply(InputRegister[] inputs, Register[] outputs) {
+                return storeChannelConfiguration(generation, inputs, outputs);
+            }
+        });
+    }
+
+
+    /**
+     * Convenience function for a future that has already failed
+     * @param failure Exception the future fails with
+     * @return Failed future
+     */
+    private static <T> CompletableFuture<T> failed(Exception failure){
+        CompletableFuture<T> future = new CompletableFuture<T>();
+        future.completeExceptionally(failure);
+        return future;
+    }
+
+
+    /**
+     * Convenience function for replacing whatever a future fails with by one of our own exceptions, which
+     * is what the blocking methods do with the Modbus exceptions
+     * @param future Future to watch
+     * @param failure Exception to fail with instead
+     * @return Future that completes with the same value, or fails with the given exception
+     */
+    private static <T> CompletableFuture<T> orFail(CompletableFuture<T> future, final Exception failure){
+        final CompletableFuture<T> result = new CompletableFuture<T>();
+        future.whenComplete(new BiConsumer<T, Throwable>() {
+            @Override
+            public void accept(T value, Throwable error) {
+                if (error == null) {
+                    result.complete(value);
+                } else {
+                    result.completeExceptionally(failure);
+                }
+            }
+        });
+        return result;
+    }
+
+
+    /**
+     * Method that converts a voltage into the raw data value of an output channel
+     * @param config Value of the channel's config register
+     * @param voltage Desired voltage (V) of the output channel
+     * @return Data value corresponding to the voltage
+     */
+    private int getOutputData(int config, double voltage){
 
         // The voltage corresponding to the max data value is either 5V or 10V depending on whether the
         // 0th bit of the config register is 1 or 0 respectively
         double maxVoltage;
-        int bit = getBit(configRegister.toShort(), 0);
+        int bit = getBit(config, 0);
         if (bit == 0){
             maxVoltage = 10.0;
         }else{
@@ -299,17 +1218,7 @@ class AcromagController {
 
 
         // Calculate the data value corresponding to the requested voltage
-        int dataValue = (int) (MAX_DATA_VALUE * (voltage / maxVoltage));
-
-
-        // Set that value to the data channel
-        try {
-            Register dataRegister = new SimpleRegister(dataValue);
-            master.writeSingleRegister(dataAddress, dataRegister);
-        }
-        catch (Exception e){
-            throw new Exceptions.WriteOutputVoltageException(channelID, voltage, dataAddress);
-        }
+        return (int) (MAX_DATA_VALUE * (voltage / maxVoltage));
     }
 
 
@@ -0,0 +1,516 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Local Modbus/TCP server that emulates an ES2152 Acromag wired to the HVPS, so that the controller can be run,
+ * tested and benchmarked without the hardware. Point Configuration.acromagIpAddress and modbusPort at it.
+ *
+ * The register map is the one in Constants. Input and output channels honour bit 0 of their config registers
+ * (the 5V / 10V range), and the config registers of the outputs can be written just like on the real unit.
+ * The HVPS model reads its control channels through the channel assignments in Configuration: once enabled, its
+ * voltage slews towards the commanded value, the current follows from a resistive load up to the current limit,
+ * and the V and I monitors report both back scaled against the reference channel, with noise. Setpoint changes
+ * only reach the supply after a configurable delay, and every response can be held back to mimic the network
+ */
+class AcromagSimulator {
+
+    private final int MAX_DATA_VALUE = 30000;
+    private final int NUM_REGISTERS = 0x0200;
+
+    // Modbus function and exception codes that we deal with
+    private final int READ_HOLDING_REGISTERS = 0x03;
+    private final int READ_INPUT_REGISTERS = 0x04;
+    private final int WRITE_SINGLE_REGISTER = 0x06;
+    private final int WRITE_MULTIPLE_REGISTERS = 0x10;
+    private final int ILLEGAL_FUNCTION = 0x01;
+    private final int ILLEGAL_DATA_ADDRESS = 0x02;
+    private final int ILLEGAL_DATA_VALUE = 0x03;
+
+    private final int port;
+
+    // Register space of the Acromag, only touched while holding this object's lock
+    private final int[] holdingRegisters = new int[NUM_REGISTERS];
+    private final int[] inputRegisters = new int[NUM_REGISTERS];
+
+    // Model of the HVPS (only touched while holding this object's lock)
+    private final Random random = new Random();
+    private final ArrayDeque<double[]> pendingSetpoints = new ArrayDeque<double[]>();
+    private long lastUpdate = 0;                // ns
+    private boolean isEnabled = false;
+    private double voltageSetting = 0.0;        // kV
+    private double currentLimit = 0.0;          // mA
+    private double voltage = 0.0;               // kV
+    private double current = 0.0;               // mA
+
+    // Behaviour of the model
+    private volatile double referenceVoltage = 10.0;    // V
+    private volatile double slewRate = 5.0;             // kV/s
+    private volatile double loadResistance = 100.0;     // MOhm
+    private volatile double noise = 0.002;              // V (rms on every input)
+    private volatile int setpointDelay = 20;            // ms
+    private volatile int responseLatency = 0;           // ms
+    private volatile boolean isInterlockOpen = false;
+
+    private volatile boolean running = false;
+    private ServerSocket serverSocket;
+    private final List<Socket> clients = new ArrayList<Socket>();
+
+
+    /**
+     * Main method that runs a simulator until the process is killed
+     * Options: --port N, --slew kV/s, --load MOhm, --noise V, --delay ms, --latency ms, --reference V
+     */
+    public static void main(String ... args) throws IOException, InterruptedException {
+
+        // Use the same channel assignments as the controller would
+        Configuration.loadConfiguration();
+
+        int port = Configuration.getModbusPort();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if (args[i].equals("--port")) port = Integer.valueOf(args[i + 1]);
+        }
+
+        AcromagSimulator simulator = new AcromagSimulator(port);
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--slew":
+                    simulator.setSlewRate(Double.valueOf(args[i + 1]));
+                    break;
+                case "--load":
+                    simulator.setLoadResistance(Double.valueOf(args[i + 1]));
+                    break;
+                case "--noise":
+                    simulator.setNoise(Double.valueOf(args[i + 1]));
+                    break;
+                case "--delay":
+                    simulator.setSetpointDelay(Integer.valueOf(args[i + 1]));
+                    break;
+                case "--latency":
+                    simulator.setResponseLatency(Integer.valueOf(args[i + 1]));
+                    break;
+                case "--reference":
+                    simulator.setReferenceVoltage(Double.valueOf(args[i + 1]));
+                    break;
+            }
+        }
+
+        simulator.start();
+        System.out.println(String.format("Simulating an ES2152 on port %d (set acromagIpAddress to 127.0.0.1 and modbusPort to %d)",
+                simulator.getPort(), simulator.getPort()));
+
+        // The simulator's threads are daemons, so keep this one alive until we're killed
+        Thread.currentThread().join();
+    }
+
+
+    /**
+     * Basic constructor, the simulator doesn't listen until start() is called
+     * @param port Port to listen on, 0 picks any free port
+     */
+    AcromagSimulator(int port){
+        this.port = port;
+
+        // Every input reads 0-10V and every output drives 0-10V, which is how the unit is wired to the HVPS
+        for (int channelID = 0; channelID < Constants.getNumChannels(); channelID++) {
+            setInputRange(channelID, true);
+            setOutputRange(channelID, true);
+        }
+    }
+
+
+    /**
+     * Start accepting connections on a background thread
+     * @throws IOException if the port can't be bound
+     */
+    synchronized void start() throws IOException {
+        if (running) return;
+
+        serverSocket = new ServerSocket();
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        running = true;
+
+        Thread acceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptLoop();
+            }
+        }, "Simulator Accept");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+
+    /**
+     * Stop accepting connections and drop every client
+     */
+    void stop(){
+        running = false;
+        closeQuietly(serverSocket);
+
+        synchronized (clients) {
+            for (Socket client : clients) {
+                closeQuietly(client);
+            }
+            clients.clear();
+        }
+    }
+
+
+    /**
+     * Return the port the simulator is listening on
+     * @return Port number
+     */
+    int getPort(){
+        return (serverSocket != null) ? serverSocket.getLocalPort() : port;
+    }
+
+
+    /**
+     * Set the range of an input channel, as if its config register had been changed
+     * @param channelID Integer ID (0-15) of the input channel
+     * @param is10V true for 0-10V, false for 0-5V
+     */
+    synchronized void setInputRange(int channelID, boolean is10V){
+        // For inputs, bit 0 set means 10V
+        inputRegisters[Constants.getInputChannelConfigAddress(channelID)] = is10V ? 1 : 0;
+    }
+
+
+    /**
+     * Set the range of an output channel, as if its config register had been changed
+     * @param channelID Integer ID (0-15) of the output channel
+     * @param is10V true for 0-10V, false for 0-5V
+     */
+    synchronized void setOutputRange(int channelID, boolean is10V){
+        // For outputs, bit 0 set means 5V
+        holdingRegisters[Constants.getOutputChannelConfigAddress(channelID)] = is10V ? 0 : 1;
+    }
+
+
+    /**
+     * Open or close the door interlock. While it's open the HVPS output collapses regardless of its settings
+     * @param isOpen true to open the interlock
+     */
+    void setInterlockOpen(boolean isOpen){
+        this.isInterlockOpen = isOpen;
+    }
+
+    void setReferenceVoltage(double referenceVoltage) {
+        this.referenceVoltage = referenceVoltage;
+    }
+
+    void setSlewRate(double slewRate) {
+        this.slewRate = slewRate;
+    }
+
+    void setLoadResistance(double loadResistance) {
+        this.loadResistance = loadResistance;
+    }
+
+    void setNoise(double noise) {
+        this.noise = noise;
+    }
+
+    void setSetpointDelay(int setpointDelay) {
+        this.setpointDelay = setpointDelay;
+    }
+
+    void setResponseLatency(int responseLatency) {
+        this.responseLatency = responseLatency;
+    }
+
+
+    /**
+     * Main loop of the accept thread, which gives every client its own thread
+     */
+    private void acceptLoop(){
+        while (running) {
+            final Socket client;
+            try {
+                client = serverSocket.accept();
+                client.setTcpNoDelay(true);
+            } catch (IOException e) {
+                continue;
+            }
+
+            synchronized (clients) {
+                clients.add(client);
+            }
+
+            Thread clientThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    serveClient(client);
+                }
+            }, "Simulator Client " + client.getPort());
+            clientThread.setDaemon(true);
+            clientThread.start();
+        }
+    }
+
+
+    /**
+     * Answer the requests of a client, in order, until it disconnects
+     * @param client Socket of the client
+     */
+    private void serveClient(Socket client){
+        try {
+            DataInputStream in   = new DataInputStream(new BufferedInputStream(client.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(client.getOutputStream()));
+
+            while (running) {
+
+                // MBAP header
+                int transactionID = in.readUnsignedShort();
+                int protocolID    = in.readUnsignedShort();
+                int length        = in.readUnsignedShort();
+                if (protocolID != 0 || length < 2 || length > 254) break;
+
+                byte[] pdu = new byte[length - 1];
+                int unitID = in.readUnsignedByte();
+                in.readFully(pdu);
+
+
+                byte[] response = handleRequest(pdu);
+
+                int latency = responseLatency;
+                if (latency > 0) Thread.sleep(latency);
+
+                out.writeShort(transactionID);
+                out.writeShort(0);
+                out.writeShort(response.length + 1);
+                out.writeByte(unitID);
+                out.write(response);
+
+                // Hold off flushing while more pipelined requests are already waiting
+                if (in.available() == 0) out.flush();
+            }
+        }
+        catch (EOFException | SocketException e) {
+            // Client went away
+        }
+        catch (IOException | InterruptedException e) {
+            e.printStackTrace();
+        }
+        finally {
+            synchronized (clients) {
+                clients.remove(client);
+            }
+            closeQuietly(client);
+        }
+    }
+
+
+    /**
+     * Execute a single request against the register space
+     * @param pdu Function code and data of the request
+     * @return Function code and data of the response
+     */
+    private synchronized byte[] handleRequest(byte[] pdu){
+
+        int functionCode = pdu[0] & 0xFF;
+        updateModel(System.nanoTime());
+
+        switch (functionCode) {
+
+            case READ_HOLDING_REGISTERS:
+            case READ_INPUT_REGISTERS: {
+                if (pdu.length != 5) return exception(functionCode, ILLEGAL_DATA_VALUE);
+                int reference = getShort(pdu, 1);
+                int count     = getShort(pdu, 3);
+                if (count < 1 || count > 125) return exception(functionCode, ILLEGAL_DATA_VALUE);
+                if (reference + count > NUM_REGISTERS) return exception(functionCode, ILLEGAL_DATA_ADDRESS);
+
+                int[] registers = (functionCode == READ_HOLDING_REGISTERS) ? holdingRegisters : inputRegisters;
+                byte[] response = new byte[2 + 2 * count];
+                response[0] = (byte) functionCode;
+                response[1] = (byte) (2 * count);
+                for (int i = 0; i < count; i++) {
+                    putShort(response, 2 + 2 * i, registers[reference + i]);
+                }
+                return response;
+            }
+
+            case WRITE_SINGLE_REGISTER: {
+                if (pdu.length != 5) return exception(functionCode, ILLEGAL_DATA_VALUE);
+                int reference = getShort(pdu, 1);
+                if (!isWritable(reference, 1)) return exception(functionCode, ILLEGAL_DATA_ADDRESS);
+
+                holdingRegisters[reference] = getShort(pdu, 3);
+                outputsChanged();
+                return pdu.clone();
+            }
+
+            case WRITE_MULTIPLE_REGISTERS: {
+                if (pdu.length < 6) return exception(functionCode, ILLEGAL_DATA_VALUE);
+                int reference = getShort(pdu, 1);
+                int count     = getShort(pdu, 3);
+                if (count < 1 || count > 123 || pdu.length != 6 + 2 * count) return exception(functionCode, ILLEGAL_DATA_VALUE);
+                if (!isWritable(reference, count)) return exception(functionCode, ILLEGAL_DATA_ADDRESS);
+
+                for (int i = 0; i < count; i++) {
+                    holdingRegisters[reference + i] = getShort(pdu, 6 + 2 * i);
+                }
+                outputsChanged();
+
+                byte[] response = new byte[5];
+                System.arraycopy(pdu, 0, response, 0, 5);
+                return response;
+            }
+
+            default:
+                return exception(functionCode, ILLEGAL_FUNCTION);
+        }
+    }
+
+
+    /**
+     * Pass the current control channel settings on to the HVPS, which sees them after the setpoint delay
+     */
+    private void outputsChanged(){
+        double reference = referenceVoltage;
+
+        double enable         = getOutputVoltage(Configuration.getHvEnableChannel());
+        double voltageControl = getOutputVoltage(Configuration.getVoltageControlChannel());
+        double currentControl = getOutputVoltage(Configuration.getCurrentControlChannel());
+
+        pendingSetpoints.add(new double[] {
+                System.nanoTime() + setpointDelay * 1000000L,
+                (enable > reference / 2) ? 1.0 : 0.0,
+                Math.max(0.0, voltageControl / reference) * Constants.getPowerSupplyMaxVoltage(),
+                Math.max(0.0, currentControl / reference) * Constants.getPowerSupplyMaxCurrent()
+        });
+    }
+
+
+    /**
+     * Advance the HVPS model to the given time and refresh every input data register from it
+     * @param now Current time (ns)
+     */
+    private void updateModel(long now){
+        double elapsed = (lastUpdate == 0) ? 0.0 : (now - lastUpdate) / 1e9;
+        lastUpdate = now;
+
+
+        // Apply the setpoints that have reached the supply
+        while (!pendingSetpoints.isEmpty() && pendingSetpoints.peek()[0] <= now) {
+            double[] setpoint = pendingSetpoints.poll();
+            isEnabled      = setpoint[1] > 0.5;
+            voltageSetting = setpoint[2];
+            currentLimit   = setpoint[3];
+        }
+
+
+        // Slew the output towards its target, which is limited by the current the load would draw
+        double target = (isEnabled && !isInterlockOpen) ? voltageSetting : 0.0;
+        target = Math.min(target, currentLimit * loadResistance);
+
+        double step = slewRate * elapsed;
+        if (voltage < target) voltage = Math.min(target, voltage + step);
+        else voltage = Math.max(target, voltage - step);
+        if (isInterlockOpen) voltage = 0.0;
+
+        current = voltage / loadResistance;
+
+
+        // Report everything back through the inputs
+        double reference = referenceVoltage;
+        for (int channelID = 0; channelID < Constants.getNumChannels(); channelID++) {
+            setInputVoltage(channelID, 0.0);
+        }
+        setInputVoltage(Configuration.getReferenceVoltageChannel(), reference);
+        setInputVoltage(Configuration.getVoltageMonitorChannel(), (voltage / Constants.getPowerSupplyMaxVoltage()) * reference);
+        setInputVoltage(Configuration.getCurrentMonitorChannel(), (current / Constants.getPowerSupplyMaxCurrent()) * reference);
+    }
+
+
+    /**
+     * Method that returns the voltage an output channel is driving, honouring its range bit
+     * @param channelID Integer ID (0-15) of the output channel
+     * @return Voltage (V) of the channel
+     */
+    private double getOutputVoltage(int channelID){
+        int config = holdingRegisters[Constants.getOutputChannelConfigAddress(channelID)];
+        int data   = (short) holdingRegisters[Constants.getOutputChannelDataAddress(channelID)];
+
+        double maxVoltage = ((config & 1) == 0) ? 10.0 : 5.0;
+        return maxVoltage * ((double) data / (double) MAX_DATA_VALUE);
+    }
+
+
+    /**
+     * Method that sets the data register of an input channel to a voltage (plus noise), honouring its range bit
+     * @param channelID Integer ID (0-15) of the input channel
+     * @param inputVoltage Voltage (V) seen by the channel
+     */
+    private void setInputVoltage(int channelID, double inputVoltage){
+        int config = inputRegisters[Constants.getInputChannelConfigAddress(channelID)];
+        double maxVoltage = ((config & 1) == 0) ? 5.0 : 10.0;
+
+        double measured = inputVoltage + noise * random.nextGaussian();
+        int data = (int) Math.round(MAX_DATA_VALUE * (measured / maxVoltage));
+        data = Math.max(-MAX_DATA_VALUE, Math.min(MAX_DATA_VALUE, data));
+
+        inputRegisters[Constants.getInputChannelDataAddress(channelID)] = data & 0xFFFF;
+    }
+
+
+    /**
+     * Check whether a span of holding registers is one that the Acromag lets us write (output config or data)
+     * @param reference First register
+     * @param count Number of registers
+     * @return true if every register of the span can be written
+     */
+    private boolean isWritable(int reference, int count){
+        for (int address = reference; address < reference + count; address++) {
+            if (!isOutputRegister(address)) return false;
+        }
+        return true;
+    }
+
+    private boolean isOutputRegister(int address){
+        for (int channelID = 0; channelID < Constants.getNumChannels(); channelID++) {
+            if (address == Constants.getOutputChannelConfigAddress(channelID)) return true;
+            if (address == Constants.getOutputChannelDataAddress(channelID)) return true;
+        }
+        return false;
+    }
+
+
+    private byte[] exception(int functionCode, int exceptionCode){
+        return new byte[] {(byte) (functionCode | 0x80), (byte) exceptionCode};
+    }
+
+    private int getShort(byte[] bytes, int offset){
+        return ((bytes[offset] & 0xFF) << 8) | (bytes[offset + 1] & 0xFF);
+    }
+
+    private void putShort(byte[] bytes, int offset, int value){
+        bytes[offset]     = (byte) (value >> 8);
+        bytes[offset + 1] = (byte) value;
+    }
+
+    private void closeQuietly(Closeable closeable){
+        if (closeable == null) return;
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // Nothing more we can do with it
+        }
+    }
+}
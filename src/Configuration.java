@@ -1,7 +1,6 @@
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileWriter;
-import java.io.IOException;
+import java.io.StringWriter;
 import java.util.Scanner;
 
 /**
@@ -12,9 +11,30 @@ class Configuration {
     //private static final File configFile = new File("./lib/config.cfg");
     private static final File configFile = new File("/leia/HVPowerSupplyController/lib/config.cfg");
 
+    // Saves the config file in the background
+    private static final ConfigurationWriter writer = new ConfigurationWriter(configFile);
+
     private static String acromagIpAddress = "192.168.100.57";
     private static Integer modbusPort = 502;
     private static Integer pollPeriod = 1000;
+    private static Integer fastPollPeriod = 100;
+    private static Integer idlePollPeriod = 5000;
+    private static Integer outputRefreshPeriod = 60000;
+    private static Integer historyCapacity = 864000;
+
+    private static String sampleLogDirectory = "/leia/HVPowerSupplyController/data";
+    private static Integer sampleLogFileSize = 64;              // MB
+    private static Integer sampleLogRotationPeriod = 60;        // min
+
+    private static Integer controlServerPort = 0;               // 0 to disable
+
+    private static String eventLogFile = "/leia/HVPowerSupplyController/data/events.log";     // empty to disable
+    private static Integer eventLogFileSize = 16;               // MB
+    private static Integer eventLogFileCount = 5;
+
+    private static Integer watchdogPeriod = 20;                 // ms
+    private static Integer interlockTripTime = 500;             // ms
+    private static Integer interlockSettleTime = 3000;          // ms
     
     private static Integer referenceVoltageChannel = 8;
     private static Integer voltageMonitorChannel = 1;
@@ -50,6 +70,48 @@ class Configuration {
                     case "pollPeriod":
                         pollPeriod = Integer.valueOf(s.next());
                         break;
+                    case "fastPollPeriod":
+                        fastPollPeriod = Integer.valueOf(s.next());
+                        break;
+                    case "idlePollPeriod":
+                        idlePollPeriod = Integer.valueOf(s.next());
+                        break;
+                    case "outputRefreshPeriod":
+                        outputRefreshPeriod = Integer.valueOf(s.next());
+                        break;
+                    case "historyCapacity":
+                        historyCapacity = Integer.valueOf(s.next());
+                        break;
+                    case "sampleLogDirectory":
+                        sampleLogDirectory = s.next();
+                        break;
+                    case "sampleLogFileSize":
+                        sampleLogFileSize = Integer.valueOf(s.next());
+                        break;
+                    case "sampleLogRotationPeriod":
+                        sampleLogRotationPeriod = Integer.valueOf(s.next());
+                        break;
+                    case "controlServerPort":
+                        controlServerPort = Integer.valueOf(s.next());
+                        break;
+                    case "eventLogFile":
+                        eventLogFile = s.next();
+                        break;
+                    case "eventLogFileSize":
+                        eventLogFileSize = Integer.valueOf(s.next());
+                        break;
+                    case "eventLogFileCount":
+                        eventLogFileCount = Integer.valueOf(s.next());
+                        break;
+                    case "watchdogPeriod":
+                        watchdogPeriod = Integer.valueOf(s.next());
+                        break;
+                    case "interlockTripTime":
+                        interlockTripTime = Integer.valueOf(s.next());
+                        break;
+                    case "interlockSettleTime":
+                        interlockSettleTime = Integer.valueOf(s.next());
+                        break;
                     case "referenceVoltageChannel":
                         referenceVoltageChannel = Integer.valueOf(s.next());
                         break;
@@ -94,37 +156,75 @@ class Configuration {
 
     }
 
+    /**
+     * Method that reads the config file again while a device is running with it. The file is only taken on, here
+     * and by the device, if every setting in it is valid
+     * @param current Settings the device runs with now
+     * @return New settings of the device
+     * @throws FileNotFoundException if the config file doesn't exist
+     * @throws IllegalArgumentException if a setting in the file isn't valid
+     */
+    static DeviceConfiguration reloadConfiguration(DeviceConfiguration current) throws FileNotFoundException {
+        DeviceConfiguration configuration = DeviceConfiguration.load(configFile, current);
+        loadConfiguration();
+        return configuration;
+    }
+
+    /**
+     * Method that saves every setting to the config file. The file is written in the background, so this never
+     * waits on the filesystem
+     */
     static void writeConfiguration(){
 
-        try {
-            FileWriter w = new FileWriter(configFile);
+        StringWriter w = new StringWriter();
 
-            w.write("acromagIpAddress;" + acromagIpAddress);
-            w.write("\nmodbusPort;" + modbusPort);
-            w.write("\npollPeriod;" + pollPeriod);
+        w.write("acromagIpAddress;" + acromagIpAddress);
+        w.write("\nmodbusPort;" + modbusPort);
+        w.write("\npollPeriod;" + pollPeriod);
+        w.write("\nfastPollPeriod;" + fastPollPeriod);
+        w.write("\nidlePollPeriod;" + idlePollPeriod);
+        w.write("\noutputRefreshPeriod;" + outputRefreshPeriod);
+        w.write("\nhistoryCapacity;" + historyCapacity);
 
-            w.write("\nreferenceVoltageChannel;" + referenceVoltageChannel);
-            w.write("\nvoltageMonitorChannel;" + voltageMonitorChannel);
-            w.write("\ncurrentMonitorChannel;" + currentMonitorChannel);
+        w.write("\nsampleLogDirectory;" + sampleLogDirectory);
+        w.write("\nsampleLogFileSize;" + sampleLogFileSize);
+        w.write("\nsampleLogRotationPeriod;" + sampleLogRotationPeriod);
 
-            w.write("\nhvEnableChannel;" + hvEnableChannel);
-            w.write("\nvoltageControlChannel;" + voltageControlChannel);
-            w.write("\ncurrentControlChannel;" + currentControlChannel);
+        w.write("\ncontrolServerPort;" + controlServerPort);
 
-            w.write( "\nldEnableChannel;" + ldEnableChannel);
-            w.write( "\nldCurrentControlChannel;" + ldCurrentControlChannel);
+        w.write("\neventLogFile;" + eventLogFile);
+        w.write("\neventLogFileSize;" + eventLogFileSize);
+        w.write("\neventLogFileCount;" + eventLogFileCount);
 
-            w.write("\nmaxAllowablePowerSupplyVoltage;" + maxAllowablePowerSupplyVoltage);
+        w.write("\nwatchdogPeriod;" + watchdogPeriod);
+        w.write("\ninterlockTripTime;" + interlockTripTime);
+        w.write("\ninterlockSettleTime;" + interlockSettleTime);
 
-            w.write("\nmainWindowPosX;" + mainWindowPosX);
-            w.write("\nmainWindowPosY;" + mainWindowPosY);
+        w.write("\nreferenceVoltageChannel;" + referenceVoltageChannel);
+        w.write("\nvoltageMonitorChannel;" + voltageMonitorChannel);
+        w.write("\ncurrentMonitorChannel;" + currentMonitorChannel);
 
-            w.close();
-        }
-        catch (IOException exception){
+        w.write("\nhvEnableChannel;" + hvEnableChannel);
+        w.write("\nvoltageControlChannel;" + voltageControlChannel);
+        w.write("\ncurrentControlChannel;" + currentControlChannel);
 
-        }
+        w.write( "\nldEnableChannel;" + ldEnableChannel);
+        w.write( "\nldCurrentControlChannel;" + ldCurrentControlChannel);
+
+        w.write("\nmaxAllowablePowerSupplyVoltage;" + maxAllowablePowerSupplyVoltage);
+
+        w.write("\nmainWindowPosX;" + mainWindowPosX);
+        w.write("\nmainWindowPosY;" + mainWindowPosY);
+
+        writer.save(w.toString());
+    }
 
+    static void setWriteErrorHandler(ConfigurationWriter.ErrorHandler errorHandler){
+        writer.setErrorHandler(errorHandler);
+    }
+
+    static File getConfigFile() {
+        return configFile;
     }
 
     static String getAcromagIpAddress() {
@@ -139,6 +239,62 @@ class Configuration {
         return pollPeriod;
     }
 
+    static Integer getFastPollPeriod() {
+        return fastPollPeriod;
+    }
+
+    static Integer getIdlePollPeriod() {
+        return idlePollPeriod;
+    }
+
+    static Integer getOutputRefreshPeriod() {
+        return outputRefreshPeriod;
+    }
+
+    static Integer getHistoryCapacity() {
+        return historyCapacity;
+    }
+
+    static String getSampleLogDirectory() {
+        return sampleLogDirectory;
+    }
+
+    static Integer getSampleLogFileSize() {
+        return sampleLogFileSize;
+    }
+
+    static Integer getSampleLogRotationPeriod() {
+        return sampleLogRotationPeriod;
+    }
+
+    static Integer getControlServerPort() {
+        return controlServerPort;
+    }
+
+    static String getEventLogFile() {
+        return eventLogFile;
+    }
+
+    static Integer getEventLogFileSize() {
+        return eventLogFileSize;
+    }
+
+    static Integer getEventLogFileCount() {
+        return eventLogFileCount;
+    }
+
+    static Integer getWatchdogPeriod() {
+        return watchdogPeriod;
+    }
+
+    static Integer getInterlockTripTime() {
+        return interlockTripTime;
+    }
+
+    static Integer getInterlockSettleTime() {
+        return interlockSettleTime;
+    }
+
     static Integer getReferenceVoltageChannel() {
         return referenceVoltageChannel;
     }
@@ -195,6 +351,62 @@ class Configuration {
         Configuration.pollPeriod = pollPeriod;
     }
 
+    static void setFastPollPeriod(Integer fastPollPeriod) {
+        Configuration.fastPollPeriod = fastPollPeriod;
+    }
+
+    static void setIdlePollPeriod(Integer idlePollPeriod) {
+        Configuration.idlePollPeriod = idlePollPeriod;
+    }
+
+    static void setOutputRefreshPeriod(Integer outputRefreshPeriod) {
+        Configuration.outputRefreshPeriod = outputRefreshPeriod;
+    }
+
+    static void setHistoryCapacity(Integer historyCapacity) {
+        Configuration.historyCapacity = historyCapacity;
+    }
+
+    static void setSampleLogDirectory(String sampleLogDirectory) {
+        Configuration.sampleLogDirectory = sampleLogDirectory;
+    }
+
+    static void setSampleLogFileSize(Integer sampleLogFileSize) {
+        Configuration.sampleLogFileSize = sampleLogFileSize;
+    }
+
+    static void setSampleLogRotationPeriod(Integer sampleLogRotationPeriod) {
+        Configuration.sampleLogRotationPeriod = sampleLogRotationPeriod;
+    }
+
+    static void setControlServerPort(Integer controlServerPort) {
+        Configuration.controlServerPort = controlServerPort;
+    }
+
+    static void setEventLogFile(String eventLogFile) {
+        Configuration.eventLogFile = eventLogFile;
+    }
+
+    static void setEventLogFileSize(Integer eventLogFileSize) {
+        Configuration.eventLogFileSize = eventLogFileSize;
+    }
+
+    static void setEventLogFileCount(Integer eventLogFileCount) {
+        Configuration.eventLogFileCount = eventLogFileCount;
+    }
+
+    static void setWatchdogPeriod(Integer watchdogPeriod) {
+        Configuration.watchdogPeriod = watchdogPeriod;
+    }
+
+    static void setInterlockTripTime(Integer interlockTripTime) {
+        Configuration.interlockTripTime = interlockTripTime;
+    }
+
+    static void setInterlockSettleTime(Integer interlockSettleTime) {
+        Configuration.interlockSettleTime = interlockSettleTime;
+    }
+
     static void setReferenceVoltageChannel(Integer referenceVoltageChannel) {
         Configuration.referenceVoltageChannel = referenceVoltageChannel;
     }
@@ -0,0 +1,135 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches a config file on a thread of its own and lets a listener know whenever it has been changed, so that new
+ * settings can be picked up without restarting. Editors tend to save a file in several steps (or write a new file
+ * and move it into place), so the listener is only called once the file has been left alone for the quiet time
+ */
+class ConfigurationWatcher {
+
+    /**
+     * Receiver of changes to the file. Called on the watcher's thread
+     */
+    interface Listener {
+        void fileChanged(File file);
+    }
+
+    // Time (ms) the file has to be left alone before it is read
+    private final long QUIET_TIME = 250;
+
+    private final File file;
+    private final Listener listener;
+
+    private WatchService watchService;
+    private Thread thread;
+
+
+    /**
+     * Basic constructor
+     * @param file Config file to watch
+     * @param listener Receiver of every change to it
+     */
+    ConfigurationWatcher(File file, Listener listener){
+        this.file     = file.getAbsoluteFile();
+        this.listener = listener;
+    }
+
+
+    /**
+     * Start watching the file. The directory it's in has to exist, the file itself doesn't
+     * @throws IOException if the directory can't be watched
+     */
+    synchronized void start() throws IOException {
+        if (thread != null) return;
+
+        final WatchService service = FileSystems.getDefault().newWatchService();
+        try {
+            file.getParentFile().toPath().register(service, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY);
+        } catch (IOException e) {
+            service.close();
+            throw e;
+        }
+        watchService = service;
+
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                watch(service);
+            }
+        }, "Configuration Watcher " + file.getName());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+
+    /**
+     * Stop watching the file
+     */
+    synchronized void stop(){
+        if (thread == null) return;
+
+        try {
+            watchService.close();
+        } catch (IOException e) {
+            // Nothing more can be done, the thread stops either way
+        }
+        thread = null;
+        watchService = null;
+    }
+
+
+    /**
+     * Main loop of the watcher's thread
+     * @param service Service watching the directory of the file
+     */
+    private void watch(WatchService service){
+        try {
+            while (true) {
+                if (!isChanged(service.take())) continue;
+
+                // Wait for the file to be left alone before reading it
+                WatchKey key;
+                while ((key = service.poll(QUIET_TIME, TimeUnit.MILLISECONDS)) != null) {
+                    isChanged(key);
+                }
+
+                listener.fileChanged(file);
+            }
+        }
+        catch (ClosedWatchServiceException e) {
+            // Stopped
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+    /**
+     * Method that goes through the events of a key and re-arms it
+     * @param key Key of the watched directory
+     * @return true if any of the events were for the file
+     */
+    private boolean isChanged(WatchKey key){
+        boolean changed = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                changed = true;
+            } else if (file.getName().equals(((Path) event.context()).getFileName().toString())) {
+                changed = true;
+            }
+        }
+        key.reset();
+        return changed;
+    }
+}
@@ -0,0 +1,161 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Saves a config file on a thread of its own, so that whoever asks for the save (usually the Swing thread) never
+ * waits on a slow or unresponsive network filesystem. Each save is written to a temporary file next to the config
+ * file, forced to disk and then renamed over it, so the config file is always either the old one or the new one and
+ * never half written. The directory is then forced to disk too, so the rename survives a crash. On a filesystem that
+ * can't rename in one step the save fails and the old file is kept. Saves asked for while a write is in progress are
+ * collapsed into one write of the latest
+ *
+ * The writer's thread only runs while there is something to save, and isn't a daemon, so a save asked for just
+ * before the program exits is still finished
+ */
+class ConfigurationWriter {
+
+    /**
+     * Receiver of a save that failed. Called on the writer's thread
+     */
+    interface ErrorHandler {
+        void handleError(String message);
+    }
+
+    private final File file;
+    private final File tempFile;
+
+    private volatile ErrorHandler errorHandler;
+
+    // Latest contents waiting to be written, null if there are none. Guarded by this
+    private String pendingContents;
+    private Thread thread;
+
+
+    /**
+     * Basic constructor
+     * @param file Config file to save to
+     */
+    ConfigurationWriter(File file){
+        this.file     = file;
+        this.tempFile = new File(file.getAbsoluteFile().getParentFile(), "." + file.getName() + ".tmp");
+
+        this.errorHandler = new ErrorHandler() {
+            @Override
+            public void handleError(String message) {
+                EventLog.getInstance().log(EventLog.Severity.ERROR, EventLog.Type.CONFIGURATION, "Configuration", message);
+            }
+        };
+    }
+
+
+    void setErrorHandler(ErrorHandler errorHandler){
+        this.errorHandler = errorHandler;
+    }
+
+
+    /**
+     * Save new contents of the config file in the background. Returns straight away
+     * @param contents Complete contents of the file
+     */
+    synchronized void save(String contents){
+        pendingContents = contents;
+
+        if (thread != null) return;
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writePendingContents();
+            }
+        }, "Configuration Writer");
+        thread.start();
+    }
+
+
+    /**
+     * Main loop of the writer's thread, which keeps writing until nothing new has been asked for
+     */
+    private void writePendingContents(){
+        while (true) {
+            String contents;
+            synchronized (this) {
+                contents = pendingContents;
+                pendingContents = null;
+
+                if (contents == null) {
+                    thread = null;
+                    return;
+                }
+            }
+
+            try {
+                write(contents);
+            } catch (IOException e) {
+                errorHandler.handleError("Unable to save the configuration to " + file + ": " + e);
+            }
+        }
+    }
+
+
+    /**
+     * Method that replaces the config file in one step
+     * @param contents Complete contents of the file
+     * @throws IOException if the file couldn't be written or moved into place, in which case the old one is left
+     */
+    private void write(String contents) throws IOException {
+        try {
+            FileChannel channel = FileChannel.open(tempFile.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            try {
+                ByteBuffer buffer = Charset.defaultCharset().encode(contents);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                channel.force(true);
+            } finally {
+                channel.close();
+            }
+
+            // Replacing the file any other way could leave it half written, so keep the old one rather than risk that
+            try {
+                Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                throw new IOException("the filesystem can't replace it in one step, so the old one has been kept", e);
+            }
+
+            forceDirectory(file.getAbsoluteFile().getParentFile());
+        }
+        catch (IOException e) {
+            tempFile.delete();
+            throw e;
+        }
+    }
+
+
+    /**
+     * Method that forces a directory's entries to disk, which is what makes a rename inside it last through a crash
+     * @param directory Directory to force
+     * @throws IOException if the directory was opened but couldn't be forced
+     */
+    private void forceDirectory(File directory) throws IOException {
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ);
+        } catch (IOException e) {
+            // Some platforms (Windows) won't open a directory at all, the rename is as safe there as it can be made
+            return;
+        }
+
+        try {
+            channel.force(true);
+        } finally {
+            channel.close();
+        }
+    }
+}
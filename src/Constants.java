@@ -5,12 +5,12 @@
  */
 class Constants {
 
-    private static Double POWER_SUPPLY_MAX_VOLTAGE = 50.0;  // kV
-    private static Double POWER_SUPPLY_MAX_CURRENT = 1.5;   // mA
+    private final static double POWER_SUPPLY_MAX_VOLTAGE = 50.0;   // kV
+    private final static double POWER_SUPPLY_MAX_CURRENT = 1.5;    // mA
 
-    private static Double LASER_DIODE_ON_VOLTAGE  = 4.0;    // V
-    private static Double LASER_DIODE_MAX_CURRENT = 20.0;   // mA
-    private static Double VOLTAGE_PER_LD_CURRENT  = 0.01;   // V per mA
+    private final static double LASER_DIODE_ON_VOLTAGE  = 4.0;     // V
+    private final static double LASER_DIODE_MAX_CURRENT = 20.0;    // mA
+    private final static double VOLTAGE_PER_LD_CURRENT  = 0.01;    // V per mA
 
     private final static int[] INPUT_CHANNEL_CONFIG_ADDRESS = {
             0x0003, 0x0004, 0x0005, 0x0006,
@@ -39,23 +39,27 @@ class Constants {
             0x016A, 0x016B, 0x016C, 0x016D
     };
 
-    static Double getPowerSupplyMaxVoltage() {
+    static int getNumChannels() {
+        return INPUT_CHANNEL_DATA_ADDRESS.length;
+    }
+
+    static double getPowerSupplyMaxVoltage() {
         return POWER_SUPPLY_MAX_VOLTAGE;
     }
 
-    static Double getPowerSupplyMaxCurrent() {
+    static double getPowerSupplyMaxCurrent() {
         return POWER_SUPPLY_MAX_CURRENT;
     }
 
-    static Double getLaserDiodeOnVoltage() {
+    static double getLaserDiodeOnVoltage() {
         return LASER_DIODE_ON_VOLTAGE;
     }
 
-    static Double getLaserDiodeMaxCurrent() {
+    static double getLaserDiodeMaxCurrent() {
         return LASER_DIODE_MAX_CURRENT;
     }
 
-    static Double getVoltagePerLdCurrent() {
+    static double getVoltagePerLdCurrent() {
         return VOLTAGE_PER_LD_CURRENT;
     }
 
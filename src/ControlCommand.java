@@ -0,0 +1,127 @@
+import java.util.Locale;
+
+/**
+ * A single request to change the state of the controller, as sent by a client of the ControlServer. Commands are
+ * applied by the main loop through the same rules of the ControlRuntime that the GUI's requests go through, but to
+ * whichever states they're given, so that a batch can be tried out on copies before any of it takes effect
+ *
+ * Syntax (case insensitive):
+ *   HV ON | HV OFF | HV VOLTAGE <kV> | HV CURRENT <mA>
+ *   CONDITION <min> | ABORT
+ *   LD ON | LD OFF | LD CURRENT <mA>
+ *
+ * There is deliberately no way to acknowledge a tripped interlock from here. That takes someone at the GUI who has
+ * checked that the vault is clear
+ */
+final class ControlCommand {
+
+    enum Type {
+        HV_ON,
+        HV_OFF,
+        HV_VOLTAGE,
+        HV_CURRENT,
+        CONDITION,
+        ABORT,
+        LD_ON,
+        LD_OFF,
+        LD_CURRENT
+    }
+
+    private final Type type;
+    private final double value;
+    private final String text;
+
+
+    private ControlCommand(Type type, double value, String text){
+        this.type  = type;
+        this.value = value;
+        this.text  = text;
+    }
+
+
+    /**
+     * Method that parses one command
+     * @param text Command as sent by the client
+     * @return The command
+     * @throws IllegalArgumentException if the command isn't one we know or its value isn't a number
+     */
+    static ControlCommand parse(String text){
+        String trimmed = text.trim();
+        String[] values = trimmed.split("\\s+");
+        String[] words = trimmed.toUpperCase(Locale.ROOT).split("\\s+");
+
+        switch (words[0]) {
+            case "HV":
+                if (is(words, 2, "ON"))      return new ControlCommand(Type.HV_ON, 0, trimmed);
+                if (is(words, 2, "OFF"))     return new ControlCommand(Type.HV_OFF, 0, trimmed);
+                if (is(words, 3, "VOLTAGE")) return new ControlCommand(Type.HV_VOLTAGE, parseValue(values[2]), trimmed);
+                if (is(words, 3, "CURRENT")) return new ControlCommand(Type.HV_CURRENT, parseValue(values[2]), trimmed);
+                break;
+            case "CONDITION":
+                if (words.length == 2) return new ControlCommand(Type.CONDITION, parseValue(values[1]), trimmed);
+                break;
+            case "ABORT":
+                if (words.length == 1) return new ControlCommand(Type.ABORT, 0, trimmed);
+                break;
+            case "LD":
+                if (is(words, 2, "ON"))      return new ControlCommand(Type.LD_ON, 0, trimmed);
+                if (is(words, 2, "OFF"))     return new ControlCommand(Type.LD_OFF, 0, trimmed);
+                if (is(words, 3, "CURRENT")) return new ControlCommand(Type.LD_CURRENT, parseValue(values[2]), trimmed);
+                break;
+        }
+        throw new IllegalArgumentException("Unknown command \"" + trimmed + "\"");
+    }
+
+
+    /**
+     * Apply the command to a pair of states, by the rules of the runtime. Nothing is logged and nobody is notified.
+     * Must be called on the thread of the main loop, holding the runtime's request lock
+     * @param runtime Runtime whose rules the command is held to
+     * @param hv State of the power supply to change
+     * @param ld State of the laser diode to change
+     * @return false if the runtime refused the command
+     */
+    boolean apply(ControlRuntime runtime, PowerSupplyState hv, LaserDiodeState ld){
+        switch (type) {
+            case HV_ON:       return runtime.applyPowerSupplyEnabled(hv, true);
+            case HV_OFF:      return runtime.applyPowerSupplyEnabled(hv, false);
+            case HV_VOLTAGE:  return runtime.applyPowerSupplyVoltage(hv, value);
+            case HV_CURRENT:  return runtime.applyPowerSupplyCurrent(hv, value);
+            case CONDITION:   return value == Math.rint(value) && runtime.applyStartConditioning(hv, (int) value);
+            case ABORT:       return runtime.applyAbortConditioning(hv);
+            case LD_ON:       return runtime.applyLaserDiodeEnabled(ld, true);
+            case LD_OFF:      return runtime.applyLaserDiodeEnabled(ld, false);
+            case LD_CURRENT:  return runtime.applyLaserDiodeCurrent(ld, value);
+        }
+        return false;
+    }
+
+
+    private static boolean is(String[] words, int length, String second){
+        return words.length == length && words[1].equals(second);
+    }
+
+    private static double parseValue(String word){
+        try {
+            double value = Double.valueOf(word);
+            if (Double.isNaN(value) || Double.isInfinite(value)) throw new NumberFormatException();
+            return value;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("\"" + word + "\" is not a number");
+        }
+    }
+
+
+    Type getType() {
+        return type;
+    }
+
+    double getValue() {
+        return value;
+    }
+
+    @Override
+    public String toString() {
+        return text;
+    }
+}
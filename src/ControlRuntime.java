@@ -0,0 +1,978 @@
+import javax.management.JMException;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Everything needed to control the HV power supply, with no user interface of its own. The runtime owns the
+ * connection to the Acromag, the states of the power supply and laser diode, and the main loop with its software
+ * interlock. User interfaces attach to it as observers and act on it through its methods, so it can run headless
+ * on a machine with no display and never has to load AWT
+ */
+class ControlRuntime {
+
+    /**
+     * Receiver of what happens in the runtime. Called on the thread of the main loop (or of whoever changed the
+     * state), so implementations must hand anything slow off to their own thread
+     */
+    interface Observer {
+
+        // After every cycle of the main loop
+        void showTelemetry(Telemetry telemetry);
+
+        // Whenever a state changes outside of the main loop
+        void stateChanged();
+
+        // When the interlock trips. The system stays locked until acknowledgeInterlock() is called
+        void interlockTripped(String message);
+
+        // When the runtime stops, either because it was asked to or because of an error it can't recover from
+        void runtimeStopped();
+    }
+
+    private final String AUTHOR_CONTACT = "Brandon Lahmann (lahmann@mit.edu)";
+
+    // Longest conditioning ramp (min) that can be asked for. The GUI only offers up to an hour
+    private final int MAX_CONDITION_TIME = 24 * 60;
+
+    private final List<Observer> observers = new CopyOnWriteArrayList<Observer>();
+
+    // Settings of the device this runtime controls. Only replaced between cycles, so a cycle never sees two of them
+    private volatile DeviceConfiguration configuration;
+
+    // Settings waiting to be swapped in at the start of the next cycle, null if there are none
+    private final AtomicReference<DeviceConfiguration> pendingConfiguration = new AtomicReference<DeviceConfiguration>();
+
+    /**
+     * Commands submitted together, to be applied all or nothing in a single cycle
+     */
+    private static class Batch {
+        final List<ControlCommand> commands;
+        final CompletableFuture<Long> future;
+
+        Batch(List<ControlCommand> commands, CompletableFuture<Long> future){
+            this.commands = commands;
+            this.future   = future;
+        }
+    }
+
+    // Batches waiting for the start of the next cycle, and those applied in the current cycle waiting for its output
+    // frame to be sent
+    private final ConcurrentLinkedQueue<Batch> pendingBatches = new ConcurrentLinkedQueue<Batch>();
+    private final List<Batch> appliedBatches = new ArrayList<Batch>();
+
+    // Held while the states are being changed, so that a batch is never interleaved with another request
+    private final Object requestLock = new Object();
+
+    // Copies of the states that a batch is tried out on before it's applied, so that a refused batch never touches them
+    private final PowerSupplyState hvScratch = new PowerSupplyState();
+    private final LaserDiodeState ldScratch = new LaserDiodeState();
+
+    // Local socket through which scripts can control the system
+    private ControlServer controlServer;
+
+    // Connection to the Acromag
+    private AcromagConnection connection;
+    private AcromagController controller;
+
+    // Drives pollCycle() at a fixed rate
+    private ControlScheduler scheduler;
+
+    // Software interlock, which watches the readings far more often than the main loop runs
+    private InterlockWatchdog watchdog;
+
+    // Picks the period of the main loop from what the system is doing
+    private PollRatePolicy pollRatePolicy;
+
+    // Number of watchdog trips the main loop has dealt with
+    private long handledTripCount = 0;
+
+    // Time (ns) at which the previous cycle started, 0 before the first cycle
+    private long lastCycleTime = 0;
+
+    // Output channels that a remap has left unused and that still have to be zeroed (bit n for channel n)
+    private int releasedOutputChannels = 0;
+
+    // Whether the previous cycle advanced the conditioning ramp. A ramp that has only just started mustn't take all
+    // the time since the previous cycle as a head start, or it would step the setting rather than ramp it
+    private boolean wasRamping = false;
+
+    // Every sample taken by the main loop, and its log on disk
+    private SampleHistory history;
+    private final PollSample sample = new PollSample();
+    private SampleLog sampleLog;
+
+    // Number of the current cycle of the main loop, counted from 1
+    private volatile long cycleCount = 0;
+
+    private volatile boolean running = false;
+    private volatile boolean systemLocked = true;
+    private volatile boolean interlockTripped = false;
+    private volatile String statusMessage = "Initializing ... ";
+    private volatile boolean statusError = true;
+
+    // Status shown while connected, which is only rebuilt when the address changes so that a cycle doesn't allocate
+    private String connectedAddress;
+    private String connectedMessage;
+
+    private final PowerSupplyState hvState = new PowerSupplyState();
+    private final LaserDiodeState ldState = new LaserDiodeState();
+
+
+    /**
+     * Basic constructor
+     * @param configuration Settings of the device to control
+     */
+    ControlRuntime(DeviceConfiguration configuration){
+        this.configuration = configuration;
+    }
+
+
+    /**
+     * Main method that runs the controller without a user interface until the process is stopped
+     */
+    public static void main(String ... args){
+        Configuration.loadConfiguration();
+
+        final ControlRuntime runtime = new ControlRuntime(DeviceConfiguration.fromConfiguration());
+        runtime.start();
+        runtime.watchConfigurationFile();
+
+        // Close the sample log and let go of the Acromag cleanly when the process is told to stop
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runtime.stop();
+            }
+        }, "Shutdown"));
+    }
+
+
+    /**
+     * Pick up changes to Configuration's config file while running. The file is only applied once it reads as a
+     * complete, valid set of settings; until then the runtime keeps what it has
+     */
+    void watchConfigurationFile(){
+        final File file = Configuration.getConfigFile();
+        ConfigurationWatcher watcher = new ConfigurationWatcher(file, new ConfigurationWatcher.Listener() {
+            @Override
+            public void fileChanged(File file) {
+                try {
+                    applyConfiguration(Configuration.reloadConfiguration(configuration));
+                } catch (FileNotFoundException e) {
+                    logEvent(EventLog.Severity.WARNING, EventLog.Type.CONFIGURATION, "Config file " + file + " has gone, keeping the current settings");
+                } catch (IllegalArgumentException e) {
+                    logEvent(EventLog.Severity.WARNING, EventLog.Type.CONFIGURATION, "Ignoring config file " + file + ": " + e.getMessage());
+                }
+            }
+        });
+
+        try {
+            watcher.start();
+        } catch (IOException e) {
+            logEvent(EventLog.Severity.WARNING, EventLog.Type.CONFIGURATION, "Unable to watch config file " + file + " for changes: " + e.getMessage());
+        }
+    }
+
+
+    /**
+     * Connect to the Acromag and start the main loop. The system starts locked and unlocks once a cycle succeeds
+     */
+    synchronized void start(){
+        if (running) return;
+        running = true;
+
+        final DeviceConfiguration configuration = this.configuration;
+
+        // Start connecting to the Acromag in the background
+        connection = new AcromagConnection(configuration.getAcromagIpAddress(), configuration.getModbusPort(), configuration.getPollPeriod());
+        controller = new AcromagController(connection, configuration);
+        connection.start();
+
+        // Publish the statistics of the connection over JMX so that a slow loop can be diagnosed. Starting the MBean
+        // server takes longer than everything else here put together, so it's done off to the side
+        Thread registration = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    connection.getStatistics().register(configuration.getName());
+                } catch (JMException e) {
+                    logEvent(EventLog.Severity.WARNING, EventLog.Type.INTERNAL, "Unable to publish Modbus statistics over JMX: " + e.getMessage());
+                }
+            }
+        }, "JMX Registration");
+        registration.setDaemon(true);
+        registration.start();
+
+        // Allocate the history up front so that recording never allocates
+        history = new SampleHistory(configuration.getHistoryCapacity());
+
+        // Log every sample to disk in the background
+        sampleLog = new SampleLog(history, new File(configuration.getSampleLogDirectory()),
+                configuration.getSampleLogFileSize() * 1024L * 1024L,
+                TimeUnit.MINUTES.toMillis(configuration.getSampleLogRotationPeriod()),
+                new SampleLog.ErrorHandler() {
+                    @Override
+                    public void handleError(String message) {
+                        logEvent(EventLog.Severity.ERROR, EventLog.Type.SAMPLE_LOG, message);
+                    }
+                });
+        sampleLog.start();
+
+        // Initialize our states and lock the system until connection is confirmed
+        hvState.setEnabled(false);
+        ldState.setEnabled(false);
+        lockSystem();
+
+        // Start the interlock before the main loop so that nothing is ever enabled without it
+        watchdog = new InterlockWatchdog(controller, hvState, configuration, new InterlockWatchdog.TripHandler() {
+            @Override
+            public void interlockTripped(double voltageReading, double voltageSetting) {
+                // The watchdog has already turned everything off, make sure nothing turns it back on
+                lockSystem();
+            }
+        });
+        handledTripCount = 0;
+        watchdog.start();
+
+        pollRatePolicy = new PollRatePolicy(configuration);
+        scheduler = new ControlScheduler("Control Loop " + configuration.getName(), configuration.getPollPeriod(), ControlScheduler.OverrunPolicy.SKIP);
+        scheduler.start(new Runnable() {
+            @Override
+            public void run() {
+                pollCycle();
+            }
+        });
+
+        // Let scripts on this machine control the system
+        int serverPort = configuration.getControlServerPort();
+        if (serverPort > 0) {
+            controlServer = new ControlServer(this, serverPort);
+            try {
+                controlServer.start();
+            } catch (IOException e) {
+                logEvent(EventLog.Severity.ERROR, EventLog.Type.CONTROL_SERVER, "Unable to start the control server on port " + serverPort + ": " + e.getMessage());
+                controlServer = null;
+            }
+        }
+    }
+
+
+    /**
+     * Stop the main loop, close the sample log and disconnect from the Acromag
+     */
+    synchronized void stop(){
+        if (!running) return;
+        running = false;
+
+        if (controlServer != null) controlServer.stop();
+        scheduler.stop();
+        watchdog.stop();
+
+        // Keep any settings that arrived too late for a cycle, so the next start uses them
+        DeviceConfiguration next = pendingConfiguration.getAndSet(null);
+        if (next != null) configuration = next;
+
+        sampleLog.close();
+        controller.disconnect();
+
+        // Free the name for the statistics of the next connection
+        try {
+            connection.getStatistics().unregister();
+        } catch (JMException e) {
+            logEvent(EventLog.Severity.WARNING, EventLog.Type.INTERNAL, "Unable to withdraw Modbus statistics from JMX: " + e.getMessage());
+        }
+
+        // Nothing will apply whatever is still waiting
+        Batch batch;
+        while ((batch = pendingBatches.poll()) != null) {
+            batch.future.completeExceptionally(new IllegalStateException("The controller has stopped"));
+        }
+
+        for (Observer observer : observers) {
+            observer.runtimeStopped();
+        }
+    }
+
+
+    void addObserver(Observer observer){
+        observers.add(observer);
+    }
+
+    void removeObserver(Observer observer){
+        observers.remove(observer);
+    }
+
+
+    /**
+     * Apply a change to the settings of the device. The new settings are swapped in whole at the start of the next
+     * cycle, and only what they change is touched: the connection is only re-established if the address changed,
+     * and the cached channel configurations are only dropped if a channel was remapped. The history, the sample
+     * log and the control server keep their settings until the runtime is next started
+     * @param configuration New settings of the device
+     */
+    void applyConfiguration(DeviceConfiguration configuration){
+        synchronized (this) {
+            if (!running) {
+                this.configuration = configuration;
+                return;
+            }
+            pendingConfiguration.set(configuration);
+        }
+        scheduler.wakeUp();
+    }
+
+
+    /**
+     * Swap in settings given since the last cycle. Runs on the thread of the main loop
+     */
+    private void applyPendingConfiguration(){
+        DeviceConfiguration next = pendingConfiguration.getAndSet(null);
+        if (next == null) return;
+
+        DeviceConfiguration previous = configuration;
+        configuration = next;
+
+        controller.setConfiguration(next);
+        watchdog.setConfiguration(next);
+        pollRatePolicy.setConfiguration(next);
+
+        // What each channel holds has to be found out again, and every output written to its new channel. The
+        // channels that are no longer used are zeroed in the same frame, or they'd keep HV enabled or set
+        if (!next.sameChannels(previous)) {
+            releasedOutputChannels = (releasedOutputChannels | getOutputChannels(previous)) & ~getOutputChannels(next);
+            controller.invalidateChannelConfiguration();
+            controller.requestFullOutputRefresh();
+        }
+
+        // Settings above a lowered limit would only be clamped on the way out, leaving the watchdog expecting more
+        // than the power supply was asked for. A ramp was heading for the old limit, so it's stopped
+        if (next.getMaxAllowablePowerSupplyVoltage() < previous.getMaxAllowablePowerSupplyVoltage()) {
+            abortConditioning();
+            synchronized (requestLock) {
+                if (hvState.getVoltageSetting() > next.getMaxAllowablePowerSupplyVoltage()) {
+                    hvState.setVoltageSetting(next.getMaxAllowablePowerSupplyVoltage());
+                    logEvent(EventLog.Severity.INFO, EventLog.Type.CONFIGURATION, "HV setting lowered to the new limit of " + next.getMaxAllowablePowerSupplyVoltage() + " kV");
+                }
+            }
+            notifyStateChanged();
+        }
+
+        if (!next.sameWatchdog(previous) || !next.sameChannels(previous) || !next.samePolling(previous)) {
+            watchdog.wakeUp();
+        }
+
+        if (!next.samePolling(previous)) {
+            scheduler.setPeriod(pollRatePolicy.choosePeriod(hvState, ldState, systemLocked, false));
+        }
+
+        if (!next.sameAddress(previous)) {
+            logEvent(EventLog.Severity.INFO, EventLog.Type.CONNECTION, "Acromag address changed, connecting to " + next.getAcromagIpAddress() + ":" + next.getModbusPort());
+            connection.setAddress(next.getAcromagIpAddress(), next.getModbusPort());
+        }
+
+        if (!next.sameStartupSettings(previous)) {
+            logEvent(EventLog.Severity.INFO, EventLog.Type.CONFIGURATION, "New history, sample log and control server settings will be used once the controller is restarted");
+        }
+    }
+
+
+    /**
+     * Convenience function for finding the output channels that a set of settings drives
+     * @param configuration Settings of the device
+     * @return Bit n set for every output channel n in use
+     */
+    private static int getOutputChannels(DeviceConfiguration configuration){
+        return (1 << configuration.getHvEnableChannel())
+                | (1 << configuration.getVoltageControlChannel())
+                | (1 << configuration.getCurrentControlChannel())
+                | (1 << configuration.getLdEnableChannel())
+                | (1 << configuration.getLdCurrentControlChannel());
+    }
+
+
+    // ************************************************************************************
+    // Requests from the user, safe from any thread. Each returns false if it was refused
+    // ************************************************************************************
+
+    boolean setPowerSupplyEnabled(boolean enabled){
+        boolean aborted;
+        synchronized (requestLock) {
+            boolean wasConditioning = hvState.isConditioning();
+            if (!applyPowerSupplyEnabled(hvState, enabled)) return false;
+            aborted = wasConditioning && !hvState.isConditioning();
+        }
+        if (aborted) logEvent(EventLog.Severity.INFO, EventLog.Type.CONDITIONING, "Conditioning aborted");
+        notifyStateChanged();
+        return true;
+    }
+
+    boolean setPowerSupplyVoltage(double voltage){
+        synchronized (requestLock) {
+            if (!applyPowerSupplyVoltage(hvState, voltage)) return false;
+        }
+        notifyStateChanged();
+        return true;
+    }
+
+    boolean setPowerSupplyCurrent(double current){
+        synchronized (requestLock) {
+            if (!applyPowerSupplyCurrent(hvState, current)) return false;
+        }
+        notifyStateChanged();
+        return true;
+    }
+
+    boolean startConditioning(int conditionTime){
+        synchronized (requestLock) {
+            if (!applyStartConditioning(hvState, conditionTime)) return false;
+        }
+        notifyStateChanged();
+        return true;
+    }
+
+    boolean abortConditioning(){
+        synchronized (requestLock) {
+            if (!applyAbortConditioning(hvState)) return false;
+        }
+        logEvent(EventLog.Severity.INFO, EventLog.Type.CONDITIONING, "Conditioning aborted");
+        notifyStateChanged();
+        return true;
+    }
+
+    boolean setLaserDiodeEnabled(boolean enabled){
+        synchronized (requestLock) {
+            if (!applyLaserDiodeEnabled(ldState, enabled)) return false;
+        }
+        notifyStateChanged();
+        return true;
+    }
+
+    boolean setLaserDiodeCurrent(double current){
+        synchronized (requestLock) {
+            if (!applyLaserDiodeCurrent(ldState, current)) return false;
+        }
+        notifyStateChanged();
+        return true;
+    }
+
+
+    // ************************************************************************************
+    // The rules each request is held to, applied to whichever states they're given so that a batch can be tried
+    // out on copies first. None of them log or notify anyone. Must be called holding requestLock
+    // ************************************************************************************
+
+    boolean applyPowerSupplyEnabled(PowerSupplyState hv, boolean enabled){
+        if (enabled && isLocked()) return false;
+
+        // Turning it off also stops any conditioning
+        hv.setEnabled(enabled);
+        return true;
+    }
+
+    boolean applyPowerSupplyVoltage(PowerSupplyState hv, double voltage){
+        if (isLocked() || !hv.isEnabled() || hv.isConditioning()) return false;
+        if (voltage < 0 || voltage > configuration.getMaxAllowablePowerSupplyVoltage()) return false;
+
+        hv.setVoltageSetting(voltage);
+        return true;
+    }
+
+    boolean applyPowerSupplyCurrent(PowerSupplyState hv, double current){
+        if (isLocked() || !hv.isEnabled()) return false;
+        if (current < 0 || current > Constants.getPowerSupplyMaxCurrent()) return false;
+
+        hv.setCurrentSetting(current);
+        return true;
+    }
+
+    boolean applyStartConditioning(PowerSupplyState hv, int conditionTime){
+        if (isLocked() || !hv.isEnabled() || hv.isConditioning()) return false;
+        if (conditionTime <= 0 || conditionTime > MAX_CONDITION_TIME) return false;
+
+        hv.startConditioning(conditionTime, configuration.getMaxAllowablePowerSupplyVoltage());
+        return true;
+    }
+
+    boolean applyAbortConditioning(PowerSupplyState hv){
+        if (!hv.isConditioning()) return false;
+
+        hv.stopConditioning();
+        return true;
+    }
+
+    boolean applyLaserDiodeEnabled(LaserDiodeState ld, boolean enabled){
+        if (enabled && isLocked()) return false;
+
+        ld.setEnabled(enabled);
+        return true;
+    }
+
+    boolean applyLaserDiodeCurrent(LaserDiodeState ld, double current){
+        if (isLocked() || !ld.isEnabled()) return false;
+        if (current < 0 || current > Constants.getLaserDiodeMaxCurrent()) return false;
+
+        ld.setCurrentSetting(current);
+        return true;
+    }
+
+
+    /**
+     * Release the system after the interlock has tripped. Whoever calls this is confirming that it's safe to do so
+     * @return false if the interlock wasn't tripped
+     */
+    boolean acknowledgeInterlock(){
+        synchronized (requestLock) {
+            if (!interlockTripped) return false;
+
+            interlockTripped = false;
+            watchdog.reset();
+            logEvent(EventLog.Severity.INFO, EventLog.Type.INTERLOCK, "Interlock acknowledged");
+        }
+        notifyStateChanged();
+        return true;
+    }
+
+
+    /**
+     * Submit commands to be applied together at the start of the next cycle, so that they all go out to the Acromag
+     * in the same output frame. If any one of them is refused, none of them are applied
+     * @param commands Commands to apply, in order
+     * @return Future completed with the number of the cycle that sent the commands to the Acromag. It fails with a
+     *         CommandRefusedException if the batch was refused, or a CycleFailedException if the batch was applied
+     *         but the cycle couldn't send it
+     */
+    CompletableFuture<Long> submit(List<ControlCommand> commands){
+        CompletableFuture<Long> future = new CompletableFuture<Long>();
+
+        synchronized (this) {
+            if (!running) {
+                future.completeExceptionally(new IllegalStateException("The controller is not running"));
+                return future;
+            }
+            pendingBatches.add(new Batch(commands, future));
+        }
+
+        // Don't leave the batch waiting out an idle period
+        scheduler.wakeUp();
+        return future;
+    }
+
+
+    /**
+     * Apply every batch that was submitted since the last cycle. Runs on the thread of the main loop
+     * @param cycle Number of the cycle
+     */
+    private void applyPendingBatches(long cycle){
+        if (pendingBatches.isEmpty()) return;
+
+        Batch batch;
+        while ((batch = pendingBatches.poll()) != null) {
+            ControlCommand refused = null;
+            boolean aborted = false;
+
+            synchronized (requestLock) {
+
+                // Try the whole batch out on copies of the states, so that nothing is touched unless every command
+                // is accepted
+                hvScratch.copySettingsFrom(hvState);
+                ldScratch.copySettingsFrom(ldState);
+
+                for (ControlCommand command : batch.commands) {
+                    if (!command.apply(this, hvScratch, ldScratch)) {
+                        refused = command;
+                        break;
+                    }
+                }
+
+                // Take on everything the batch did in one go. The voltage setting only counts as a step if the
+                // batch as a whole moved it
+                if (refused == null) {
+                    boolean wasConditioning = hvState.isConditioning();
+                    hvState.copySettingsFrom(hvScratch);
+                    ldState.copySettingsFrom(ldScratch);
+                    aborted = wasConditioning && !hvState.isConditioning();
+                }
+            }
+
+            if (refused != null) {
+                batch.future.completeExceptionally(new Exceptions.CommandRefusedException(cycle, refused));
+            } else {
+                if (aborted) logEvent(EventLog.Severity.INFO, EventLog.Type.CONDITIONING, "Conditioning aborted");
+                notifyStateChanged();
+                appliedBatches.add(batch);
+            }
+        }
+    }
+
+
+    /**
+     * Let everyone waiting on the batches applied in this cycle know whether the cycle sent them to the Acromag
+     * @param cycle Number of the cycle
+     * @param error What stopped the cycle from sending them, null if it did
+     */
+    private void completeAppliedBatches(long cycle, Exception error){
+        if (appliedBatches.isEmpty()) return;
+
+        for (Batch batch : appliedBatches) {
+            if (error == null) {
+                batch.future.complete(cycle);
+            } else {
+                batch.future.completeExceptionally(new Exceptions.CycleFailedException(cycle, error));
+            }
+        }
+        appliedBatches.clear();
+    }
+
+
+    /**
+     * A single cycle of the main loop
+     */
+    private void pollCycle(){
+
+        // Time since the previous cycle, which sets how far along any conditioning ramp should be
+        long cycleTime = System.nanoTime();
+        double elapsed = (lastCycleTime == 0) ? 0.0 : (cycleTime - lastCycleTime) / 1e6;
+        lastCycleTime = cycleTime;
+
+        long cycle = ++cycleCount;
+
+        try {
+
+            // Deal with the watchdog tripping since the last cycle before anything else
+            checkWatchdog();
+
+            // Take on any new settings so the whole cycle runs with them
+            applyPendingConfiguration();
+
+            // Apply whatever scripts have asked for since the last cycle, so it goes out in this cycle's frame
+            applyPendingBatches(cycle);
+
+            // Advance any conditioning ramp by the time that has actually passed. This is done under the lock so that
+            // the ramp can't move the setting after it has been aborted or HV turned off
+            synchronized (requestLock) {
+                boolean ramping = hvState.isConditioning();
+                if (ramping && wasRamping) hvState.rampVoltage(elapsed, configuration.getMaxAllowablePowerSupplyVoltage());
+                wasRamping = ramping;
+            }
+
+            // If we're not connected there's nothing we can do this cycle, the connection is re-established in the background
+            if (!controller.isConnected()) {
+                // Notify the user that we are not connected
+                setStatus("Attempting to connect to Acromag at " + configuration.getAcromagIpAddress() + " ...", true);
+                throw new Exceptions.AcromagConnectionException(configuration.getAcromagIpAddress());
+            }
+
+            // Update the Acromag settings to match our internal state (written together in one frame)
+            controller.beginOutputFrame();
+            controller.zeroOutputChannels(releasedOutputChannels);
+            controller.setPowerSupplyEnable(hvState.isEnabled());
+            controller.setPowerSupplyVoltage(hvState.getVoltageSetting());
+            controller.setPowerSupplyCurrent(hvState.getCurrentSetting());
+
+            controller.setLdEnable(ldState.isEnabled());
+            controller.setLaserDiodeCurrent(ldState.getCurrentSetting());
+
+            // Send the frame and sample every input channel in the same exchange so that the cycle costs one round trip
+            InputBuffer inputs = controller.commitOutputFrameAndReadInputs();
+            releasedOutputChannels = 0;
+            completeAppliedBatches(cycle, null);
+
+
+            // Get the readings from the Acromag and update our power supply state
+            hvState.setVoltageReading(controller.getPowerSupplyVoltage(inputs));
+            hvState.setCurrentReading(controller.getPowerSupplyCurrent(inputs));
+
+
+            // Record the sample before acting on the watchdog so that the one taken as it trips is kept
+            recordSample(inputs);
+
+
+            // If the watchdog tripped while this cycle's frame was on its way, the frame may have turned things back on
+            checkWatchdog();
+
+
+            // If we made it to the end, there are no errors. Unlock the system unless a tripped interlock is still waiting to be acknowledged
+            if (interlockTripped) {
+                lockSystem();
+                setStatus("Interlock tripped, waiting for it to be acknowledged", true);
+            } else {
+                unlockSystem();
+            }
+            adjustPollRate(true);
+            publishTelemetry();
+        }
+
+        // Something has gone wrong
+        catch (Exception e) {
+
+            // Anything applied this cycle that didn't make it out to the Acromag has failed
+            completeAppliedBatches(cycle, e);
+
+            // We want to lock the system regardless of error
+            lockSystem();
+            adjustPollRate(false);
+
+            // Log what went wrong
+            logCycleFailure(e);
+
+            // Make an attempt to turn off the system directly (if we're here this will likely fail)
+            try {
+                controller.requestFullOutputRefresh();
+                controller.beginOutputFrame();
+                controller.zeroOutputChannels(releasedOutputChannels);
+                controller.setPowerSupplyEnable(false);
+                controller.setLdEnable(false);
+                controller.commitOutputFrame();
+                releasedOutputChannels = 0;
+            } catch (Exception error) {
+                // Inform the user we failed
+                logEvent(EventLog.Severity.ERROR, EventLog.Type.CONNECTION, "Controller is unable to confirm the state of the HVPS");
+            } finally {
+
+                // This means we have an issue connecting to the Acromag
+                if (e instanceof Exceptions.AcromagConnectionException) {
+                    // Without a connection, there's nothing more that can be done
+                }
+
+
+                // This means that despite being connected, we somehow failed to communicate with the Acromag
+                // A precisely timed disconnection could trip this
+                else if (e instanceof Exceptions.ReadInputVoltageException || e instanceof Exceptions.WriteOutputVoltageException) {
+                    // Without a connection, there's nothing more that can be done
+                }
+
+
+                // This means we have a connection to the Acromag but the HVPS appears to be off or disconnected
+                else if (e instanceof Exceptions.BadReferenceVoltageException) {
+                    // Notify the user that there's something wrong with the connection
+                    setStatus("Bad connection between Acromag and HVPS.", true);
+                }
+
+
+                // This means that our connection is fine, but the HVPS is not behaving the way we're requesting
+                // Most likely it's a hardware interlock (the door) but could also indicate hardware issues
+                else if (e instanceof Exceptions.InconsistentReadingsException) {
+
+                    // Since the door may have been opened, force the user to address the issue for safety reasons
+                    String message = "The voltage readings are inconsistent with this controller's expectations.\n";
+                    message += "This is likely due to the door interlock being tripped.\n";
+                    message += "\n";
+                    message += "The HV Power Supply has been attempted to be turned off.\n";
+                    message += "To continue, VISUALLY verify that all personnel have evacuated the vault before clearing this message";
+
+                    // The system stays locked until someone acknowledges the trip
+                    interlockTripped = true;
+                    setStatus("Interlock tripped, waiting for it to be acknowledged", true);
+
+                    publishTelemetry();
+                    for (Observer observer : observers) {
+                        observer.interlockTripped(message);
+                    }
+                }
+
+
+                // This means we hit an exception that hasn't been accounted for
+                else {
+
+                    // Let the user know we're in unknown territory
+                    EventLog.getInstance().log(EventLog.Severity.ERROR, EventLog.Type.INTERNAL, configuration.getName(), -1, null,
+                            "Controller hit an unidentified exception, possibly a runtime error. Contact " + AUTHOR_CONTACT + " if the issue persist", e);
+
+                    stop();
+                }
+
+                publishTelemetry();
+            }
+        }
+    }
+
+
+    /**
+     * Trip the interlock if the watchdog has tripped since we last checked
+     * @throws Exceptions.InconsistentReadingsException if it has
+     */
+    private void checkWatchdog() throws Exceptions.InconsistentReadingsException {
+        long tripCount = watchdog.getTripCount();
+        if (tripCount == handledTripCount) return;
+
+        handledTripCount = tripCount;
+        throw new Exceptions.InconsistentReadingsException(watchdog.getTripReading(), watchdog.getTripSetting());
+    }
+
+
+    private void lockSystem(){
+
+        // Disable both internal states
+        synchronized (requestLock) {
+            hvState.setEnabled(false);
+            ldState.setEnabled(false);
+
+            systemLocked = true;
+        }
+    }
+
+    private void unlockSystem(){
+        systemLocked = false;
+
+        // Show that we are connected
+        String address = controller.getAddress();
+        if (!address.equals(connectedAddress)) {
+            connectedAddress = address;
+            connectedMessage = "Connected to " + address;
+        }
+        setStatus(connectedMessage, false);
+    }
+
+    private void setStatus(String message, boolean isError){
+        statusMessage = message;
+        statusError   = isError;
+    }
+
+    private void recordSample(InputBuffer inputs){
+        sample.setInputs(inputs);
+        sample.setReferenceVoltage(inputs.getVoltage(configuration.getReferenceVoltageChannel()));
+        sample.setVoltageReading(hvState.getVoltageReading());
+        sample.setCurrentReading(hvState.getCurrentReading());
+        sample.setVoltageSetting(hvState.getVoltageSetting());
+        sample.setCurrentSetting(hvState.getCurrentSetting());
+        sample.setLdCurrentSetting(ldState.getCurrentSetting());
+        sample.setInterlockCount(watchdog.getDisagreementCount());
+        sample.setFlags(0);
+        sample.setFlag(PollSample.HV_ENABLED, hvState.isEnabled());
+        sample.setFlag(PollSample.LD_ENABLED, ldState.isEnabled());
+        sample.setFlag(PollSample.LOCKED, systemLocked);
+        sample.setFlag(PollSample.CONDITIONING, hvState.isConditioning());
+        history.append(sample);
+    }
+
+    /**
+     * Set the period until the next cycle from what the system is doing now
+     * @param hasReading Whether this cycle read the power supply
+     */
+    private void adjustPollRate(boolean hasReading){
+        scheduler.setPeriod(pollRatePolicy.choosePeriod(hvState, ldState, systemLocked, hasReading));
+    }
+
+    private void publishTelemetry(){
+        if (observers.isEmpty()) return;
+
+        Telemetry telemetry = new Telemetry(System.currentTimeMillis(), systemLocked, statusMessage, statusError,
+                hvState.getVoltageReading(), hvState.getCurrentReading(), ldState.getCurrentSetting(), scheduler,
+                pollRatePolicy.getMode());
+        for (Observer observer : observers) {
+            observer.showTelemetry(telemetry);
+        }
+    }
+
+    private void notifyStateChanged(){
+
+        // Act on the change now rather than at the end of an idle period
+        if (running) {
+            scheduler.wakeUp();
+            watchdog.wakeUp();
+        }
+
+        for (Observer observer : observers) {
+            observer.stateChanged();
+        }
+    }
+
+
+    /**
+     * Log an event of this device. Never blocks
+     * @param severity How serious it is
+     * @param type What part of the system it concerns
+     * @param message What happened
+     */
+    void logEvent(EventLog.Severity severity, EventLog.Type type, String message){
+        EventLog.getInstance().log(severity, type, configuration.getName(), message);
+    }
+
+
+    /**
+     * Log why a cycle failed, along with the channel and readings behind it where there are any. Exceptions that
+     * weren't expected are left to be logged with their stack trace
+     * @param e What the cycle failed with
+     */
+    private void logCycleFailure(Exception e){
+        String name = configuration.getName();
+        EventLog log = EventLog.getInstance();
+
+        // The messages hold readings that change from one failure to the next, so the rate limit goes by the class
+        if (e instanceof Exceptions.AcromagConnectionException) {
+            log.log(EventLog.Severity.ERROR, EventLog.Type.CONNECTION, name, -1, null, e.getMessage(), null, e.getClass());
+        } else if (e instanceof Exceptions.ReadInputVoltageException) {
+            log.log(EventLog.Severity.ERROR, EventLog.Type.CONNECTION, name, ((Exceptions.ReadInputVoltageException) e).getChannel(), null, e.getMessage(), null, e.getClass());
+        } else if (e instanceof Exceptions.WriteOutputVoltageException) {
+            log.log(EventLog.Severity.ERROR, EventLog.Type.CONNECTION, name, ((Exceptions.WriteOutputVoltageException) e).getChannel(), null, e.getMessage(), null, e.getClass());
+        } else if (e instanceof Exceptions.BadReferenceVoltageException) {
+            Exceptions.BadReferenceVoltageException error = (Exceptions.BadReferenceVoltageException) e;
+            log.log(EventLog.Severity.ERROR, EventLog.Type.HARDWARE, name, error.getChannel(), new double[] {error.getVoltage()}, e.getMessage(), null, e.getClass());
+        } else if (e instanceof Exceptions.InconsistentReadingsException) {
+            Exceptions.InconsistentReadingsException error = (Exceptions.InconsistentReadingsException) e;
+            log.log(EventLog.Severity.ERROR, EventLog.Type.INTERLOCK, name, configuration.getVoltageMonitorChannel(),
+                    new double[] {error.getVoltageReading(), error.getVoltageSetting()}, e.getMessage(), null, e.getClass());
+        }
+    }
+
+
+    boolean isRunning() {
+        return running;
+    }
+
+    DeviceConfiguration getConfiguration() {
+        return configuration;
+    }
+
+    boolean isLocked() {
+        return systemLocked;
+    }
+
+    boolean isInterlockTripped() {
+        return interlockTripped;
+    }
+
+    long getCycleCount() {
+        return cycleCount;
+    }
+
+    String getStatusMessage() {
+        return statusMessage;
+    }
+
+    String getAddress() {
+        return controller.getAddress();
+    }
+
+    PowerSupplyState getPowerSupplyState() {
+        return hvState;
+    }
+
+    LaserDiodeState getLaserDiodeState() {
+        return ldState;
+    }
+
+    SampleHistory getHistory() {
+        return history;
+    }
+
+    ControlScheduler getScheduler() {
+        return scheduler;
+    }
+
+    InterlockWatchdog getWatchdog() {
+        return watchdog;
+    }
+
+    PollRatePolicy getPollRatePolicy() {
+        return pollRatePolicy;
+    }
+}
@@ -0,0 +1,207 @@
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs a task at a fixed rate on a dedicated thread. Deadlines are computed from the start of the schedule
+ * rather than from the end of the previous run, so the time spent inside the task doesn't stretch the period
+ */
+class ControlScheduler {
+
+    /**
+     * What to do with the ticks whose deadline passed while the task was still running
+     */
+    enum OverrunPolicy {
+        CATCH_UP,   // Run every missed tick back to back until we're on schedule again
+        SKIP        // Drop the missed ticks and resume at the next deadline that is still in the future
+    }
+
+    // Weight given to the newest measurement in the running averages
+    private final double SMOOTHING = 0.1;
+
+    private final String name;
+    private final OverrunPolicy policy;
+
+    private volatile long periodNanos;
+    private volatile boolean running;
+    private volatile boolean wakeRequested;
+    private volatile Thread thread;
+
+    // Statistics of the schedule
+    private volatile long tickCount;
+    private volatile long overrunCount;
+    private volatile long missedTickCount;
+    private volatile double averagePeriod;      // ms
+    private volatile double averageJitter;      // ms
+    private volatile double lastPeriod;         // ms
+
+
+    /**
+     * Basic constructor
+     * @param name Name given to the scheduler's thread
+     * @param period Time (ms) between the start of each run of the task
+     * @param policy How deadlines missed due to an overrun are handled
+     */
+    ControlScheduler(String name, int period, OverrunPolicy policy){
+        this.name   = name;
+        this.policy = policy;
+        setPeriod(period);
+    }
+
+
+    /**
+     * Start running the task on the scheduler's thread
+     * @param task Task to run every period
+     */
+    synchronized void start(final Runnable task){
+        if (running) return;
+        running = true;
+
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runSchedule(task);
+            }
+        }, name);
+        thread.start();
+    }
+
+
+    /**
+     * Stop running the task. A run that is in progress is allowed to finish
+     */
+    synchronized void stop(){
+        running = false;
+        if (thread != null) LockSupport.unpark(thread);
+    }
+
+
+    /**
+     * Run the task as soon as possible instead of waiting for the next deadline, for when something has happened
+     * that it should act on. The schedule carries on from that run. If the task is running at the time, it runs
+     * again straight after. Has no effect when called by the task itself
+     */
+    void wakeUp(){
+        Thread scheduleThread = thread;
+        if (scheduleThread == null || scheduleThread == Thread.currentThread()) return;
+
+        wakeRequested = true;
+        LockSupport.unpark(scheduleThread);
+    }
+
+
+    /**
+     * Change the period of the schedule, which takes effect from the next deadline
+     * @param period Time (ms) between the start of each run of the task
+     */
+    void setPeriod(int period){
+        this.periodNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, period));
+    }
+
+
+    /**
+     * Main loop of the scheduler's thread
+     * @param task Task to run every period
+     */
+    private void runSchedule(Runnable task){
+
+        long deadline  = System.nanoTime() + periodNanos;
+        long lastStart = 0;
+
+        while (running) {
+
+            // Wait for the deadline (parkNanos can return early so keep checking)
+            long remaining = deadline - System.nanoTime();
+            while (running && remaining > 0 && !wakeRequested) {
+                LockSupport.parkNanos(remaining);
+                remaining = deadline - System.nanoTime();
+            }
+            if (!running) break;
+
+            // Start over from now if we were woken early
+            if (wakeRequested) {
+                wakeRequested = false;
+                if (remaining > 0) deadline = System.nanoTime();
+            }
+
+
+            // Record how well we're keeping to the schedule
+            long start = System.nanoTime();
+            recordTick(start, lastStart, start - deadline);
+            lastStart = start;
+
+
+            task.run();
+
+
+            // Compute the next deadline and deal with any that we've already missed
+            long period = periodNanos;
+            deadline += period;
+
+            long now = System.nanoTime();
+            if (now > deadline) {
+                overrunCount++;
+
+                long missed = (now - deadline) / period + 1;
+                if (policy == OverrunPolicy.SKIP) {
+                    missedTickCount += missed;
+                    deadline += missed * period;
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Update the statistics with the start of a new tick
+     * @param start Time (ns) the tick started
+     * @param lastStart Time (ns) the previous tick started, 0 if this is the first
+     * @param lateness Time (ns) between the deadline and the actual start of the tick
+     */
+    private void recordTick(long start, long lastStart, long lateness){
+        double jitter = Math.abs(lateness) / 1e6;
+
+        if (lastStart == 0) {
+            averagePeriod = periodNanos / 1e6;
+            averageJitter = jitter;
+        } else {
+            lastPeriod    = (start - lastStart) / 1e6;
+            averagePeriod = SMOOTHING * lastPeriod + (1 - SMOOTHING) * averagePeriod;
+            averageJitter = SMOOTHING * jitter + (1 - SMOOTHING) * averageJitter;
+        }
+
+        tickCount++;
+    }
+
+
+    boolean isRunning() {
+        return running;
+    }
+
+    int getPeriod() {
+        return (int) TimeUnit.NANOSECONDS.toMillis(periodNanos);
+    }
+
+    long getTickCount() {
+        return tickCount;
+    }
+
+    long getOverrunCount() {
+        return overrunCount;
+    }
+
+    long getMissedTickCount() {
+        return missedTickCount;
+    }
+
+    double getAveragePeriod() {
+        return averagePeriod;
+    }
+
+    double getAverageJitter() {
+        return averageJitter;
+    }
+
+    double getLastPeriod() {
+        return lastPeriod;
+    }
+}
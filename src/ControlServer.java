@@ -0,0 +1,245 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Line-based control socket, so that scripts (the experiment sequencer) can drive the power supply without going
+ * through the GUI. It only listens on the loopback interface, so only programs on this machine can connect
+ *
+ * Every line a client sends is one batch of commands separated by ';' (see ControlCommand for the commands). The
+ * batch is applied all or nothing at the start of the next cycle of the main loop and goes out to the Acromag in
+ * that cycle's output frame, so a change takes effect within one poll period. Exactly one line is sent back for
+ * every line received:
+ *
+ *   OK <cycle>                     Every command was applied, and sent to the Acromag in that cycle
+ *   REFUSED <cycle> <command>      That command was refused (locked, disabled, out of range ...) so none were applied
+ *   FAILED <cycle> <message>       The commands were applied but the cycle couldn't send them to the Acromag
+ *   ERROR <message>                The line couldn't be understood, nothing was applied
+ *
+ * A line holding just STATE is answered straight away with the state as of the last cycle:
+ *
+ *   STATE <cycle> locked=<0|1> interlock=<0|1> hv=<0|1> conditioning=<0|1> voltageSetting=<kV> voltageReading=<kV>
+ *         currentSetting=<mA> currentReading=<mA> ld=<0|1> ldCurrent=<mA> pollPeriod=<ms> pollMode=<mode>
+ *         status=<rest of the line>
+ */
+class ControlServer {
+
+    private final ControlRuntime runtime;
+    private final int port;
+
+    private volatile boolean running;
+    private ServerSocket serverSocket;
+    private final Set<Socket> clients = new HashSet<Socket>();
+
+
+    /**
+     * Basic constructor
+     * @param runtime Runtime to control
+     * @param port TCP port to listen on
+     */
+    ControlServer(ControlRuntime runtime, int port){
+        this.runtime = runtime;
+        this.port    = port;
+    }
+
+
+    /**
+     * Start listening for clients
+     * @throws IOException if the port can't be opened
+     */
+    synchronized void start() throws IOException {
+        if (running) return;
+
+        serverSocket = new ServerSocket(port, 8, InetAddress.getLoopbackAddress());
+        running = true;
+
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptClients();
+            }
+        }, "Control Server");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+
+    /**
+     * Stop listening and disconnect every client
+     */
+    void stop(){
+        synchronized (this) {
+            if (!running) return;
+            running = false;
+            closeQuietly(serverSocket);
+        }
+
+        synchronized (clients) {
+            for (Socket client : clients) {
+                closeQuietly(client);
+            }
+            clients.clear();
+        }
+    }
+
+
+    /**
+     * Main loop of the server's thread, which gives every client its own thread
+     */
+    private void acceptClients(){
+        while (running) {
+            final Socket client;
+            try {
+                client = serverSocket.accept();
+                client.setTcpNoDelay(true);
+            } catch (IOException e) {
+                if (running) runtime.logEvent(EventLog.Severity.ERROR, EventLog.Type.CONTROL_SERVER, "Control server stopped accepting clients: " + e.getMessage());
+                return;
+            }
+
+            synchronized (clients) {
+                if (!running) {
+                    closeQuietly(client);
+                    return;
+                }
+                clients.add(client);
+            }
+
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    serveClient(client);
+                }
+            }, "Control Client " + client.getPort());
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+
+    /**
+     * Answer a client's lines until it disconnects
+     * @param client Socket of the client
+     */
+    private void serveClient(Socket client){
+        try {
+            BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream(), StandardCharsets.US_ASCII));
+            Writer out = new BufferedWriter(new OutputStreamWriter(client.getOutputStream(), StandardCharsets.US_ASCII));
+
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.trim().isEmpty()) continue;
+
+                out.write(handleLine(line));
+                out.write('\n');
+                out.flush();
+            }
+        }
+        catch (SocketException e) {
+            // The client went away or we're stopping, either way there's no one left to tell
+        }
+        catch (IOException e) {
+            runtime.logEvent(EventLog.Severity.WARNING, EventLog.Type.CONTROL_SERVER, "Control client " + client.getPort() + " failed: " + e.getMessage());
+        }
+        finally {
+            synchronized (clients) {
+                clients.remove(client);
+            }
+            closeQuietly(client);
+        }
+    }
+
+
+    /**
+     * Method that carries out one line from a client
+     * @param line Line sent by the client
+     * @return Reply to send back
+     */
+    private String handleLine(String line){
+        if (line.trim().equalsIgnoreCase("STATE")) return formatState();
+
+        List<ControlCommand> commands = new ArrayList<ControlCommand>();
+        try {
+            for (String text : line.split(";")) {
+                if (!text.trim().isEmpty()) commands.add(ControlCommand.parse(text));
+            }
+        } catch (IllegalArgumentException e) {
+            return "ERROR " + e.getMessage();
+        }
+        if (commands.isEmpty()) return "ERROR Empty batch";
+
+        // Wait for the main loop to get to it, which is at most one poll period
+        try {
+            long cycle = runtime.submit(commands).get();
+            return "OK " + cycle;
+        }
+        catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exceptions.CommandRefusedException) {
+                Exceptions.CommandRefusedException refusal = (Exceptions.CommandRefusedException) cause;
+                return "REFUSED " + refusal.getCycle() + " " + refusal.getCommand();
+            }
+            if (cause instanceof Exceptions.CycleFailedException) {
+                Exceptions.CycleFailedException failure = (Exceptions.CycleFailedException) cause;
+                return "FAILED " + failure.getCycle() + " " + singleLine(failure.getCause().getMessage());
+            }
+            return "ERROR " + singleLine(cause.getMessage());
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return "ERROR Interrupted";
+        }
+    }
+
+
+    private String formatState(){
+        PowerSupplyState hv = runtime.getPowerSupplyState();
+        LaserDiodeState ld  = runtime.getLaserDiodeState();
+        PollRatePolicy policy = runtime.getPollRatePolicy();
+
+        return String.format(Locale.ROOT,
+                "STATE %d locked=%d interlock=%d hv=%d conditioning=%d voltageSetting=%.3f voltageReading=%.3f " +
+                "currentSetting=%.3f currentReading=%.3f ld=%d ldCurrent=%.3f pollPeriod=%d pollMode=%s status=%s",
+                runtime.getCycleCount(), bit(runtime.isLocked()), bit(runtime.isInterlockTripped()),
+                bit(hv.isEnabled()), bit(hv.isConditioning()), hv.getVoltageSetting(), hv.getVoltageReading(),
+                hv.getCurrentSetting(), hv.getCurrentReading(), bit(ld.isEnabled()), ld.getCurrentSetting(),
+                policy.getPeriod(), policy.getMode(), singleLine(runtime.getStatusMessage()));
+    }
+
+
+    private static int bit(boolean value){
+        return value ? 1 : 0;
+    }
+
+    private static String singleLine(String message){
+        return (message == null) ? "" : message.replace('\n', ' ').replace('\r', ' ');
+    }
+
+    private static void closeQuietly(Closeable closeable){
+        try {
+            if (closeable != null) closeable.close();
+        } catch (IOException e) {
+            // Nothing was written, so there's nothing to lose
+        }
+    }
+
+
+    int getPort() {
+        return port;
+    }
+}
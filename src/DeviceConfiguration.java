@@ -0,0 +1,484 @@
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Scanner;
+
+/**
+ * Settings of one Acromag and the power supply behind it. Where Configuration holds the settings of the one
+ * device the GUI runs, each ControlRuntime is given one of these, so a single process can run any number of
+ * devices side by side. Instances are never changed once they've been built
+ *
+ * A devices file uses the same "key;value" lines as the config file. Each device starts with a "device;<name>"
+ * line and is followed by whatever it does differently. Anything given before the first device applies to all of
+ * them, and anything not given at all falls back to Configuration
+ *
+ * Every instance is checked as it's built, so one that exists is safe to hand to a running device. The same...()
+ * methods compare two of them a group of settings at a time, so that a device given new settings only has to
+ * react to what actually changed
+ */
+final class DeviceConfiguration {
+
+    // Samples kept in memory for each device of a devices file, a few minutes at typical poll periods. The whole
+    // session is still on disk in the sample log. The GUI's device keeps Configuration's much longer history
+    private static final int DEVICE_HISTORY_CAPACITY = 4096;
+
+    private final String name;
+
+    private final String acromagIpAddress;
+    private final int modbusPort;
+    private final int pollPeriod;
+    private final int fastPollPeriod;
+    private final int idlePollPeriod;
+    private final int outputRefreshPeriod;
+    private final int historyCapacity;
+
+    private final String sampleLogDirectory;
+    private final int sampleLogFileSize;                // MB
+    private final int sampleLogRotationPeriod;          // min
+
+    private final int controlServerPort;                // 0 if disabled
+
+    private final int watchdogPeriod;                   // ms
+    private final int interlockTripTime;                // ms
+    private final int interlockSettleTime;              // ms
+
+    private final int referenceVoltageChannel;
+    private final int voltageMonitorChannel;
+    private final int currentMonitorChannel;
+
+    private final int hvEnableChannel;
+    private final int voltageControlChannel;
+    private final int currentControlChannel;
+
+    private final int ldEnableChannel;
+    private final int ldCurrentControlChannel;
+
+    private final double maxAllowablePowerSupplyVoltage;
+
+
+    /**
+     * Basic constructor
+     * @param name Name of the device, used in messages, file names and JMX
+     * @param settings Settings that differ from the defaults, keyed as in the config file
+     * @param defaults Settings to use where settings has none
+     * @throws IllegalArgumentException if a setting isn't a valid number
+     */
+    private DeviceConfiguration(String name, Map<String, String> settings, DeviceConfiguration defaults){
+        this.name = name;
+
+        this.acromagIpAddress    = getString(settings, "acromagIpAddress", defaults.acromagIpAddress);
+        this.modbusPort          = getInt(settings, "modbusPort", defaults.modbusPort);
+        this.pollPeriod          = getInt(settings, "pollPeriod", defaults.pollPeriod);
+        this.fastPollPeriod      = getInt(settings, "fastPollPeriod", defaults.fastPollPeriod);
+        this.idlePollPeriod      = getInt(settings, "idlePollPeriod", defaults.idlePollPeriod);
+        this.outputRefreshPeriod = getInt(settings, "outputRefreshPeriod", defaults.outputRefreshPeriod);
+        this.historyCapacity     = getInt(settings, "historyCapacity", defaults.historyCapacity);
+
+        this.sampleLogDirectory      = getString(settings, "sampleLogDirectory", defaults.sampleLogDirectory);
+        this.sampleLogFileSize       = getInt(settings, "sampleLogFileSize", defaults.sampleLogFileSize);
+        this.sampleLogRotationPeriod = getInt(settings, "sampleLogRotationPeriod", defaults.sampleLogRotationPeriod);
+
+        this.controlServerPort = getInt(settings, "controlServerPort", defaults.controlServerPort);
+
+        this.watchdogPeriod      = getInt(settings, "watchdogPeriod", defaults.watchdogPeriod);
+        this.interlockTripTime   = getInt(settings, "interlockTripTime", defaults.interlockTripTime);
+        this.interlockSettleTime = getInt(settings, "interlockSettleTime", defaults.interlockSettleTime);
+
+        this.referenceVoltageChannel = getInt(settings, "referenceVoltageChannel", defaults.referenceVoltageChannel);
+        this.voltageMonitorChannel   = getInt(settings, "voltageMonitorChannel", defaults.voltageMonitorChannel);
+        this.currentMonitorChannel   = getInt(settings, "currentMonitorChannel", defaults.currentMonitorChannel);
+
+        this.hvEnableChannel       = getInt(settings, "hvEnableChannel", defaults.hvEnableChannel);
+        this.voltageControlChannel = getInt(settings, "voltageControlChannel", defaults.voltageControlChannel);
+        this.currentControlChannel = getInt(settings, "currentControlChannel", defaults.currentControlChannel);
+
+        this.ldEnableChannel         = getInt(settings, "ldEnableChannel", defaults.ldEnableChannel);
+        this.ldCurrentControlChannel = getInt(settings, "ldCurrentControlChannel", defaults.ldCurrentControlChannel);
+
+        this.maxAllowablePowerSupplyVoltage = getDouble(settings, "maxAllowablePowerSupplyVoltage", defaults.maxAllowablePowerSupplyVoltage);
+
+        validate();
+    }
+
+
+    /**
+     * Constructor that takes everything from Configuration as it currently stands
+     * @param name Name of the device
+     */
+    private DeviceConfiguration(String name){
+        this.name = name;
+
+        this.acromagIpAddress    = Configuration.getAcromagIpAddress();
+        this.modbusPort          = Configuration.getModbusPort();
+        this.pollPeriod          = Configuration.getPollPeriod();
+        this.fastPollPeriod      = Configuration.getFastPollPeriod();
+        this.idlePollPeriod      = Configuration.getIdlePollPeriod();
+        this.outputRefreshPeriod = Configuration.getOutputRefreshPeriod();
+        this.historyCapacity     = Configuration.getHistoryCapacity();
+
+        this.sampleLogDirectory      = Configuration.getSampleLogDirectory();
+        this.sampleLogFileSize       = Configuration.getSampleLogFileSize();
+        this.sampleLogRotationPeriod = Configuration.getSampleLogRotationPeriod();
+
+        this.controlServerPort = Configuration.getControlServerPort();
+
+        this.watchdogPeriod      = Configuration.getWatchdogPeriod();
+        this.interlockTripTime   = Configuration.getInterlockTripTime();
+        this.interlockSettleTime = Configuration.getInterlockSettleTime();
+
+        this.referenceVoltageChannel = Configuration.getReferenceVoltageChannel();
+        this.voltageMonitorChannel   = Configuration.getVoltageMonitorChannel();
+        this.currentMonitorChannel   = Configuration.getCurrentMonitorChannel();
+
+        this.hvEnableChannel       = Configuration.getHvEnableChannel();
+        this.voltageControlChannel = Configuration.getVoltageControlChannel();
+        this.currentControlChannel = Configuration.getCurrentControlChannel();
+
+        this.ldEnableChannel         = Configuration.getLdEnableChannel();
+        this.ldCurrentControlChannel = Configuration.getLdCurrentControlChannel();
+
+        this.maxAllowablePowerSupplyVoltage = Configuration.getMaxAllowablePowerSupplyVoltage();
+
+        validate();
+    }
+
+
+    /**
+     * Method that takes a snapshot of Configuration, which is what the GUI and the single device daemon run
+     * @return Settings of the device described by Configuration
+     * @throws IllegalArgumentException if Configuration holds a setting that is out of range
+     */
+    static DeviceConfiguration fromConfiguration(){
+        return new DeviceConfiguration("Acromag");
+    }
+
+
+    /**
+     * Method that reads every device from a devices file
+     * @param file Devices file
+     * @return Settings of each device, in the order they appear in the file
+     * @throws FileNotFoundException if the file doesn't exist
+     * @throws IllegalArgumentException if the file describes no devices, repeats a name or has a setting that
+     *                                  isn't a valid number
+     */
+    static List<DeviceConfiguration> loadDevices(File file) throws FileNotFoundException {
+        Map<String, String> shared = new HashMap<String, String>();
+        List<String> names = new ArrayList<String>();
+        List<Map<String, String>> settings = new ArrayList<Map<String, String>>();
+
+        for (String[] line : readLines(file)) {
+            String key = line[0], value = line[1];
+
+            if (key.equals("device")) {
+                if (names.contains(value)) throw new IllegalArgumentException("Device \"" + value + "\" appears twice in " + file);
+                names.add(value);
+                settings.add(new HashMap<String, String>());
+            } else if (settings.isEmpty()) {
+                shared.put(key, value);
+            } else {
+                settings.get(settings.size() - 1).put(key, value);
+            }
+        }
+        if (names.isEmpty()) throw new IllegalArgumentException("No devices are described in " + file);
+
+        // Devices of a file keep a short history, and only get a control server or a log directory of their own if
+        // they're given one
+        Map<String, String> fileDefaults = new HashMap<String, String>();
+        fileDefaults.put("historyCapacity", String.valueOf(DEVICE_HISTORY_CAPACITY));
+        fileDefaults.put("controlServerPort", "0");
+        fileDefaults.putAll(shared);
+        DeviceConfiguration defaults = new DeviceConfiguration("", fileDefaults, fromConfiguration());
+
+        List<DeviceConfiguration> devices = new ArrayList<DeviceConfiguration>();
+        for (int i = 0; i < names.size(); i++) {
+            Map<String, String> deviceSettings = settings.get(i);
+            if (!deviceSettings.containsKey("sampleLogDirectory")) {
+                deviceSettings.put("sampleLogDirectory", new File(defaults.sampleLogDirectory, names.get(i)).getPath());
+            }
+            devices.add(new DeviceConfiguration(names.get(i), deviceSettings, defaults));
+        }
+        return Collections.unmodifiableList(devices);
+    }
+
+
+    /**
+     * Method that reads a config file into a new set of settings for a device that is already running. Nothing is
+     * changed if the file can't be read or holds a bad setting, so a half saved file never reaches the device
+     * @param file Config file, in the format Configuration writes
+     * @param current Settings the device runs with now, which are kept for anything the file doesn't give
+     * @return Settings of the device as described by the file
+     * @throws FileNotFoundException if the file doesn't exist
+     * @throws IllegalArgumentException if a setting isn't a valid number or is out of range
+     */
+    static DeviceConfiguration load(File file, DeviceConfiguration current) throws FileNotFoundException {
+        Map<String, String> settings = new HashMap<String, String>();
+        for (String[] line : readLines(file)) {
+            settings.put(line[0], line[1]);
+        }
+        return new DeviceConfiguration(current.name, settings, current);
+    }
+
+
+    /**
+     * Method that splits a config file into its "key;value" lines
+     * @param file Config file
+     * @return Key and value of every line, in order
+     * @throws FileNotFoundException if the file doesn't exist
+     */
+    private static List<String[]> readLines(File file) throws FileNotFoundException {
+        List<String[]> lines = new ArrayList<String[]>();
+
+        Scanner s = new Scanner(file);
+        s.useDelimiter(";|\\n");
+        try {
+            while (s.hasNext()) {
+                String key = s.next().trim();
+                if (key.isEmpty() || !s.hasNext()) continue;
+                lines.add(new String[] {key, s.next().trim()});
+            }
+        } finally {
+            s.close();
+        }
+        return lines;
+    }
+
+
+    /**
+     * Check that every setting is one the device can run with
+     * @throws IllegalArgumentException naming the first setting that isn't
+     */
+    private void validate(){
+        if (acromagIpAddress == null || acromagIpAddress.trim().isEmpty()) throw new IllegalArgumentException("acromagIpAddress must be given");
+        checkRange("modbusPort", modbusPort, 1, 65535);
+        checkRange("controlServerPort", controlServerPort, 0, 65535);
+
+        checkRange("pollPeriod", pollPeriod, 1, Integer.MAX_VALUE);
+        checkRange("fastPollPeriod", fastPollPeriod, 1, Integer.MAX_VALUE);
+        checkRange("idlePollPeriod", idlePollPeriod, 1, Integer.MAX_VALUE);
+        checkRange("outputRefreshPeriod", outputRefreshPeriod, 1, Integer.MAX_VALUE);
+        checkRange("historyCapacity", historyCapacity, 1, SampleHistory.getMaxCapacity());
+
+        checkRange("sampleLogFileSize", sampleLogFileSize, 1, 2047);
+        checkRange("sampleLogRotationPeriod", sampleLogRotationPeriod, 1, Integer.MAX_VALUE);
+
+        checkRange("watchdogPeriod", watchdogPeriod, 1, Integer.MAX_VALUE);
+        checkRange("interlockTripTime", interlockTripTime, 0, Integer.MAX_VALUE);
+        checkRange("interlockSettleTime", interlockSettleTime, 0, Integer.MAX_VALUE);
+
+        // Each input and each output channel can only do one thing
+        int lastChannel = Constants.getNumChannels() - 1;
+        String[] inputNames = {"referenceVoltageChannel", "voltageMonitorChannel", "currentMonitorChannel"};
+        int[] inputs = {referenceVoltageChannel, voltageMonitorChannel, currentMonitorChannel};
+        checkChannels(inputNames, inputs, lastChannel);
+
+        String[] outputNames = {"hvEnableChannel", "voltageControlChannel", "currentControlChannel", "ldEnableChannel", "ldCurrentControlChannel"};
+        int[] outputs = {hvEnableChannel, voltageControlChannel, currentControlChannel, ldEnableChannel, ldCurrentControlChannel};
+        checkChannels(outputNames, outputs, lastChannel);
+
+        if (!(maxAllowablePowerSupplyVoltage > 0 && maxAllowablePowerSupplyVoltage <= Constants.getPowerSupplyMaxVoltage())) {
+            throw new IllegalArgumentException("maxAllowablePowerSupplyVoltage must be between 0 and " + Constants.getPowerSupplyMaxVoltage() + " kV, not " + maxAllowablePowerSupplyVoltage);
+        }
+    }
+
+    private static void checkRange(String key, int value, int min, int max){
+        if (value < min || value > max) {
+            throw new IllegalArgumentException(key + " must be between " + min + " and " + max + ", not " + value);
+        }
+    }
+
+    private static void checkChannels(String[] keys, int[] channels, int lastChannel){
+        for (int i = 0; i < channels.length; i++) {
+            checkRange(keys[i], channels[i], 0, lastChannel);
+            for (int j = 0; j < i; j++) {
+                if (channels[i] == channels[j]) throw new IllegalArgumentException(keys[i] + " and " + keys[j] + " are both channel " + channels[i]);
+            }
+        }
+    }
+
+
+    /**
+     * Method that checks whether another set of settings reaches the Acromag at the same address
+     * @param other Settings to compare with
+     * @return true if the address and port are the same
+     */
+    boolean sameAddress(DeviceConfiguration other){
+        return acromagIpAddress.equals(other.acromagIpAddress) && modbusPort == other.modbusPort;
+    }
+
+
+    /**
+     * Method that checks whether another set of settings uses every channel for the same thing
+     * @param other Settings to compare with
+     * @return true if no channel has been remapped
+     */
+    boolean sameChannels(DeviceConfiguration other){
+        return referenceVoltageChannel == other.referenceVoltageChannel
+                && voltageMonitorChannel == other.voltageMonitorChannel
+                && currentMonitorChannel == other.currentMonitorChannel
+                && hvEnableChannel == other.hvEnableChannel
+                && voltageControlChannel == other.voltageControlChannel
+                && currentControlChannel == other.currentControlChannel
+                && ldEnableChannel == other.ldEnableChannel
+                && ldCurrentControlChannel == other.ldCurrentControlChannel;
+    }
+
+
+    /**
+     * Method that checks whether another set of settings polls the same way
+     * @param other Settings to compare with
+     * @return true if the bounds of the poll period are the same
+     */
+    boolean samePolling(DeviceConfiguration other){
+        return pollPeriod == other.pollPeriod && fastPollPeriod == other.fastPollPeriod && idlePollPeriod == other.idlePollPeriod;
+    }
+
+
+    /**
+     * Method that checks whether another set of settings runs the interlock watchdog the same way
+     * @param other Settings to compare with
+     * @return true if the period and times of the watchdog are the same
+     */
+    boolean sameWatchdog(DeviceConfiguration other){
+        return watchdogPeriod == other.watchdogPeriod && interlockTripTime == other.interlockTripTime
+                && interlockSettleTime == other.interlockSettleTime;
+    }
+
+
+    /**
+     * Method that checks whether another set of settings differs in any of those only read when a device starts
+     * @param other Settings to compare with
+     * @return true if the history, the sample log and the control server would all be set up the same way
+     */
+    boolean sameStartupSettings(DeviceConfiguration other){
+        return historyCapacity == other.historyCapacity && sampleLogDirectory.equals(other.sampleLogDirectory)
+                && sampleLogFileSize == other.sampleLogFileSize && sampleLogRotationPeriod == other.sampleLogRotationPeriod
+                && controlServerPort == other.controlServerPort;
+    }
+
+
+    private static String getString(Map<String, String> settings, String key, String defaultValue){
+        String value = settings.get(key);
+        return (value == null) ? defaultValue : value;
+    }
+
+    private static int getInt(Map<String, String> settings, String key, int defaultValue){
+        String value = settings.get(key);
+        if (value == null) return defaultValue;
+        try {
+            return Integer.valueOf(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(key + " must be a whole number, not \"" + value + "\"");
+        }
+    }
+
+    private static double getDouble(Map<String, String> settings, String key, double defaultValue){
+        String value = settings.get(key);
+        if (value == null) return defaultValue;
+        try {
+            return Double.valueOf(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(key + " must be a number, not \"" + value + "\"");
+        }
+    }
+
+
+    String getName() {
+        return name;
+    }
+
+    String getAcromagIpAddress() {
+        return acromagIpAddress;
+    }
+
+    int getModbusPort() {
+        return modbusPort;
+    }
+
+    int getPollPeriod() {
+        return pollPeriod;
+    }
+
+    int getFastPollPeriod() {
+        return fastPollPeriod;
+    }
+
+    int getIdlePollPeriod() {
+        return idlePollPeriod;
+    }
+
+    int getOutputRefreshPeriod() {
+        return outputRefreshPeriod;
+    }
+
+    int getHistoryCapacity() {
+        return historyCapacity;
+    }
+
+    String getSampleLogDirectory() {
+        return sampleLogDirectory;
+    }
+
+    int getSampleLogFileSize() {
+        return sampleLogFileSize;
+    }
+
+    int getSampleLogRotationPeriod() {
+        return sampleLogRotationPeriod;
+    }
+
+    int getControlServerPort() {
+        return controlServerPort;
+    }
+
+    int getWatchdogPeriod() {
+        return watchdogPeriod;
+    }
+
+    int getInterlockTripTime() {
+        return interlockTripTime;
+    }
+
+    int getInterlockSettleTime() {
+        return interlockSettleTime;
+    }
+
+    int getReferenceVoltageChannel() {
+        return referenceVoltageChannel;
+    }
+
+    int getVoltageMonitorChannel() {
+        return voltageMonitorChannel;
+    }
+
+    int getCurrentMonitorChannel() {
+        return currentMonitorChannel;
+    }
+
+    int getHvEnableChannel() {
+        return hvEnableChannel;
+    }
+
+    int getVoltageControlChannel() {
+        return voltageControlChannel;
+    }
+
+    int getCurrentControlChannel() {
+        return currentControlChannel;
+    }
+
+    int getLdEnableChannel() {
+        return ldEnableChannel;
+    }
+
+    int getLdCurrentControlChannel() {
+        return ldCurrentControlChannel;
+    }
+
+    double getMaxAllowablePowerSupplyVoltage() {
+        return maxAllowablePowerSupplyVoltage;
+    }
+}
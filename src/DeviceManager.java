@@ -0,0 +1,153 @@
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Runs several power supplies from one process. Every device gets a ControlRuntime of its own, so each has its own
+ * settings, connection, state, interlock, sample log and main loop thread, and nothing one of them does (waiting on
+ * a slow Acromag, or trying to reconnect to one that's gone) can hold up another. All of their sockets are served
+ * by the one shared Modbus I/O thread
+ */
+class DeviceManager {
+
+    //private static final File devicesFile = new File("./lib/devices.cfg");
+    private static final File devicesFile = new File("/leia/HVPowerSupplyController/lib/devices.cfg");
+
+    private final List<ControlRuntime> runtimes;
+
+
+    /**
+     * Basic constructor
+     * @param devices Settings of every device to run
+     */
+    DeviceManager(List<DeviceConfiguration> devices){
+        List<ControlRuntime> list = new ArrayList<ControlRuntime>(devices.size());
+        for (DeviceConfiguration device : devices) {
+            list.add(new ControlRuntime(device));
+        }
+        this.runtimes = Collections.unmodifiableList(list);
+    }
+
+
+    /**
+     * Main method that runs every device of a devices file until the process is stopped
+     * @param args Path of the devices file (optional)
+     */
+    public static void main(String ... args){
+        Configuration.loadConfiguration();
+
+        File file = (args.length > 0) ? new File(args[0]) : devicesFile;
+        List<DeviceConfiguration> devices;
+        try {
+            devices = DeviceConfiguration.loadDevices(file);
+        } catch (FileNotFoundException e) {
+            System.err.println("Unable to find devices file " + file);
+            System.exit(1);
+            return;
+        } catch (IllegalArgumentException e) {
+            System.err.println("Unable to read devices file " + file + ": " + e.getMessage());
+            System.exit(1);
+            return;
+        }
+
+        final DeviceManager manager = new DeviceManager(devices);
+        manager.start();
+        manager.watchDevicesFile(file);
+
+        // Close every sample log and let go of every Acromag cleanly when the process is told to stop
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                manager.stop();
+            }
+        }, "Shutdown"));
+    }
+
+
+    /**
+     * Start every device. Each one connects in the background and stays locked until its first cycle succeeds
+     */
+    void start(){
+        for (ControlRuntime runtime : runtimes) {
+            runtime.start();
+        }
+    }
+
+
+    /**
+     * Stop every device
+     */
+    void stop(){
+        for (ControlRuntime runtime : runtimes) {
+            runtime.stop();
+        }
+    }
+
+
+    /**
+     * Pick up changes to the devices file while running. Each device is given its new settings as long as the whole
+     * file reads as valid; devices can't be added or removed without a restart
+     * @param file Devices file the devices were read from
+     */
+    void watchDevicesFile(File file){
+        ConfigurationWatcher watcher = new ConfigurationWatcher(file, new ConfigurationWatcher.Listener() {
+            @Override
+            public void fileChanged(File file) {
+                reloadDevices(file);
+            }
+        });
+
+        try {
+            watcher.start();
+        } catch (IOException e) {
+            EventLog.getInstance().log(EventLog.Severity.WARNING, EventLog.Type.CONFIGURATION, "DeviceManager", "Unable to watch devices file " + file + " for changes: " + e.getMessage());
+        }
+    }
+
+
+    /**
+     * Read the devices file again and hand every running device its new settings
+     * @param file Devices file
+     */
+    private void reloadDevices(File file){
+        List<DeviceConfiguration> devices;
+        try {
+            devices = DeviceConfiguration.loadDevices(file);
+        } catch (FileNotFoundException e) {
+            EventLog.getInstance().log(EventLog.Severity.WARNING, EventLog.Type.CONFIGURATION, "DeviceManager", "Devices file " + file + " has gone, keeping the current settings");
+            return;
+        } catch (IllegalArgumentException e) {
+            EventLog.getInstance().log(EventLog.Severity.WARNING, EventLog.Type.CONFIGURATION, "DeviceManager", "Ignoring devices file " + file + ": " + e.getMessage());
+            return;
+        }
+
+        for (DeviceConfiguration device : devices) {
+            ControlRuntime runtime = getRuntime(device.getName());
+            if (runtime == null) {
+                EventLog.getInstance().log(EventLog.Severity.INFO, EventLog.Type.CONFIGURATION, device.getName(), "Device " + device.getName() + " will only be started once the controller is restarted");
+            } else {
+                runtime.applyConfiguration(device);
+            }
+        }
+    }
+
+
+    /**
+     * Method that finds a device by its name
+     * @param name Name given to the device in the devices file
+     * @return Runtime of the device, null if there isn't one by that name
+     */
+    ControlRuntime getRuntime(String name){
+        for (ControlRuntime runtime : runtimes) {
+            if (runtime.getConfiguration().getName().equals(name)) return runtime;
+        }
+        return null;
+    }
+
+    List<ControlRuntime> getRuntimes() {
+        return runtimes;
+    }
+}
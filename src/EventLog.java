@@ -0,0 +1,544 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Log of everything notable that happens in the process, shared by every device. Logging an event only puts it on
+ * a lock-free queue; a background thread formats it and writes it to the terminal and to a rotating log file, so
+ * the thread that logged it (usually a main loop that has just failed a cycle) never waits on either
+ *
+ * An event that keeps repeating, such as the same read failing every cycle while a connection flaps, is only passed
+ * on a few times per rate limit period. How many more times it happened is logged once the period is over. Events
+ * count as the same when they share their severity, type, source, channel and cause (the class of the exception
+ * behind them), so readings in the message don't make each one look new. Events without a cause are told apart by
+ * their message
+ *
+ * Each line of the log file is one event, as space separated key=value pairs:
+ *
+ *   time=<ISO 8601> mono=<ns> severity=<severity> type=<type> source=<device> [channel=<channel>]
+ *         [values=<v1>,<v2>,...] [repeats=<count>] message="<message>" [exception="<stack trace>"]
+ */
+class EventLog {
+
+    enum Severity {
+        DEBUG, INFO, WARNING, ERROR
+    }
+
+    enum Type {
+        CONNECTION,         // Connecting to an Acromag, and reads or writes that failed
+        HARDWARE,           // The power supply isn't behaving like one that's connected and working
+        INTERLOCK,          // Trips and acknowledgements of the interlock
+        CONDITIONING,       // Conditioning ramps
+        CONFIGURATION,      // Loading, reloading and saving settings
+        SAMPLE_LOG,         // Writing samples to disk
+        CONTROL_SERVER,     // Scripts controlling the system over the control socket
+        INTERNAL            // Anything that points at a bug
+    }
+
+
+    /**
+     * A single thing that happened. Instances are never modified
+     */
+    static final class Event {
+        private final long timestamp;           // ms, wall clock
+        private final long nanoTime;            // ns, monotonic
+        private final Severity severity;
+        private final Type type;
+        private final String source;
+        private final int channel;              // -1 if the event isn't about a channel
+        private final double[] values;
+        private final String message;
+        private final Throwable exception;
+        private final int repeats;              // Times the event happened beyond those that were logged
+
+        private Event(Severity severity, Type type, String source, int channel, double[] values, String message,
+                      Throwable exception, int repeats){
+            this.timestamp = System.currentTimeMillis();
+            this.nanoTime  = System.nanoTime();
+            this.severity  = severity;
+            this.type      = type;
+            this.source    = source;
+            this.channel   = channel;
+            this.values    = values;
+            this.message   = message;
+            this.exception = exception;
+            this.repeats   = repeats;
+        }
+
+        long getTimestamp() {
+            return timestamp;
+        }
+
+        long getNanoTime() {
+            return nanoTime;
+        }
+
+        Severity getSeverity() {
+            return severity;
+        }
+
+        Type getType() {
+            return type;
+        }
+
+        String getSource() {
+            return source;
+        }
+
+        int getChannel() {
+            return channel;
+        }
+
+        String getMessage() {
+            return message;
+        }
+    }
+
+
+    /**
+     * How often one kind of event has been logged in the current rate limit period
+     */
+    private static class RateLimit {
+        final Severity severity;
+        final Type type;
+        final String source;
+        final int channel;
+        final String message;       // Of the first event of its kind, which the repeats are reported under
+
+        long periodStart;           // ns
+        int count;
+        int suppressed;
+
+        RateLimit(Severity severity, Type type, String source, int channel, String message, long now){
+            this.severity    = severity;
+            this.type        = type;
+            this.source      = source;
+            this.channel     = channel;
+            this.message     = message;
+            this.periodStart = now;
+        }
+    }
+
+    private static EventLog instance;
+
+    // Events of one kind passed on per rate limit period, and the length (ms) of the period
+    private final int RATE_LIMIT_COUNT = 3;
+    private final long RATE_LIMIT_PERIOD = 10000;
+
+    // Events waiting to be written beyond which new ones are dropped, so a runaway source can't use up the heap
+    private final int MAX_QUEUED_EVENTS = 10000;
+
+    // How often (ms) the queue is written out
+    private final long FLUSH_PERIOD = 100;
+
+    // Time (ms) after the log file fails before it is tried again
+    private final long FILE_RETRY_PERIOD = 60000;
+
+    private final ConcurrentLinkedQueue<Event> queue = new ConcurrentLinkedQueue<Event>();
+    private final AtomicInteger queuedCount = new AtomicInteger();
+    private final Map<String, RateLimit> rateLimits = new ConcurrentHashMap<String, RateLimit>();
+    private final Thread thread;
+
+    // Only touched on the log's thread
+    private final SimpleDateFormat terminalFormat = new SimpleDateFormat("MMMM dd, yyyy (HH:mm:ss) - ");
+    private final SimpleDateFormat fileFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSXXX");
+    private final File file;
+    private final long maxFileSize;             // bytes
+    private final int fileCount;
+    private Writer fileWriter;
+    private long fileSize;
+    private long fileRetryTime = 0;             // ms
+
+    // Statistics of the log
+    private volatile long loggedCount;
+    private final AtomicLong suppressedCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final AtomicInteger droppedSinceReport = new AtomicInteger();
+
+
+    /**
+     * Return the log shared by the whole process, starting it the first time it's needed
+     * @return The shared log
+     */
+    static synchronized EventLog getInstance(){
+        if (instance == null) {
+            String path = Configuration.getEventLogFile();
+            File file = (path == null || path.trim().isEmpty()) ? null : new File(path);
+            instance = new EventLog(file, Configuration.getEventLogFileSize() * 1024L * 1024L, Configuration.getEventLogFileCount());
+        }
+        return instance;
+    }
+
+
+    /**
+     * Basic constructor, which starts the log's thread
+     * @param file Log file, null to only log to the terminal
+     * @param maxFileSize Size (bytes) at which the log file is rotated
+     * @param fileCount Number of log files kept, including the current one
+     */
+    private EventLog(File file, long maxFileSize, int fileCount){
+        this.file        = file;
+        this.maxFileSize = Math.max(1, maxFileSize);
+        this.fileCount   = Math.max(1, fileCount);
+
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runLoop();
+            }
+        }, "Event Log");
+        thread.setDaemon(true);
+        thread.start();
+
+        // Don't lose whatever was logged just before the process was told to stop
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        }, "Event Log Shutdown"));
+    }
+
+
+    /**
+     * Log an event. Never blocks
+     * @param severity How serious it is
+     * @param type What part of the system it concerns
+     * @param source Name of the device (or part of the process) it happened in
+     * @param message What happened
+     */
+    void log(Severity severity, Type type, String source, String message){
+        log(severity, type, source, -1, null, message, null);
+    }
+
+
+    /**
+     * Log an event that concerns a channel or comes with readings. Never blocks
+     * @param severity How serious it is
+     * @param type What part of the system it concerns
+     * @param source Name of the device (or part of the process) it happened in
+     * @param channel Channel it concerns, -1 if none
+     * @param values Readings or settings that go with it, may be null. Kept as they are, not copied
+     * @param message What happened
+     * @param exception Exception behind it, may be null
+     */
+    void log(Severity severity, Type type, String source, int channel, double[] values, String message, Throwable exception){
+        log(severity, type, source, channel, values, message, exception, (exception == null) ? null : exception.getClass());
+    }
+
+
+    /**
+     * Log an event with a cause that isn't worth a stack trace, such as a failure that is expected while the
+     * hardware misbehaves. Never blocks
+     * @param severity How serious it is
+     * @param type What part of the system it concerns
+     * @param source Name of the device (or part of the process) it happened in
+     * @param channel Channel it concerns, -1 if none
+     * @param values Readings or settings that go with it, may be null. Kept as they are, not copied
+     * @param message What happened
+     * @param exception Exception behind it, may be null
+     * @param cause Class of what caused it, which the rate limit goes by instead of the message. Null if none
+     */
+    void log(Severity severity, Type type, String source, int channel, double[] values, String message, Throwable exception,
+             Class<?> cause){
+        if (!isAllowed(severity, type, source, channel, message, cause)) return;
+        enqueue(new Event(severity, type, source, channel, values, message, exception, 0));
+    }
+
+
+    /**
+     * Method that applies the rate limit to an event
+     * @return true if the event should be logged
+     */
+    private boolean isAllowed(Severity severity, Type type, String source, int channel, String message, Class<?> cause){
+        String key = source + '\u0000' + type + '\u0000' + severity + '\u0000' + channel + '\u0000'
+                + ((cause != null) ? cause.getName() : message);
+        long now = System.nanoTime();
+
+        RateLimit limit = rateLimits.get(key);
+        if (limit == null) {
+            RateLimit created = new RateLimit(severity, type, source, channel, message, now);
+            limit = rateLimits.putIfAbsent(key, created);
+            if (limit == null) limit = created;
+        }
+
+        synchronized (limit) {
+            if (limit.count < RATE_LIMIT_COUNT) {
+                limit.count++;
+                return true;
+            }
+            limit.suppressed++;
+        }
+        suppressedCount.incrementAndGet();
+        return false;
+    }
+
+
+    private void enqueue(Event event){
+        if (queuedCount.incrementAndGet() > MAX_QUEUED_EVENTS) {
+            queuedCount.decrementAndGet();
+            droppedSinceReport.incrementAndGet();
+            droppedCount.incrementAndGet();
+            return;
+        }
+        queue.add(event);
+    }
+
+
+    /**
+     * Write out everything logged so far. Safe from any thread, but blocks while the file is written
+     */
+    void flush(){
+        synchronized (this) {
+            writeQueuedEvents();
+        }
+    }
+
+
+    /**
+     * Main loop of the log's thread
+     */
+    private void runLoop(){
+        while (true) {
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(FLUSH_PERIOD));
+            synchronized (this) {
+                reportRepeats();
+                writeQueuedEvents();
+            }
+        }
+    }
+
+
+    /**
+     * Close every rate limit period that is over, logging how often its event was held back
+     */
+    private void reportRepeats(){
+        long now = System.nanoTime();
+        long period = TimeUnit.MILLISECONDS.toNanos(RATE_LIMIT_PERIOD);
+
+        Iterator<RateLimit> limits = rateLimits.values().iterator();
+        while (limits.hasNext()) {
+            RateLimit limit = limits.next();
+
+            int suppressed;
+            synchronized (limit) {
+                if (now - limit.periodStart < period) continue;
+                suppressed = limit.suppressed;
+
+                // Start a new period, or forget the event if it has stopped happening
+                if (limit.count == 0) {
+                    limits.remove();
+                    continue;
+                }
+                limit.periodStart = now;
+                limit.count       = 0;
+                limit.suppressed  = 0;
+            }
+            if (suppressed > 0) {
+                enqueue(new Event(limit.severity, limit.type, limit.source, limit.channel, null, limit.message, null, suppressed));
+            }
+        }
+
+        int dropped = droppedSinceReport.getAndSet(0);
+        if (dropped > 0) {
+            enqueue(new Event(Severity.WARNING, Type.INTERNAL, "Event Log", -1, null, dropped + " events were dropped because the log fell behind", null, 0));
+        }
+    }
+
+
+    /**
+     * Write every queued event to the terminal and the log file
+     */
+    private void writeQueuedEvents(){
+        Event event;
+        boolean wroteToFile = false;
+
+        while ((event = queue.poll()) != null) {
+            queuedCount.decrementAndGet();
+            loggedCount++;
+
+            writeToTerminal(event);
+            wroteToFile |= writeToFile(event);
+        }
+
+        if (wroteToFile) {
+            try {
+                fileWriter.flush();
+            } catch (IOException e) {
+                closeFile("Unable to write to the event log " + file + ": " + e.getMessage());
+            }
+        }
+    }
+
+
+    private void writeToTerminal(Event event){
+        if (event.severity == Severity.DEBUG) return;
+
+        String message = terminalFormat.format(new Date(event.timestamp)) + event.source + ": " + event.message;
+        if (event.repeats > 0) message += " (repeated " + event.repeats + " more times)";
+        System.err.println(message);
+
+        if (event.exception != null) event.exception.printStackTrace();
+    }
+
+
+    /**
+     * Method that writes an event to the log file, rotating it if it's full
+     * @return true if the event was written
+     */
+    private boolean writeToFile(Event event){
+        if (file == null) return false;
+        if (fileWriter == null && System.currentTimeMillis() < fileRetryTime) return false;
+
+        try {
+            if (fileWriter == null) openFile();
+
+            String line = formatEvent(event);
+            fileWriter.write(line);
+            fileSize += line.length();
+
+            if (fileSize >= maxFileSize) {
+                fileWriter.close();
+                fileWriter = null;
+                rotateFiles();
+            }
+            return fileWriter != null;
+        }
+        catch (IOException e) {
+            closeFile("Unable to write to the event log " + file + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+
+    /**
+     * Method that formats an event as a line of the log file
+     * @param event Event to format
+     * @return The line, ending in a newline
+     */
+    private String formatEvent(Event event){
+        StringBuilder line = new StringBuilder(160);
+        line.append("time=").append(fileFormat.format(new Date(event.timestamp)));
+        line.append(" mono=").append(event.nanoTime);
+        line.append(" severity=").append(event.severity);
+        line.append(" type=").append(event.type);
+        line.append(" source=").append(event.source.replace(' ', '_'));
+
+        if (event.channel >= 0) line.append(" channel=").append(event.channel);
+        if (event.values != null && event.values.length > 0) {
+            line.append(" values=");
+            for (int i = 0; i < event.values.length; i++) {
+                if (i > 0) line.append(',');
+                line.append(String.format(Locale.ROOT, "%.6g", event.values[i]));
+            }
+        }
+        if (event.repeats > 0) line.append(" repeats=").append(event.repeats);
+
+        line.append(" message=");
+        appendQuoted(line, event.message);
+
+        if (event.exception != null) {
+            StringWriter trace = new StringWriter();
+            event.exception.printStackTrace(new PrintWriter(trace));
+            line.append(" exception=");
+            appendQuoted(line, trace.toString().trim());
+        }
+        return line.append('\n').toString();
+    }
+
+
+    private static void appendQuoted(StringBuilder line, String text){
+        line.append('"');
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '"':  line.append("\\\""); break;
+                case '\\': line.append("\\\\"); break;
+                case '\n': line.append("\\n");  break;
+                case '\r': line.append("\\r");  break;
+                case '\t': line.append("\\t");  break;
+                default:   line.append(c);      break;
+            }
+        }
+        line.append('"');
+    }
+
+
+    /**
+     * Open the log file for appending
+     * @throws IOException if it can't be opened
+     */
+    private void openFile() throws IOException {
+        File directory = file.getAbsoluteFile().getParentFile();
+        if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create " + directory);
+        }
+
+        fileWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8));
+        fileSize   = file.length();
+    }
+
+
+    /**
+     * Shift every old log file along by one, dropping the oldest, so the current one can start again
+     */
+    private void rotateFiles(){
+        new File(file.getPath() + "." + (fileCount - 1)).delete();
+        for (int i = fileCount - 2; i >= 1; i--) {
+            new File(file.getPath() + "." + i).renameTo(new File(file.getPath() + "." + (i + 1)));
+        }
+        if (fileCount > 1) {
+            file.renameTo(new File(file.getPath() + ".1"));
+        } else {
+            file.delete();
+        }
+    }
+
+
+    /**
+     * Give up on the log file after it has failed, carrying on with the terminal only until it can be opened again
+     * @param message What went wrong
+     */
+    private void closeFile(String message){
+        if (fileWriter != null) {
+            try {
+                fileWriter.close();
+            } catch (IOException e) {
+                // Already failed, nothing more to do
+            }
+            fileWriter = null;
+        }
+        fileRetryTime = System.currentTimeMillis() + FILE_RETRY_PERIOD;
+        System.err.println(terminalFormat.format(new Date()) + message);
+    }
+
+
+    long getLoggedCount() {
+        return loggedCount;
+    }
+
+    long getSuppressedCount() {
+        return suppressedCount.get();
+    }
+
+    long getDroppedCount() {
+        return droppedCount.get();
+    }
+}
@@ -8,26 +8,110 @@ class Exceptions {
     }
 
     static class BadReferenceVoltageException extends Exception {
+        private final int channel;
+        private final double voltage;
+
         BadReferenceVoltageException(int referenceChannel, double referenceVoltage) {
             super(String.format("Ref voltage (from channel %d) is %.2f V, which is too low", referenceChannel, referenceVoltage));
+            this.channel = referenceChannel;
+            this.voltage = referenceVoltage;
+        }
+
+        int getChannel() {
+            return channel;
+        }
+
+        double getVoltage() {
+            return voltage;
         }
     }
 
     static class WriteOutputVoltageException extends Exception {
+        private final int channel;
+
         WriteOutputVoltageException(int channel, double voltage, int address) {
             super(String.format("Failed to write value of %.2f V to output channel %d (0x%04X)", voltage, channel, address));
+            this.channel = channel;
+        }
+
+        WriteOutputVoltageException(int firstChannel, int lastChannel, int address) {
+            super(String.format("Failed to write values to output channels %d-%d (0x%04X)", firstChannel, lastChannel, address));
+            this.channel = firstChannel;
+        }
+
+        // First channel of the write
+        int getChannel() {
+            return channel;
         }
     }
 
     static class ReadInputVoltageException extends Exception {
+        private final int channel;
+
         ReadInputVoltageException(int channel, int address) {
             super(String.format("Failed trying to read value from input channel %d (0x%04X)", channel, address));
+            this.channel = channel;
+        }
+
+        ReadInputVoltageException(int firstChannel, int lastChannel, int address) {
+            super(String.format("Failed trying to read values from input channels %d-%d (0x%04X)", firstChannel, lastChannel, address));
+            this.channel = firstChannel;
+        }
+
+        // First channel of the read
+        int getChannel() {
+            return channel;
         }
     }
 
     static class InconsistentReadingsException extends Exception {
+        private final double voltageReading;
+        private final double voltageSetting;
+
         InconsistentReadingsException(double voltageReading, double voltageSetting){
             super(String.format("Inconsistency between voltage reading (%.2f V) and voltage setting (%.2f V)", voltageReading, voltageSetting));
+            this.voltageReading = voltageReading;
+            this.voltageSetting = voltageSetting;
+        }
+
+        double getVoltageReading() {
+            return voltageReading;
+        }
+
+        double getVoltageSetting() {
+            return voltageSetting;
+        }
+    }
+
+    static class CommandRefusedException extends Exception {
+        private final long cycle;
+        private final ControlCommand command;
+
+        CommandRefusedException(long cycle, ControlCommand command) {
+            super(String.format("Command \"%s\" was refused in cycle %d", command, cycle));
+            this.cycle   = cycle;
+            this.command = command;
+        }
+
+        long getCycle() {
+            return cycle;
+        }
+
+        ControlCommand getCommand() {
+            return command;
+        }
+    }
+
+    static class CycleFailedException extends Exception {
+        private final long cycle;
+
+        CycleFailedException(long cycle, Exception cause) {
+            super(String.format("Cycle %d failed: %s", cycle, cause.getMessage()), cause);
+            this.cycle = cycle;
+        }
+
+        long getCycle() {
+            return cycle;
         }
     }
 }
@@ -1,13 +1,15 @@
 
 
 import javax.swing.*;
+import javax.swing.filechooser.FileNameExtensionFilter;
 import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.WindowEvent;
 import java.awt.event.WindowListener;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
 
 /**
  * Main class the implements the GUI for the HVPS Controller
@@ -21,23 +23,20 @@ public class GUI extends JFrame implements WindowListener{
     // Number of points on the progress bars that represent the readings
     private final int PROGRESS_BAR_RESOLUTION = 1000;
 
-    // Number of cycles where we're willing to accept a discrepancy between our settings and our readings
-    // After this number is exceeded, a software interlock will be tripped
-    private final int NUM_POLL_PERIODS_BEFORE_INTERLOCK = 10;
-
-    // The difference between our target voltage and our voltage we read that we consider to be non-suspicious
-    // If this difference is exceeded for too long a software interlock will be tripped
-    private final double ACCEPTABLE_VOLTAGE_DIFFERENCE = 1.0;       // kV
+    // Minimum time (ms) between updates of the display, regardless of how fast the main loop runs
+    private final int DISPLAY_FRAME_PERIOD = 50;
 
     // Preset quick condition times in minutes
     private final int[] QUICK_CONDITION_TIMES = new int[] {5, 10, 15, 30, 60};
 
-    // Controller that interacts with the Acromag
-    private AcromagController controller = new AcromagController();
+    // Runtime that does the actual controlling, which this window observes and acts on
+    private final ControlRuntime runtime;
+
+    // Hands the readings of the main loop to the Swing thread
+    private TelemetryPublisher publisher;
 
-    // Internal state objects
-    private PowerSupplyState hvState = new PowerSupplyState();
-    private LaserDiodeState  ldState = new LaserDiodeState();
+    // Readings currently shown on the progress bars (in hundredths), so a bar is only redrawn when its value changes
+    private long[] shownReadings = {Long.MIN_VALUE, Long.MIN_VALUE, Long.MIN_VALUE};
 
     // Swing components of the main window (this GUI Object)
     private GridBagConstraints constraints;
@@ -46,6 +45,7 @@ public class GUI extends JFrame implements WindowListener{
     private JToggleButton hvOnButton, hvOffButton, ldOnButton, ldOffButton;
     private JButton setVoltageButton, setLdCurrentButton, abortConditionButton;
     private JProgressBar voltageReading, currentReading, ldCurrentReading;
+    private StripChart stripChart;
     private JLabel statusLabel;
 
     // Swing components of the Set Voltage window
@@ -74,20 +74,42 @@ public class GUI extends JFrame implements WindowListener{
 
 
     /**
-     * Main method that simply calls the GUI constructor
+     * Main method that starts the runtime and attaches a GUI to it
      */
     public static void main(String ... args){
-        new GUI();
+
+        // Load the configuration
+        Configuration.loadConfiguration();
+
+        final ControlRuntime runtime = new ControlRuntime(DeviceConfiguration.fromConfiguration());
+        runtime.start();
+        runtime.watchConfigurationFile();
+        final GUI gui = new GUI(runtime);
+
+        // A save that fails happens after the user has moved on, so make sure they hear about it
+        Configuration.setWriteErrorHandler(new ConfigurationWriter.ErrorHandler() {
+            @Override
+            public void handleError(final String message) {
+                runtime.logEvent(EventLog.Severity.ERROR, EventLog.Type.CONFIGURATION, message);
+                SwingUtilities.invokeLater(new Runnable() {
+                    @Override
+                    public void run() {
+                        JOptionPane.showMessageDialog(gui.isDisplayable() ? gui : null, message, "Configuration", JOptionPane.ERROR_MESSAGE);
+                    }
+                });
+            }
+        });
     }
 
 
     /**
-     * Default constructor that initializes the GUI and calls the mainLoop function
+     * Default constructor that builds the GUI and attaches it to a runtime
+     * @param runtime Runtime to observe and control
      */
-    private GUI(){
+    private GUI(ControlRuntime runtime){
         super("HV Power Supply Controller");
+        this.runtime = runtime;
         initialize();
-        mainLoop();
     }
 
 
@@ -96,8 +118,13 @@ public class GUI extends JFrame implements WindowListener{
      */
     private void initialize(){
 
-        // Load the configuration
-        Configuration.loadConfiguration();
+        // Create the link between the main loop and the display
+        publisher = new TelemetryPublisher(new TelemetryPublisher.Display() {
+            @Override
+            public void showTelemetry(Telemetry telemetry) {
+                updateDisplay(telemetry);
+            }
+        }, DISPLAY_FRAME_PERIOD);
 
         // Build the windows
         buildMainWindow();
@@ -105,13 +132,34 @@ public class GUI extends JFrame implements WindowListener{
         buildSetLaserDiodeCurrentWindow();
         buildConfigWindow();
 
-        // Initialize our states
-        hvState.setEnabled(false);
-        ldState.setEnabled(false);
+        // Start receiving everything that happens in the runtime
+        runtime.addObserver(new ControlRuntime.Observer() {
+            @Override
+            public void showTelemetry(Telemetry telemetry) {
+                publisher.publish(telemetry);
+            }
+
+            @Override
+            public void stateChanged() {
+                requestControlRefresh();
+            }
 
-        // Lock the system until connection is confirmed
-        lockSystem();
+            @Override
+            public void interlockTripped(String message) {
+                showInterlockMessage(message);
+            }
 
+            @Override
+            public void runtimeStopped() {
+                SwingUtilities.invokeLater(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (isDisplayable()) dispose();
+                    }
+                });
+            }
+        });
+        requestControlRefresh();
     }
 
     private void buildMainWindow(){
@@ -138,6 +186,16 @@ public class GUI extends JFrame implements WindowListener{
         });
         advancedMenu.add(configurationMenuItem);
 
+        // Replay menu item
+        JMenuItem replayMenuItem = new JMenuItem("Replay Session...");
+        replayMenuItem.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                replayButtonClicked();
+            }
+        });
+        advancedMenu.add(replayMenuItem);
+
         // Quick condition menu items
         JMenuItem[] quickConditionOptions = new JMenuItem[QUICK_CONDITION_TIMES.length];
         for (int i = 0; i < quickConditionOptions.length; i++){
@@ -146,7 +204,7 @@ public class GUI extends JFrame implements WindowListener{
             quickConditionOptions[i].addActionListener(new ActionListener() {
                 @Override
                 public void actionPerformed(ActionEvent e) {
-                    hvState.startConditioning(time);
+                    startConditioning(time);
                 }
             });
             quickConditionMenu.add(quickConditionOptions[i]);
@@ -171,7 +229,7 @@ public class GUI extends JFrame implements WindowListener{
             hvOnButton.addActionListener(new ActionListener() {
                 @Override
                 public void actionPerformed(ActionEvent e) {
-                    hvState.setEnabled(true);
+                    runtime.setPowerSupplyEnabled(true);
                 }
             });
 
@@ -186,7 +244,7 @@ public class GUI extends JFrame implements WindowListener{
             hvOffButton.addActionListener(new ActionListener() {
                 @Override
                 public void actionPerformed(ActionEvent e) {
-                    hvState.setEnabled(false);
+                    runtime.setPowerSupplyEnabled(false);
                 }
             });
 
@@ -216,7 +274,7 @@ public class GUI extends JFrame implements WindowListener{
             abortConditionButton.addActionListener(new ActionListener() {
                 @Override
                 public void actionPerformed(ActionEvent e) {
-                    hvState.abortConditioning();
+                    runtime.abortConditioning();
                 }
             });
             abortConditionButton.setVisible(false);
@@ -273,7 +331,39 @@ public class GUI extends JFrame implements WindowListener{
 
 
 
-        // ----- LINE # 6 (Separator) -----
+        // ----- LINE # 6 (Strip chart of the readings) ----- //
+            xPos = 0; yPos++;
+            setConstraints(xPos, yPos, 6, 1);
+            setPadding(10, 10, 10, 5);
+
+            stripChart = new StripChart(runtime.getHistory(), true);
+            mainWindowPanel.add(stripChart, constraints);
+
+
+
+        // ----- LINE # 7 (Minute | Hour | Session) ----- //
+            xPos = 0; yPos++;
+            ButtonGroup chartViewGroup = new ButtonGroup();
+
+            for (final StripChart.View view : StripChart.View.values()) {
+                JToggleButton viewButton = new JToggleButton(view.getLabel(), view == stripChart.getView());
+                viewButton.addActionListener(new ActionListener() {
+                    @Override
+                    public void actionPerformed(ActionEvent e) {
+                        stripChart.setView(view);
+                    }
+                });
+                chartViewGroup.add(viewButton);
+
+                setConstraints(xPos, yPos, 2, 1);
+                setPadding(10, 10, 0, 5);
+                mainWindowPanel.add(viewButton, constraints);
+                xPos += 2;
+            }
+
+
+
+        // ----- LINE # 8 (Separator) -----
             xPos = 0; yPos++;
             setConstraints(xPos, yPos, 6, 1);
             setPadding(10, 10, 5, 15);
@@ -281,7 +371,7 @@ public class GUI extends JFrame implements WindowListener{
 
 
 
-        // ----- LINE # 7 ("Laser Diode" | LD On | LD Off | Set Current) -----
+        // ----- LINE # 9 ("Laser Diode" | LD On | LD Off | Set Current) -----
             xPos = 0; yPos++;
             setConstraints(xPos, yPos, 2, 1);
             setPadding(10, 10, 10, 10);
@@ -293,7 +383,7 @@ public class GUI extends JFrame implements WindowListener{
             ldOnButton.addActionListener(new ActionListener() {
                 @Override
                 public void actionPerformed(ActionEvent e) {
-                    ldState.setEnabled(true);
+                    runtime.setLaserDiodeEnabled(true);
                 }
             });
 
@@ -308,7 +398,7 @@ public class GUI extends JFrame implements WindowListener{
             ldOffButton.addActionListener(new ActionListener() {
                 @Override
                 public void actionPerformed(ActionEvent e) {
-                    ldState.setEnabled(false);
+                    runtime.setLaserDiodeEnabled(false);
                 }
             });
 
@@ -336,7 +426,7 @@ public class GUI extends JFrame implements WindowListener{
 
 
 
-        // ----- LINE # 8 (LD Current Setting Label) ----- //
+        // ----- LINE # 10 (LD Current Setting Label) ----- //
             xPos = 0; yPos++;
             setConstraints(xPos, yPos, 6, 1);
             setPadding(10, 10, 5, 5);
@@ -344,7 +434,7 @@ public class GUI extends JFrame implements WindowListener{
 
 
 
-        // ----- LINE # 9 (LD Current Progress Bar) ----- //
+        // ----- LINE # 11 (LD Current Progress Bar) ----- //
             xPos = 0; yPos++;
             setConstraints(xPos, yPos, 6, 1);
             setPadding(10, 10, 0, 10);
@@ -359,14 +449,14 @@ public class GUI extends JFrame implements WindowListener{
 
 
 
-        // ----- LINE # 10 (Separator) -----
+        // ----- LINE # 12 (Separator) -----
             xPos = 0; yPos++;
             setConstraints(xPos, yPos, 6, 1);
             setPadding(10, 10, 5, 15);
             mainWindowPanel.add(new JSeparator(), constraints);
 
 
-        // ----- LINE # 11 (Status bar) -----
+        // ----- LINE # 13 (Status bar) -----
             xPos = 0; yPos++;
             setConstraints(xPos, yPos, 6, 1);
             setPadding(10, 10, 10, 10);
@@ -775,166 +865,12 @@ public class GUI extends JFrame implements WindowListener{
 
 
 
-    /**
-     * Main function loop
-     */
-    private void mainLoop(){
-
-        int interlockCounter = 0;
-        while (this.isVisible()) {
-            try {
-
-                // Pause between polls
-                Thread.sleep(Configuration.getPollPeriod());
-
-                // If we're not connected, attempt to make a new connection
-                if (!controller.isConnected()) {
-                    // Notify the user that we are not connected
-                    statusLabel.setText("Attempting to connect to Acromag at " + Configuration.getAcromagIpAddress() + " ...");
-                    statusLabel.setForeground(Color.RED);
-
-                    controller = new AcromagController(Configuration.getAcromagIpAddress(), Configuration.getModbusPort());
-                }
-
-                // Update the Acromag settings to match our internal state
-                controller.setPowerSupplyEnable(hvState.isEnabled());
-                controller.setPowerSupplyVoltage(hvState.getVoltageSetting());
-                controller.setPowerSupplyCurrent(hvState.getCurrentSetting());
-
-                controller.setLdEnable(ldState.isEnabled());
-                controller.setLaserDiodeCurrent(ldState.getCurrentSetting());
-
-
-                // Get the readings from the Acromag and update our power supply state
-                hvState.setVoltageReading(controller.getPowerSupplyVoltage());
-                hvState.setCurrentReading(controller.getPowerSupplyCurrent());
-
-
-                // Verify that the reading and settings are matching
-                if (hvState.getVoltageReading() + ACCEPTABLE_VOLTAGE_DIFFERENCE < hvState.getVoltageSetting())
-                    interlockCounter++;
-                else if (hvState.getVoltageReading() - ACCEPTABLE_VOLTAGE_DIFFERENCE > hvState.getVoltageSetting())
-                    interlockCounter++;
-                else
-                    interlockCounter = 0;
-
-
-                // If the counter has reached our threshold throw an exception to trip the interlock
-                if (interlockCounter >= NUM_POLL_PERIODS_BEFORE_INTERLOCK)
-                    throw new Exceptions.InconsistentReadingsException(hvState.getVoltageReading(), hvState.getVoltageSetting());
-
-
-                // Update voltage progress bar value
-                double fraction = (hvState.getVoltageReading() / Configuration.getMaxAllowablePowerSupplyVoltage());
-                fraction = Math.max(0, fraction);
-                fraction = Math.min(1, fraction);
-
-                voltageReading.setString(String.format("%.2f kV", (-1) * hvState.getVoltageReading()));
-                voltageReading.setValue((int) (PROGRESS_BAR_RESOLUTION * fraction));
-
-
-                // Update current progress bar value
-                fraction = (hvState.getCurrentReading() / Constants.getPowerSupplyMaxCurrent());
-                fraction = Math.max(0, fraction);
-                fraction = Math.min(1, fraction);
-
-                currentReading.setString(String.format("%.2f mA", hvState.getCurrentReading()));
-                currentReading.setValue((int) (PROGRESS_BAR_RESOLUTION * fraction));
-
-
-                // Update diode current progress bar value
-                fraction = (ldState.getCurrentSetting() / Constants.getLaserDiodeMaxCurrent());
-                fraction = Math.max(0, fraction);
-                fraction = Math.min(1, fraction);
-
-                ldCurrentReading.setString(String.format("%.2f mA", ldState.getCurrentSetting()));
-                ldCurrentReading.setValue((int) (PROGRESS_BAR_RESOLUTION * fraction));
-
-
-                // If we made it to the end, there are no errors. Unlock the system for the user.
-                unlockSystem();
-            }
-
-            // Something has gone wrong
-            catch (Exception e) {
-
-                // We want to lock the system regardless of error
-                lockSystem();
-
-                // Print the error message to the terminal
-                writeErrorMessage(e.getMessage());
-
-                // Make an attempt to turn off the system directly (if we're here this will likely fail)
-                try {
-                    controller.setPowerSupplyEnable(false);
-                    controller.setLdEnable(false);
-                } catch (Exception error) {
-                    // Inform the user we failed
-                    writeErrorMessage("Controller is unable to confirm the state of the HVPS");
-                } finally {
-
-                    // This means we have an issue connecting to the Acromag
-                    if (e instanceof Exceptions.AcromagConnectionException) {
-                        // Without a connection, there's nothing more that can be done
-                    }
-
-
-                    // This means that despite being connected, we somehow failed to communicate with the Acromag
-                    // A precisely timed disconnection could trip this
-                    else if (e instanceof Exceptions.ReadInputVoltageException || e instanceof Exceptions.WriteOutputVoltageException) {
-                        // Without a connection, there's nothing more that can be done
-                    }
-
-
-                    // This means we have a connection to the Acromag but the HVPS appears to be off or disconnected
-                    else if (e instanceof Exceptions.BadReferenceVoltageException) {
-                        // Notify the user that there's something wrong with the connection
-                        statusLabel.setText("Bad connection between Acromag and HVPS.");
-                        statusLabel.setForeground(Color.RED);
-                    }
-
-
-                    // This means that our connection is fine, but the HVPS is not behaving the way we're requesting
-                    // Most likely it's a hardware interlock (the door) but could also indicate hardware issues
-                    else if (e instanceof Exceptions.InconsistentReadingsException) {
-
-                        // Since the door may have been opened, force the user to address the issue for safety reasons
-                        String message = "The voltage readings are inconsistent with this controller's expectations.\n";
-                        message += "This is likely due to the door interlock being tripped.\n";
-                        message += "\n";
-                        message += "The HV Power Supply has been attempted to be turned off.\n";
-                        message += "To continue, VISUALLY verify that all personnel have evacuated the vault before clearing this message";
-
-                        JOptionPane.showMessageDialog(this, message, "Interlock Tripped!", JOptionPane.ERROR_MESSAGE);
-                    }
-
-
-                    // This means we hit an exception that hasn't been accounted for
-                    else {
-
-                        // Let the user know we're in unknown territory
-                        writeErrorMessage("Controller hit an unidentified exception, possibly a runtime error...");
-                        writeErrorMessage("Dumping stack trace:");
-                        e.printStackTrace();
-
-                        System.err.println();
-                        this.dispose();
-
-                        writeErrorMessage("Contact " + AUTHOR_CONTACT + " if the issue persist");
-
-
-                    }
-                }
-            }
-        }
-    }
-
     private void setVoltageButtonClicked(){
         int result = JOptionPane.showConfirmDialog(this,
                 setVoltagePanel, "Select a target voltage", JOptionPane.OK_CANCEL_OPTION);
 
         if (result == JOptionPane.OK_OPTION) {
-            hvState.setVoltageSetting(Double.valueOf(targetVoltageSpinner.getValue().toString()));
+            runtime.setPowerSupplyVoltage(Double.valueOf(targetVoltageSpinner.getValue().toString()));
         }
     }
 
@@ -943,7 +879,29 @@ public class GUI extends JFrame implements WindowListener{
                 setDiodeCurrentPanel, "Select a target current", JOptionPane.OK_CANCEL_OPTION);
 
         if (result == JOptionPane.OK_OPTION) {
-            ldState.setCurrentSetting(Double.valueOf(targetDiodeCurrentSpinner.getValue().toString()));
+            runtime.setLaserDiodeCurrent(Double.valueOf(targetDiodeCurrentSpinner.getValue().toString()));
+        }
+    }
+
+    private void replayButtonClicked(){
+        JFileChooser chooser = new JFileChooser(Configuration.getSampleLogDirectory());
+        chooser.setDialogTitle("Select any file of the session to replay");
+        chooser.setFileFilter(new FileNameExtensionFilter("Sample logs", SampleLog.FILE_SUFFIX.substring(1)));
+
+        if (chooser.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) return;
+
+        try {
+            List<File> session = SampleLogReader.findSession(chooser.getSelectedFile());
+            SessionReplay replay = new SessionReplay(new SampleLogReader(session), new SessionReplay.ErrorHandler() {
+                @Override
+                public void handleError(String message) {
+                    runtime.logEvent(EventLog.Severity.WARNING, EventLog.Type.SAMPLE_LOG, message);
+                }
+            });
+            new ReplayWindow(session.get(0).getName(), replay);
+        }
+        catch (IOException e) {
+            JOptionPane.showMessageDialog(this, "Unable to open the session: " + e.getMessage(), "Replay", JOptionPane.ERROR_MESSAGE);
         }
     }
 
@@ -1026,6 +984,17 @@ public class GUI extends JFrame implements WindowListener{
 
         Configuration.setMaxAllowablePowerSupplyVoltage(Double.valueOf(maxVoltageField.getText()));
 
+        // Refuse settings the device couldn't run with, going back to those in the config file
+        DeviceConfiguration configuration;
+        try {
+            configuration = DeviceConfiguration.fromConfiguration();
+        } catch (IllegalArgumentException e) {
+            Configuration.loadConfiguration();
+            JOptionPane.showMessageDialog(this, "The new settings were not saved: " + e.getMessage(), "Configuration", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        runtime.applyConfiguration(configuration);
+
         Configuration.setMainWindowPosX(this.getX());
         Configuration.setMainWindowPosY(this.getY());
 
@@ -1043,9 +1012,9 @@ public class GUI extends JFrame implements WindowListener{
     }
 
     public void windowClosed(WindowEvent e) {
+        runtime.stop();
         updateConfiguration();
         Configuration.writeConfiguration();
-        controller.disconnect();
     }
 
 
@@ -1076,249 +1045,145 @@ public class GUI extends JFrame implements WindowListener{
         constraints.insets = new Insets(top, left, bottom, right);
     }
 
-    private void lockSystem(){
-
-        // Disable both internal states
-        hvState.setEnabled(false);
-        ldState.setEnabled(false);
-
-        // Disable everything that's not the config button
-        quickConditionMenu.setEnabled(false);
-
-        hvOnButton.setEnabled(false);
-        hvOffButton.setEnabled(false);
-        setVoltageButton.setEnabled(false);
-
-        ldOnButton.setEnabled(false);
-        ldOffButton.setEnabled(false);
-        setLdCurrentButton.setEnabled(false);
-
-
-        // Blank out all of the readings
-        voltageReading.setString("- kV");
-        voltageReading.setValue(0);
-
-        currentReading.setString("- mA");
-        currentReading.setValue(0);
-
-        ldCurrentReading.setString("- mA");
-        ldCurrentReading.setValue(0);
-    }
+    private void startConditioning(int conditionTime){
 
-    private void unlockSystem(){
-        // If we just force our states to "reset" their enabled state, they'll refresh the GUI automatically
-        hvState.setEnabled(hvState.isEnabled());
-        ldState.setEnabled(ldState.isEnabled());
+        // Verify that the user would like to start conditioning
+        String message = String.format("Start a %d min conditioning to %.1f kV?", conditionTime, Configuration.getMaxAllowablePowerSupplyVoltage());
+        int result = JOptionPane.showConfirmDialog(null,  message, "Conditioning", JOptionPane.YES_NO_OPTION);
 
-        // Show that we are connected
-        statusLabel.setText("Connected to " + controller.getAddress());
-        statusLabel.setForeground(Color.BLACK);
-    }
-
-    private void writeErrorMessage(String message){
-        long timeMs = System.currentTimeMillis();
-        SimpleDateFormat simpleDateFormat = new SimpleDateFormat("MMMM dd, yyyy (HH:mm:ss) - ");
-
-        message = simpleDateFormat.format(new Date(timeMs)) + message;
-        System.err.println(message);
+        if (result == JOptionPane.YES_OPTION) {
+            runtime.startConditioning(conditionTime);
+        }
     }
 
+    private void showInterlockMessage(final String message){
 
-    // **********************
-    // Internal state classes
-    // **********************
-
-    class PowerSupplyState{
-
-        private Timer rampVoltageTimer;
-
-        private boolean enabled;
-        private boolean conditioning;
-
-        private double voltageSetting;
-        private double currentSetting;
-
-        private double voltageReading;
-        private double currentReading;
-
-
-        void setEnabled(boolean enabled) {
-            this.enabled = enabled;
-
-            // If we're turning if off we should zero all the settings and kill any conditioning
-            if (!enabled){
-                if (conditioning)   abortConditioning();
-                this.voltageSetting = 0.0;
-                this.currentSetting = 0.0;
-            }
-            // If enabled, set the current to it's max
-            else{
-                this.currentSetting = Constants.getPowerSupplyMaxCurrent();
+        // The runtime keeps the system locked until the message has been cleared
+        SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                JOptionPane.showMessageDialog(GUI.this, message, "Interlock Tripped!", JOptionPane.ERROR_MESSAGE);
+                runtime.acknowledgeInterlock();
             }
+        });
+    }
 
-            // On button should be selected but not enabled when the system is "on"
-            hvOnButton.setEnabled(!enabled);
-            hvOnButton.setSelected(enabled);
-
-            // Off button should not be selected but be enabled when the system is "on"
-            hvOffButton.setEnabled(enabled);
-            hvOffButton.setSelected(!enabled);
-
-            // Set voltage should be enabled if the system is 'on"
-            setVoltageButton.setEnabled(enabled);
 
-            // Configuration options should not be enabled when the system is "on"
-            configurationMenuItem.setEnabled(!enabled);
+    // ********************************************************
+    // Display functions (only called on the Swing thread)
+    // ********************************************************
 
-            // Quick Conditioning should be enabled when the system is "on"
-            quickConditionMenu.setEnabled(enabled);
+    private void requestControlRefresh(){
+        if (SwingUtilities.isEventDispatchThread()) {
+            refreshControls();
+            return;
         }
 
-        void startConditioning(int conditionTime){
-
-            // Calculate our voltage steps
-            final double maxV = Configuration.getMaxAllowablePowerSupplyVoltage();
-            final int totalTime_ms = conditionTime * 60 * 1000;
-
-            final int dt = Configuration.getPollPeriod();
-            final double dV = dt * maxV / totalTime_ms;
-
-            // Verify that the user would like to start conditioning
-            String message = String.format("Start a %d min conditioning to %.1f kV?", conditionTime, maxV);
-            int result = JOptionPane.showConfirmDialog(null,  message, "Conditioning", JOptionPane.YES_NO_OPTION);
-
-
-            if (result == JOptionPane.YES_OPTION) {
-
-                // Update the state
-                this.conditioning = true;
+        SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                refreshControls();
+            }
+        });
+    }
 
-                // Update some GUI elements
-                quickConditionMenu.setEnabled(false);
-                setVoltageButton.setVisible(false);
-                abortConditionButton.setVisible(true);
+    private void refreshControls(){
+        boolean locked = runtime.isLocked();
+        boolean hvEnabled = runtime.getPowerSupplyState().isEnabled();
+        boolean ldEnabled = runtime.getLaserDiodeState().isEnabled();
+        boolean conditioning = runtime.getPowerSupplyState().isConditioning();
 
+        // On button should be selected but not enabled when the system is "on"
+        hvOnButton.setEnabled(!locked && !hvEnabled);
+        hvOnButton.setSelected(hvEnabled);
 
+        // Off button should not be selected but be enabled when the system is "on"
+        hvOffButton.setEnabled(!locked && hvEnabled);
+        hvOffButton.setSelected(!hvEnabled);
 
-                // Start the timer
-                rampVoltageTimer = new Timer(dt, new ActionListener() {
-                    @Override
-                    public void actionPerformed(ActionEvent e) {
-                        hvState.rampVoltage(dV);
-                    }
-                });
+        // Set voltage should be enabled if the system is "on", and is replaced by the abort button while conditioning
+        setVoltageButton.setEnabled(!locked && hvEnabled);
+        setVoltageButton.setVisible(!conditioning);
+        abortConditionButton.setVisible(conditioning);
 
-                rampVoltageTimer.setDelay(dt);
-                rampVoltageTimer.start();
-            }
-        }
+        // Configuration options should not be enabled when the system is "on"
+        configurationMenuItem.setEnabled(!hvEnabled);
 
-        void abortConditioning(){
-            writeErrorMessage("Attempting to abort conditioning... ");
-            stopConditioning();
-            writeErrorMessage("Abort successful!");
-        }
+        // Quick Conditioning should be enabled when the system is "on" and not already conditioning
+        quickConditionMenu.setEnabled(!locked && hvEnabled && !conditioning);
 
-        void stopConditioning(){
+        // Same rules for the laser diode
+        ldOnButton.setEnabled(!locked && !ldEnabled);
+        ldOnButton.setSelected(ldEnabled);
 
-            // Kill the timer
-            rampVoltageTimer.stop();
+        ldOffButton.setEnabled(!locked && ldEnabled);
+        ldOffButton.setSelected(!ldEnabled);
 
-            // Update the state
-            this.conditioning = false;
+        setLdCurrentButton.setEnabled(!locked && ldEnabled);
+    }
 
-            // Update some GUI elements
-            quickConditionMenu.setEnabled(true);
-            setVoltageButton.setVisible(true);
-            abortConditionButton.setVisible(false);
-        }
+    private void updateDisplay(Telemetry telemetry){
 
-        void rampVoltage(double dV){
-            double newVoltage = this.voltageSetting + dV;
-            if (newVoltage > Configuration.getMaxAllowablePowerSupplyVoltage()){
-                newVoltage = Configuration.getMaxAllowablePowerSupplyVoltage();
-                stopConditioning();
-            }
-            this.voltageSetting = newVoltage;
-        }
+        refreshControls();
 
-        void setVoltageSetting(double voltageSetting) {
-            this.voltageSetting = voltageSetting;
-        }
+        // Draw whatever has been added to the history since the last frame
+        stripChart.update();
 
-        void setCurrentSetting(double currentSetting) {
-            this.currentSetting = currentSetting;
+        // Update the status bar
+        if (!telemetry.getStatusMessage().equals(statusLabel.getText())) {
+            statusLabel.setText(telemetry.getStatusMessage());
         }
+        statusLabel.setForeground(telemetry.isStatusError() ? Color.RED : Color.BLACK);
 
-        void setVoltageReading(double voltageReading) {
-            this.voltageReading = voltageReading;
-        }
 
-        void setCurrentReading(double currentReading) {
-            this.currentReading = currentReading;
+        // Blank out all of the readings if we're locked
+        if (telemetry.isLocked()) {
+            showBlankReading(voltageReading, 0, "- kV");
+            showBlankReading(currentReading, 1, "- mA");
+            showBlankReading(ldCurrentReading, 2, "- mA");
+            return;
         }
 
-        boolean isEnabled() {
-            return enabled;
-        }
 
-        public boolean isConditioning() {
-            return conditioning;
-        }
+        // Update voltage progress bar value
+        double fraction = telemetry.getVoltageReading() / runtime.getConfiguration().getMaxAllowablePowerSupplyVoltage();
+        showReading(voltageReading, 0, (-1) * telemetry.getVoltageReading(), fraction, "kV");
 
-        double getVoltageSetting() {
-            return voltageSetting;
-        }
+        // Update current progress bar value
+        fraction = telemetry.getCurrentReading() / Constants.getPowerSupplyMaxCurrent();
+        showReading(currentReading, 1, telemetry.getCurrentReading(), fraction, "mA");
 
-        double getCurrentSetting() {
-            return currentSetting;
-        }
+        // Update diode current progress bar value
+        fraction = telemetry.getLdCurrentSetting() / Constants.getLaserDiodeMaxCurrent();
+        showReading(ldCurrentReading, 2, telemetry.getLdCurrentSetting(), fraction, "mA");
 
-        double getVoltageReading() {
-            return voltageReading;
-        }
 
-        double getCurrentReading() {
-            return currentReading;
-        }
+        // Show how well the main loop is keeping to its schedule
+        statusLabel.setToolTipText(String.format("Poll period %.0f ms (target %d ms, %s), jitter %.1f ms, %d overruns, %d missed polls",
+                telemetry.getAveragePollPeriod(), telemetry.getPollPeriod(), telemetry.getPollMode().getLabel(), telemetry.getAveragePollJitter(),
+                telemetry.getOverrunCount(), telemetry.getMissedPollCount()));
     }
 
-    class LaserDiodeState {
-
-        private boolean enabled;
-        private double currentSetting;
-
-        void setEnabled(boolean enabled) {
-            this.enabled = enabled;
+    private void showReading(JProgressBar bar, int index, double value, double fraction, String units){
 
-            // If we're turning if off we should zero all the settings
-            if (!enabled){
-                this.currentSetting = 0.0;
-            }
-
-            // On button should be selected but not enabled when the system is "on"
-            ldOnButton.setEnabled(!enabled);
-            ldOnButton.setSelected(enabled);
+        // Only touch the bar if what it shows is going to change
+        long hundredths = Math.round(value * 100);
+        if (hundredths == shownReadings[index]) return;
+        shownReadings[index] = hundredths;
 
-            // Off button should not be selected but be enabled when the system is "on"
-            ldOffButton.setEnabled(enabled);
-            ldOffButton.setSelected(!enabled);
+        fraction = Math.max(0, fraction);
+        fraction = Math.min(1, fraction);
 
-            // Set current should be enabled if the system is 'on"
-            setLdCurrentButton.setEnabled(enabled);
-        }
+        bar.setString(String.format("%.2f %s", value, units));
+        bar.setValue((int) (PROGRESS_BAR_RESOLUTION * fraction));
+    }
 
-        void setCurrentSetting(double currentSetting) {
-            this.currentSetting = currentSetting;
-        }
+    private void showBlankReading(JProgressBar bar, int index, String blank){
+        if (shownReadings[index] == Long.MIN_VALUE) return;
+        shownReadings[index] = Long.MIN_VALUE;
 
-        boolean isEnabled() {
-            return enabled;
-        }
-
-        double getCurrentSetting() {
-            return currentSetting;
-        }
+        bar.setString(blank);
+        bar.setValue(0);
     }
 
 }
@@ -0,0 +1,64 @@
+/**
+ * Readings of every Acromag input channel that the blocking reads of an AcromagController fill in, so that polling
+ * doesn't allocate. There is one buffer per controller, and every blocking read refills it, so its contents only
+ * hold until the next blocking read. It belongs to the thread that polls the controller: anything that wants to keep
+ * the readings, or hand them to another thread, has to copy them (as PollSample does) or take a snapshot
+ */
+final class InputBuffer implements InputReadings {
+
+    private long timestamp;
+    private final double[] voltages;
+
+
+    /**
+     * Basic constructor
+     * @param numChannels Number of input channels on the Acromag
+     */
+    InputBuffer(int numChannels){
+        this.voltages = new double[numChannels];
+    }
+
+
+    /**
+     * Method that starts refilling the buffer with a new sample. Only the controller that owns it may do this
+     * @param timestamp Wall clock time (ms) at which the new sample was taken
+     */
+    void setTimestamp(long timestamp){
+        this.timestamp = timestamp;
+    }
+
+
+    /**
+     * Method that records the voltage of an input channel in the buffer being refilled
+     * @param channelID Integer ID (0-15) of the input channel
+     * @param voltage Voltage (V) read by the input channel
+     */
+    void setVoltage(int channelID, double voltage){
+        voltages[channelID] = voltage;
+    }
+
+
+    /**
+     * Method that copies the current readings into a snapshot, which the next read won't change
+     * @return Snapshot of the readings
+     */
+    InputSnapshot toSnapshot(){
+        return new InputSnapshot(timestamp, voltages.clone());
+    }
+
+
+    @Override
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    @Override
+    public double getVoltage(int channelID) {
+        return voltages[channelID];
+    }
+
+    @Override
+    public int getNumChannels() {
+        return voltages.length;
+    }
+}
@@ -0,0 +1,27 @@
+/**
+ * Voltages read by every Acromag input channel in a single poll. Implemented by the immutable InputSnapshot, which
+ * can be handed to any thread, and by the reused InputBuffer of the poll cycle, which can't
+ */
+interface InputReadings {
+
+    /**
+     * Return the time at which the readings were taken
+     * @return Wall clock time (ms) of the readings
+     */
+    long getTimestamp();
+
+
+    /**
+     * Return the voltage that was read on a given input channel
+     * @param channelID Integer ID (0-15) of the input channel
+     * @return Voltage (V) read by the input channel
+     */
+    double getVoltage(int channelID);
+
+
+    /**
+     * Return the number of channels held by the readings
+     * @return Number of input channels
+     */
+    int getNumChannels();
+}
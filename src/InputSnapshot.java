@@ -0,0 +1,36 @@
+/**
+ * Sample of every Acromag input channel, taken in a single poll. Snapshots are never modified once they're made,
+ * so they can be kept and shared between threads freely
+ */
+final class InputSnapshot implements InputReadings {
+
+    private final long timestamp;
+    private final double[] voltages;
+
+
+    /**
+     * Basic constructor
+     * @param timestamp Wall clock time (ms) at which the sample was taken
+     * @param voltages Voltage (V) of each input channel, indexed by channel ID. The snapshot takes ownership of the array
+     */
+    InputSnapshot(long timestamp, double[] voltages){
+        this.timestamp = timestamp;
+        this.voltages  = voltages;
+    }
+
+
+    @Override
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    @Override
+    public double getVoltage(int channelID) {
+        return voltages[channelID];
+    }
+
+    @Override
+    public int getNumChannels() {
+        return voltages.length;
+    }
+}
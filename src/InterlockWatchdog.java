@@ -0,0 +1,242 @@
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Software interlock that runs on its own thread at a much higher rate than the main loop. Every period it reads
+ * only the reference, V-monitor and I-monitor channels and compares the voltage against what the power supply has
+ * been asked for. Once they've disagreed for longer than the trip time, the watchdog turns the power supply and the
+ * laser diode off itself, straight through the Modbus I/O thread, so the shutdown never waits on the main loop, the
+ * user interface or the sample log. Only then is the runtime told about it
+ *
+ * After a step change of the setting the power supply needs time to slew, so disagreement within the settle time
+ * of the change isn't counted. A conditioning ramp moves the setting gradually and the power supply should keep up
+ * with it, so a ramp gets no settle time however far it goes. A tripped watchdog stays tripped until it is reset
+ *
+ * While HV is off and the power supply has discharged there's nothing to protect, so the watchdog drops to the idle
+ * poll period until HV is turned on again
+ */
+class InterlockWatchdog {
+
+    /**
+     * Receiver of a trip. Called on the watchdog's thread after the shutdown has been sent
+     */
+    interface TripHandler {
+        void interlockTripped(double voltageReading, double voltageSetting);
+    }
+
+    // The difference between our target voltage and our voltage we read that we consider to be non-suspicious
+    // If this difference is exceeded for too long the interlock will be tripped
+    private final double ACCEPTABLE_VOLTAGE_DIFFERENCE = 1.0;       // kV
+
+    private final AcromagController controller;
+    private final PowerSupplyState hvState;
+    private final TripHandler tripHandler;
+    private volatile DeviceConfiguration configuration;
+
+    private volatile ControlScheduler scheduler;
+
+    // Only touched on the watchdog's thread
+    private CompletableFuture<InputSnapshot> pendingRead;
+    private int settledStepCount = -1;
+    private long settleEndTime;                 // ns
+    private long disagreementStartTime;         // ns, only meaningful while disagreementCount > 0
+
+    private volatile boolean tripped;
+    private volatile boolean resetRequested;
+
+    // Statistics of the watchdog
+    private volatile int disagreementCount;
+    private volatile long tripCount;
+    private volatile long sampleCount;
+    private volatile long missedSampleCount;
+    private volatile double voltageReading;
+    private volatile double tripReading;
+    private volatile double tripSetting;
+
+
+    /**
+     * Basic constructor
+     * @param controller Controller of the Acromag to watch
+     * @param hvState State of the power supply, which holds the voltage it should be at
+     * @param configuration Settings of the device
+     * @param tripHandler Receiver of every trip
+     */
+    InterlockWatchdog(AcromagController controller, PowerSupplyState hvState, DeviceConfiguration configuration, TripHandler tripHandler){
+        this.controller    = controller;
+        this.hvState       = hvState;
+        this.configuration = configuration;
+        this.tripHandler   = tripHandler;
+    }
+
+
+    /**
+     * Start watching on the watchdog's own thread
+     */
+    synchronized void start(){
+        if (scheduler != null) return;
+
+        scheduler = new ControlScheduler("Interlock Watchdog " + configuration.getName(), configuration.getWatchdogPeriod(), ControlScheduler.OverrunPolicy.SKIP);
+        scheduler.start(new Runnable() {
+            @Override
+            public void run() {
+                check();
+            }
+        });
+    }
+
+
+    synchronized void stop(){
+        if (scheduler == null) return;
+        scheduler.stop();
+        scheduler = null;
+    }
+
+
+    /**
+     * Change the channels, period or trip times of the watchdog. They're used from the next check, which also picks
+     * the period from them
+     * @param configuration New settings of the device
+     */
+    void setConfiguration(DeviceConfiguration configuration){
+        this.configuration = configuration;
+    }
+
+
+    /**
+     * Method that picks the period until the next check
+     * @param configuration Settings of the device
+     * @param reading Voltage (kV) that was last read
+     * @return Watchdog period while HV is on or still charged, otherwise the idle poll period
+     */
+    private int choosePeriod(DeviceConfiguration configuration, double reading){
+        if (hvState.isEnabled() || !(Math.abs(reading) <= ACCEPTABLE_VOLTAGE_DIFFERENCE)) return configuration.getWatchdogPeriod();
+        return Math.max(configuration.getWatchdogPeriod(), configuration.getIdlePollPeriod());
+    }
+
+
+    /**
+     * Check straight away, for when the power supply has just been asked to do something
+     */
+    void wakeUp(){
+        ControlScheduler scheduler = this.scheduler;
+        if (scheduler != null) scheduler.wakeUp();
+    }
+
+
+    /**
+     * Re-arm the watchdog after a trip, starting a fresh window
+     */
+    void reset(){
+        resetRequested = true;
+    }
+
+
+    /**
+     * A single check, run every watchdog period
+     */
+    private void check(){
+        if (resetRequested) {
+            resetRequested    = false;
+            tripped           = false;
+            disagreementCount = 0;
+        }
+
+        DeviceConfiguration configuration = this.configuration;
+        long period = configuration.getWatchdogPeriod();
+
+        // Never have more than one read in flight, or a slow Acromag would have them pile up
+        if (pendingRead == null || pendingRead.isDone()) {
+            int reference = configuration.getReferenceVoltageChannel();
+            int voltage   = configuration.getVoltageMonitorChannel();
+            int current   = configuration.getCurrentMonitorChannel();
+            pendingRead = controller.readInputsAsync(Math.min(reference, Math.min(voltage, current)), Math.max(reference, Math.max(voltage, current)));
+        }
+
+        // Losing the connection isn't a reason to trip, the main loop locks the system for that
+        double reading;
+        try {
+            InputSnapshot inputs = pendingRead.get(period, TimeUnit.MILLISECONDS);
+            reading = controller.getPowerSupplyVoltage(inputs);
+        }
+        catch (TimeoutException | ExecutionException | Exceptions.BadReferenceVoltageException e) {
+            missedSampleCount++;
+            return;
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+
+        long now = System.nanoTime();
+        double setting = hvState.getVoltageSetting();
+        voltageReading = reading;
+        sampleCount++;
+
+        ControlScheduler scheduler = this.scheduler;
+        if (scheduler != null) scheduler.setPeriod(choosePeriod(configuration, reading));
+
+        // A step in the setting gives the power supply the settle time to follow it
+        int stepCount = hvState.getStepCount();
+        if (stepCount != settledStepCount) {
+            settledStepCount = stepCount;
+            settleEndTime    = now + TimeUnit.MILLISECONDS.toNanos(configuration.getInterlockSettleTime());
+        }
+
+        // Verify that the reading and settings are matching
+        if (Math.abs(reading - setting) <= ACCEPTABLE_VOLTAGE_DIFFERENCE) {
+            disagreementCount = 0;
+            return;
+        }
+        if (disagreementCount == 0) disagreementStartTime = now;
+        disagreementCount++;
+
+        // The window only opens once the power supply has had time to settle
+        long windowStart = Math.max(disagreementStartTime, settleEndTime);
+        if (tripped || now - windowStart < TimeUnit.MILLISECONDS.toNanos(configuration.getInterlockTripTime())) return;
+
+        // Turn everything off before anything else happens
+        tripped = true;
+        controller.setPowerSupplyEnableAsync(false);
+        controller.setLdEnableAsync(false);
+
+        tripReading = reading;
+        tripSetting = setting;
+        tripCount++;
+        tripHandler.interlockTripped(reading, setting);
+    }
+
+
+    boolean isTripped() {
+        return tripped;
+    }
+
+    int getDisagreementCount() {
+        return disagreementCount;
+    }
+
+    long getTripCount() {
+        return tripCount;
+    }
+
+    long getSampleCount() {
+        return sampleCount;
+    }
+
+    long getMissedSampleCount() {
+        return missedSampleCount;
+    }
+
+    double getVoltageReading() {
+        return voltageReading;
+    }
+
+    double getTripReading() {
+        return tripReading;
+    }
+
+    double getTripSetting() {
+        return tripSetting;
+    }
+}
@@ -0,0 +1,38 @@
+/**
+ * State of the laser diode, as requested by the user
+ */
+class LaserDiodeState {
+
+    private volatile boolean enabled;
+    private volatile double currentSetting;
+
+    void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+
+        // If we're turning if off we should zero all the settings
+        if (!enabled){
+            this.currentSetting = 0.0;
+        }
+    }
+
+    /**
+     * Make the settings the same as another state's
+     * @param other State to copy the settings of
+     */
+    void copySettingsFrom(LaserDiodeState other){
+        this.enabled        = other.enabled;
+        this.currentSetting = other.currentSetting;
+    }
+
+    void setCurrentSetting(double currentSetting) {
+        this.currentSetting = currentSetting;
+    }
+
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    double getCurrentSetting() {
+        return currentSetting;
+    }
+}
@@ -0,0 +1,123 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of latencies. Buckets are log-linear (16 per power of two, so any value is within about
+ * 6% of the bucket it lands in) over a range of 1 us to days, and recording is a couple of atomic increments,
+ * which makes it cheap enough to use on every Modbus transaction
+ */
+class LatencyHistogram {
+
+    // Resolution of the histogram, values are recorded in units of 2^UNIT_SHIFT ns (about 1 us)
+    private final int UNIT_SHIFT = 10;
+
+    // Number of buckets per power of two (as a power of two itself)
+    private final int SUB_BUCKET_BITS = 4;
+    private final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(SUB_BUCKET_COUNT * (64 - UNIT_SHIFT - SUB_BUCKET_BITS + 1));
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+
+    /**
+     * Record a latency
+     * @param nanos Latency (ns)
+     */
+    void record(long nanos){
+        if (nanos < 0) nanos = 0;
+
+        buckets.incrementAndGet(getIndex(nanos >> UNIT_SHIFT));
+        count.incrementAndGet();
+        total.addAndGet(nanos);
+
+        long currentMax = max.get();
+        while (nanos > currentMax && !max.compareAndSet(currentMax, nanos)) {
+            currentMax = max.get();
+        }
+    }
+
+
+    /**
+     * Forget everything that has been recorded. Values recorded while this runs may or may not survive
+     */
+    void reset(){
+        for (int i = 0; i < buckets.length(); i++) {
+            buckets.set(i, 0);
+        }
+        count.set(0);
+        total.set(0);
+        max.set(0);
+    }
+
+
+    /**
+     * Return the latency below which a given fraction of the recorded latencies fall
+     * @param fraction Fraction (0-1) of the latencies
+     * @return Latency (ns), 0 if nothing has been recorded
+     */
+    long getPercentile(double fraction){
+
+        // Count what's actually in the buckets rather than trusting count, which may be mid-update
+        long recorded = 0;
+        for (int i = 0; i < buckets.length(); i++) {
+            recorded += buckets.get(i);
+        }
+        if (recorded == 0) return 0;
+
+        long rank = Math.max(1, (long) Math.ceil(fraction * recorded));
+        long seen = 0;
+        for (int i = 0; i < buckets.length(); i++) {
+            seen += buckets.get(i);
+            if (seen >= rank) return Math.min(getMidpoint(i) << UNIT_SHIFT, max.get());
+        }
+        return max.get();
+    }
+
+
+    long getCount() {
+        return count.get();
+    }
+
+    long getMax() {
+        return max.get();
+    }
+
+    double getMean() {
+        long n = count.get();
+        return (n == 0) ? 0.0 : (double) total.get() / n;
+    }
+
+
+    /**
+     * Convenience function for finding the bucket a value belongs to
+     * @param value Value in units of the histogram
+     * @return Index of the bucket
+     */
+    private int getIndex(long value){
+        if (value < SUB_BUCKET_COUNT) return (int) value;
+
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - SUB_BUCKET_BITS;
+        int mantissa = (int) (value >> shift) - SUB_BUCKET_COUNT;
+
+        return SUB_BUCKET_COUNT + shift * SUB_BUCKET_COUNT + mantissa;
+    }
+
+
+    /**
+     * Convenience function for the value in the middle of a bucket
+     * @param index Index of the bucket
+     * @return Value in units of the histogram
+     */
+    private long getMidpoint(int index){
+        if (index < SUB_BUCKET_COUNT) return index;
+
+        int shift = (index - SUB_BUCKET_COUNT) / SUB_BUCKET_COUNT;
+        int mantissa = (index - SUB_BUCKET_COUNT) % SUB_BUCKET_COUNT;
+
+        long lower = (long) (SUB_BUCKET_COUNT + mantissa) << shift;
+        return lower + ((1L << shift) >> 1);
+    }
+}
@@ -0,0 +1,302 @@
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Single thread that performs the network I/O of every Modbus connection. The channels are non-blocking and
+ * share one selector, so any number of Acromags can be served without a thread sitting blocked on each of them.
+ * Everything that touches a channel runs on this thread, either as a task, a timer or a readiness callback
+ */
+class ModbusReactor {
+
+    /**
+     * Something that wants to be told when its channel is ready
+     */
+    interface Handler {
+        void handleReady(SelectionKey key);
+    }
+
+
+    /**
+     * Task that runs on the reactor thread once its deadline has passed, unless it is cancelled first
+     */
+    static class Timer implements Comparable<Timer> {
+        private final long deadline;        // ns
+        private final Runnable task;
+        private long sequence;              // Order in which timers were added, to break ties between deadlines
+        private volatile boolean cancelled;
+
+        private Timer(long deadline, Runnable task){
+            this.deadline = deadline;
+            this.task     = task;
+        }
+
+        void cancel(){
+            cancelled = true;
+        }
+
+        @Override
+        public int compareTo(Timer other) {
+            if (deadline != other.deadline) return (deadline - other.deadline < 0) ? -1 : 1;
+            return Long.compare(sequence, other.sequence);
+        }
+    }
+
+
+    /**
+     * Task that is handed to the reactor again and again. Handing one over never allocates, unlike execute(), but
+     * it must not be handed over again until it has started running
+     */
+    abstract static class ReusableTask implements Runnable {
+        private ReusableTask next;
+    }
+
+
+    private static ModbusReactor instance;
+
+    private final Selector selector;
+    private final Thread thread;
+
+    // Tasks handed over by other threads, and the timers (only touched on the reactor thread)
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+    private final AtomicReference<ReusableTask> reusableTasks = new AtomicReference<ReusableTask>();
+    private final PriorityQueue<Timer> timers = new PriorityQueue<Timer>();
+    private long timerSequence = 0;
+
+    // Every key registered with the selector, so that the ready ones can be found without allocating an iterator
+    // (only touched on the reactor thread)
+    private final ArrayList<SelectionKey> keys = new ArrayList<SelectionKey>();
+
+
+    /**
+     * Return the reactor shared by every connection, starting it the first time it's needed
+     * @return The shared reactor
+     */
+    static synchronized ModbusReactor getInstance(){
+        if (instance == null) {
+            try {
+                instance = new ModbusReactor();
+            } catch (IOException e) {
+                throw new IllegalStateException("Unable to open a selector for Modbus I/O", e);
+            }
+        }
+        return instance;
+    }
+
+
+    /**
+     * Basic constructor, which starts the reactor thread
+     * @throws IOException if the selector can't be opened
+     */
+    private ModbusReactor() throws IOException {
+        selector = Selector.open();
+
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runLoop();
+            }
+        }, "Modbus I/O");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+
+    /**
+     * Run a task on the reactor thread as soon as possible. Tasks run in the order they are submitted
+     * @param task Task to run
+     */
+    void execute(Runnable task){
+        tasks.add(task);
+        if (!isReactorThread()) selector.wakeup();
+    }
+
+
+    /**
+     * Run a reusable task on the reactor thread as soon as possible, without allocating. Reusable tasks run after
+     * the tasks handed over with execute(), in no particular order between themselves
+     * @param task Task to run, which mustn't already be waiting to run
+     */
+    void execute(ReusableTask task){
+        ReusableTask head;
+        do {
+            head = reusableTasks.get();
+            task.next = head;
+        } while (!reusableTasks.compareAndSet(head, task));
+
+        if (!isReactorThread()) selector.wakeup();
+    }
+
+
+    /**
+     * Run a task on the reactor thread after a delay
+     * @param task Task to run
+     * @param delay Time (ms) to wait before running it
+     * @return Timer that can be used to cancel the task
+     */
+    Timer schedule(Runnable task, long delay){
+        final Timer timer = new Timer(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(0, delay)), task);
+
+        if (isReactorThread()) {
+            addTimer(timer);
+        } else {
+            execute(new Runnable() {
+                @Override
+                public void run() {
+                    addTimer(timer);
+                }
+            });
+        }
+        return timer;
+    }
+
+
+    /**
+     * Register a channel with the selector, which must be done on the reactor thread
+     * @param channel Non-blocking channel to register
+     * @param ops Operations of interest
+     * @param handler Handler to call whenever the channel is ready
+     * @return Key of the registration
+     * @throws ClosedChannelException if the channel has been closed
+     */
+    SelectionKey register(SelectableChannel channel, int ops, Handler handler) throws ClosedChannelException {
+        SelectionKey key = channel.register(selector, ops, handler);
+        if (!keys.contains(key)) keys.add(key);
+        return key;
+    }
+
+
+    /**
+     * Check whether the calling thread is the reactor thread. Anything running there must never block
+     * @return true if called from the reactor thread
+     */
+    boolean isReactorThread(){
+        return Thread.currentThread() == thread;
+    }
+
+
+    /**
+     * Main loop of the reactor thread
+     */
+    private void runLoop(){
+
+        while (true) {
+
+            // Run everything that's due, and work out how long we can wait for the channels
+            runTasks();
+            long timeout = runTimers();
+
+            try {
+                if (!tasks.isEmpty() || reusableTasks.get() != null) {
+                    selector.selectNow();
+                } else {
+                    selector.select(timeout);
+                }
+            } catch (IOException e) {
+                continue;
+            }
+
+
+            // Hand each ready channel to its handler. Any key a handler registers goes on the end, where it isn't
+            // reached until the next time round
+            Set<SelectionKey> selectedKeys = selector.selectedKeys();
+            for (int i = keys.size() - 1; i >= 0 && !selectedKeys.isEmpty(); i--) {
+                SelectionKey key = keys.get(i);
+                if (!selectedKeys.remove(key)) continue;
+                if (!key.isValid()) continue;
+
+                try {
+                    ((Handler) key.attachment()).handleReady(key);
+                } catch (RuntimeException e) {
+                    // One misbehaving connection mustn't take down the others
+                    logFailure("A connection failed to handle its channel", e);
+                }
+            }
+            selectedKeys.clear();
+
+            // Forget the keys of channels that have been closed
+            for (int i = keys.size() - 1; i >= 0; i--) {
+                if (!keys.get(i).isValid()) keys.remove(i);
+            }
+        }
+    }
+
+
+    /**
+     * Log something that went wrong on the reactor thread without holding it up
+     * @param message What failed
+     * @param e Exception it failed with
+     */
+    private void logFailure(String message, RuntimeException e){
+        EventLog.getInstance().log(EventLog.Severity.ERROR, EventLog.Type.INTERNAL, "Modbus I/O", -1, null, message, e);
+    }
+
+
+    /**
+     * Run every task that has been handed over so far
+     */
+    private void runTasks(){
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                logFailure("A task failed", e);
+            }
+        }
+
+        // Each one can be handed over again as soon as it starts running, so let go of it before then
+        ReusableTask reusableTask = reusableTasks.getAndSet(null);
+        while (reusableTask != null) {
+            ReusableTask next = reusableTask.next;
+            reusableTask.next = null;
+            try {
+                reusableTask.run();
+            } catch (RuntimeException e) {
+                logFailure("A task failed", e);
+            }
+            reusableTask = next;
+        }
+    }
+
+
+    /**
+     * Run every timer whose deadline has passed
+     * @return Time (ms) until the next deadline, 0 if there are no timers
+     */
+    private long runTimers(){
+        while (!timers.isEmpty()) {
+            Timer timer = timers.peek();
+
+            long remaining = timer.deadline - System.nanoTime();
+            if (remaining > 0) return Math.max(1, TimeUnit.NANOSECONDS.toMillis(remaining));
+
+            timers.poll();
+            if (timer.cancelled) continue;
+            try {
+                timer.task.run();
+            } catch (RuntimeException e) {
+                logFailure("A timer failed", e);
+            }
+        }
+        return 0;
+    }
+
+
+    /**
+     * Convenience function for adding a timer, keeping timers with equal deadlines in the order they were added
+     * @param timer Timer to add
+     */
+    private void addTimer(Timer timer){
+        timer.sequence = timerSequence++;
+        timers.add(timer);
+    }
+}
@@ -0,0 +1,373 @@
+import net.wimpi.modbus.msg.*;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.CompositeDataSupport;
+import javax.management.openmbean.CompositeType;
+import javax.management.openmbean.OpenDataException;
+import javax.management.openmbean.OpenType;
+import javax.management.openmbean.SimpleType;
+import javax.management.openmbean.TabularData;
+import javax.management.openmbean.TabularDataSupport;
+import javax.management.openmbean.TabularType;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Statistics of every Modbus transaction made over a connection, broken down by function code and by the address
+ * the request starts at. Recording never takes a lock, so it can be done on every transaction. The statistics can
+ * be published over JMX, where the percentiles are computed on demand and everything can be reset
+ */
+class ModbusStatistics implements ModbusStatisticsMBean {
+
+    // Items reported for each latency histogram over JMX
+    private static final String[] LATENCY_ITEMS = {"count", "meanMs", "p50Ms", "p99Ms", "p999Ms", "maxMs"};
+    private static final String[] FUNCTION_ITEMS = {"function", "count", "meanMs", "p50Ms", "p99Ms", "p999Ms", "maxMs"};
+    private static final String[] ADDRESS_ITEMS = {"function", "address", "count", "exceptions", "timeouts", "meanMs", "p50Ms", "p99Ms", "p999Ms", "maxMs"};
+
+    private final AtomicLong transactionCount = new AtomicLong();
+    private final AtomicLong exceptionCount = new AtomicLong();
+    private final AtomicLong timeoutCount = new AtomicLong();
+    private final AtomicLong disconnectCount = new AtomicLong();
+    private final AtomicLong reconnectCount = new AtomicLong();
+
+    private final LatencyHistogram queueDelay = new LatencyHistogram();
+    private final ConcurrentMap<Integer, LatencyHistogram> functions = new ConcurrentHashMap<Integer, LatencyHistogram>();
+    private final ConcurrentMap<Integer, AddressStatistics> addresses = new ConcurrentHashMap<Integer, AddressStatistics>();
+
+    // Addresses looked up most recently, so that recording a transaction doesn't box its key every time
+    private final int ADDRESS_CACHE_SIZE = 16;
+    private final AtomicReferenceArray<AddressStatistics> recentAddresses = new AtomicReferenceArray<AddressStatistics>(ADDRESS_CACHE_SIZE);
+
+    // Name these statistics are published under, null while they aren't. Once they've been withdrawn they stay that
+    // way, so a registration that was still on its way can't publish them again
+    private ObjectName objectName;
+    private boolean withdrawn;
+
+
+    /**
+     * Everything recorded about the requests of one function code that start at one address
+     */
+    private static class AddressStatistics {
+        final int key;
+        final LatencyHistogram latency = new LatencyHistogram();
+        final AtomicLong exceptions = new AtomicLong();
+        final AtomicLong timeouts = new AtomicLong();
+
+        AddressStatistics(int key){
+            this.key = key;
+        }
+    }
+
+
+    /**
+     * Record a transaction that got a response
+     * @param request Request that was sent
+     * @param queueNanos Time (ns) between the request being submitted and it being written to the socket
+     * @param roundTripNanos Time (ns) between the request being written and its response arriving
+     * @param isException Whether the Acromag answered with an exception
+     */
+    void recordTransaction(ModbusRequest request, long queueNanos, long roundTripNanos, boolean isException){
+        recordTransaction(request.getFunctionCode(), getReference(request), queueNanos, roundTripNanos, isException);
+    }
+
+
+    /**
+     * Record a transaction that got a response, for requests that were encoded without a ModbusRequest. Doesn't
+     * allocate once the function code and address have been seen
+     * @param functionCode Function code of the request
+     * @param reference Address the request starts at
+     * @param queueNanos Time (ns) between the request being submitted and it being written to the socket
+     * @param roundTripNanos Time (ns) between the request being written and its response arriving
+     * @param isException Whether the Acromag answered with an exception
+     */
+    void recordTransaction(int functionCode, int reference, long queueNanos, long roundTripNanos, boolean isException){
+        transactionCount.incrementAndGet();
+        if (isException) exceptionCount.incrementAndGet();
+
+        queueDelay.record(queueNanos);
+        getFunction(functionCode).record(roundTripNanos);
+
+        AddressStatistics statistics = getAddress(functionCode, reference);
+        statistics.latency.record(roundTripNanos);
+        if (isException) statistics.exceptions.incrementAndGet();
+    }
+
+
+    /**
+     * Record a transaction that was given up on because its response didn't arrive in time
+     * @param request Request that was sent
+     */
+    void recordTimeout(ModbusRequest request){
+        recordTimeout(request.getFunctionCode(), getReference(request));
+    }
+
+
+    /**
+     * Record a transaction that was given up on because its response didn't arrive in time
+     * @param functionCode Function code of the request
+     * @param reference Address the request starts at
+     */
+    void recordTimeout(int functionCode, int reference){
+        timeoutCount.incrementAndGet();
+        getAddress(functionCode, reference).timeouts.incrementAndGet();
+    }
+
+
+    /**
+     * Record that an established connection was lost
+     */
+    void recordDisconnect(){
+        disconnectCount.incrementAndGet();
+    }
+
+
+    /**
+     * Record that a connection was established after an earlier one had been lost
+     */
+    void recordReconnect(){
+        reconnectCount.incrementAndGet();
+    }
+
+
+    /**
+     * Publish these statistics on the platform MBean server. Does nothing once they've been unregistered
+     * @param name Name that identifies the connection
+     * @throws JMException if they can't be registered
+     */
+    synchronized void register(String name) throws JMException {
+        if (withdrawn || objectName != null) return;
+
+        ObjectName objectName = new ObjectName("HVPowerSupplyController:type=ModbusStatistics,name=" + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        this.objectName = objectName;
+    }
+
+
+    /**
+     * Withdraw these statistics from the platform MBean server, for good, so that the name is free for the next
+     * connection. Safe to call whether or not they were ever registered
+     * @throws JMException if they can't be unregistered
+     */
+    synchronized void unregister() throws JMException {
+        withdrawn = true;
+        if (objectName == null) return;
+
+        ObjectName registered = objectName;
+        objectName = null;
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(registered);
+    }
+
+
+    @Override
+    public long getTransactionCount() {
+        return transactionCount.get();
+    }
+
+    @Override
+    public long getExceptionCount() {
+        return exceptionCount.get();
+    }
+
+    @Override
+    public long getTimeoutCount() {
+        return timeoutCount.get();
+    }
+
+    @Override
+    public long getDisconnectCount() {
+        return disconnectCount.get();
+    }
+
+    @Override
+    public long getReconnectCount() {
+        return reconnectCount.get();
+    }
+
+
+    @Override
+    public TabularData getFunctionLatencies() {
+        try {
+            OpenType<?>[] types = concat(new OpenType<?>[] {SimpleType.STRING}, getLatencyTypes());
+            CompositeType rowType = new CompositeType("FunctionLatency", "Round trip latency of a function code",
+                    FUNCTION_ITEMS, FUNCTION_ITEMS, types);
+            TabularDataSupport table = new TabularDataSupport(new TabularType("FunctionLatencies",
+                    "Round trip latency of each function code", rowType, new String[] {"function"}));
+
+            for (Integer functionCode : sorted(functions.keySet())) {
+                Object[] values = concat(new Object[] {getFunctionName(functionCode)}, getLatencyValues(functions.get(functionCode)));
+                table.put(new CompositeDataSupport(rowType, FUNCTION_ITEMS, values));
+            }
+            return table;
+        }
+        catch (OpenDataException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+
+    @Override
+    public TabularData getAddressLatencies() {
+        try {
+            OpenType<?>[] types = {SimpleType.STRING, SimpleType.STRING, SimpleType.LONG, SimpleType.LONG, SimpleType.LONG,
+                    SimpleType.DOUBLE, SimpleType.DOUBLE, SimpleType.DOUBLE, SimpleType.DOUBLE, SimpleType.DOUBLE};
+            CompositeType rowType = new CompositeType("AddressLatency", "Statistics of the requests starting at an address",
+                    ADDRESS_ITEMS, ADDRESS_ITEMS, types);
+            TabularDataSupport table = new TabularDataSupport(new TabularType("AddressLatencies",
+                    "Statistics of each function code and starting address", rowType, new String[] {"function", "address"}));
+
+            for (Integer key : sorted(addresses.keySet())) {
+                AddressStatistics statistics = addresses.get(key);
+                Object[] latency = getLatencyValues(statistics.latency);
+
+                Object[] values = new Object[ADDRESS_ITEMS.length];
+                values[0] = getFunctionName(key >>> 16);
+                values[1] = String.format("0x%04X", key & 0xFFFF);
+                values[2] = latency[0];
+                values[3] = statistics.exceptions.get();
+                values[4] = statistics.timeouts.get();
+                System.arraycopy(latency, 1, values, 5, latency.length - 1);
+
+                table.put(new CompositeDataSupport(rowType, ADDRESS_ITEMS, values));
+            }
+            return table;
+        }
+        catch (OpenDataException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+
+    @Override
+    public CompositeData getQueueDelay() {
+        try {
+            CompositeType type = new CompositeType("Latency", "Latency percentiles", LATENCY_ITEMS, LATENCY_ITEMS, getLatencyTypes());
+            return new CompositeDataSupport(type, LATENCY_ITEMS, getLatencyValues(queueDelay));
+        }
+        catch (OpenDataException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+
+    @Override
+    public void reset() {
+        transactionCount.set(0);
+        exceptionCount.set(0);
+        timeoutCount.set(0);
+        disconnectCount.set(0);
+        reconnectCount.set(0);
+
+        queueDelay.reset();
+        functions.clear();
+        addresses.clear();
+        for (int i = 0; i < ADDRESS_CACHE_SIZE; i++) {
+            recentAddresses.set(i, null);
+        }
+    }
+
+
+    private LatencyHistogram getFunction(int functionCode){
+        LatencyHistogram histogram = functions.get(functionCode);
+        if (histogram == null) {
+            LatencyHistogram created = new LatencyHistogram();
+            histogram = functions.putIfAbsent(functionCode, created);
+            if (histogram == null) histogram = created;
+        }
+        return histogram;
+    }
+
+    private AddressStatistics getAddress(int functionCode, int reference){
+        int key = (functionCode << 16) | (reference & 0xFFFF);
+
+        int slot = (key ^ (key >>> 16)) & (ADDRESS_CACHE_SIZE - 1);
+        AddressStatistics statistics = recentAddresses.get(slot);
+        if (statistics != null && statistics.key == key) return statistics;
+
+        statistics = addresses.get(key);
+        if (statistics == null) {
+            AddressStatistics created = new AddressStatistics(key);
+            statistics = addresses.putIfAbsent(key, created);
+            if (statistics == null) statistics = created;
+        }
+        recentAddresses.set(slot, statistics);
+        return statistics;
+    }
+
+
+    /**
+     * Convenience function for the values reported for a histogram, in the order of LATENCY_ITEMS
+     * @param histogram Histogram to report
+     * @return Count followed by the mean and percentiles (ms)
+     */
+    private Object[] getLatencyValues(LatencyHistogram histogram){
+        return new Object[] {
+                histogram.getCount(),
+                histogram.getMean() / 1e6,
+                histogram.getPercentile(0.50) / 1e6,
+                histogram.getPercentile(0.99) / 1e6,
+                histogram.getPercentile(0.999) / 1e6,
+                histogram.getMax() / 1e6
+        };
+    }
+
+
+    /**
+     * Convenience function for the open types of the values reported for a histogram
+     * @return Type of the count followed by the types of the mean and percentiles
+     */
+    private OpenType<?>[] getLatencyTypes(){
+        return new OpenType<?>[] {SimpleType.LONG, SimpleType.DOUBLE, SimpleType.DOUBLE, SimpleType.DOUBLE, SimpleType.DOUBLE, SimpleType.DOUBLE};
+    }
+
+
+    /**
+     * Convenience function for the address a request starts at
+     * @param request Any request
+     * @return Starting address, -1 if the request doesn't have one
+     */
+    static int getReference(ModbusRequest request){
+        if (request instanceof ReadInputRegistersRequest) return ((ReadInputRegistersRequest) request).getReference();
+        if (request instanceof ReadMultipleRegistersRequest) return ((ReadMultipleRegistersRequest) request).getReference();
+        if (request instanceof WriteSingleRegisterRequest) return ((WriteSingleRegisterRequest) request).getReference();
+        if (request instanceof WriteMultipleRegistersRequest) return ((WriteMultipleRegistersRequest) request).getReference();
+        return -1;
+    }
+
+
+    private static String getFunctionName(int functionCode){
+        switch (functionCode) {
+            case 0x03:
+                return "Read Holding Registers";
+            case 0x04:
+                return "Read Input Registers";
+            case 0x06:
+                return "Write Single Register";
+            case 0x10:
+                return "Write Multiple Registers";
+            default:
+                return String.format("Function 0x%02X", functionCode);
+        }
+    }
+
+    private static List<Integer> sorted(Set<Integer> keys){
+        List<Integer> list = new ArrayList<Integer>(keys);
+        Collections.sort(list);
+        return list;
+    }
+
+    private static <T> T[] concat(T[] first, T[] second){
+        T[] result = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, result, first.length, second.length);
+        return result;
+    }
+}
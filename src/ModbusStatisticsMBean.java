@@ -0,0 +1,29 @@
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+
+/**
+ * Management interface of ModbusStatistics, as published over JMX. Latencies are in ms
+ */
+public interface ModbusStatisticsMBean {
+
+    long getTransactionCount();
+
+    long getExceptionCount();
+
+    long getTimeoutCount();
+
+    long getDisconnectCount();
+
+    long getReconnectCount();
+
+    // Round trip latency of each function code
+    TabularData getFunctionLatencies();
+
+    // Round trip latency, exception and timeout counts of each function code and starting address
+    TabularData getAddressLatencies();
+
+    // Time requests spent queued in our own code before going out on the wire
+    CompositeData getQueueDelay();
+
+    void reset();
+}
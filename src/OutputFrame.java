@@ -0,0 +1,70 @@
+/**
+ * Set of output channel values that are staged during a poll and written to the Acromag together
+ */
+class OutputFrame {
+
+    private final int[] data;
+    private final boolean[] staged;
+
+    private int firstChannel;
+    private int lastChannel;
+
+
+    /**
+     * Basic constructor
+     * @param numChannels Number of output channels on the Acromag
+     */
+    OutputFrame(int numChannels){
+        data   = new int[numChannels];
+        staged = new boolean[numChannels];
+        clear();
+    }
+
+
+    /**
+     * Stage a data value for an output channel, replacing anything previously staged for it
+     * @param channelID Integer ID (0-15) of the output channel
+     * @param dataValue Raw data value to write to the channel
+     */
+    void stage(int channelID, int dataValue){
+        data[channelID]   = dataValue;
+        staged[channelID] = true;
+
+        firstChannel = Math.min(firstChannel, channelID);
+        lastChannel  = Math.max(lastChannel, channelID);
+    }
+
+
+    /**
+     * Remove everything that has been staged
+     */
+    void clear(){
+        for (int i = 0; i < staged.length; i++) {
+            staged[i] = false;
+        }
+
+        firstChannel = staged.length;
+        lastChannel  = -1;
+    }
+
+
+    boolean isEmpty() {
+        return lastChannel < firstChannel;
+    }
+
+    boolean isStaged(int channelID) {
+        return staged[channelID];
+    }
+
+    int getData(int channelID) {
+        return data[channelID];
+    }
+
+    int getFirstChannel() {
+        return firstChannel;
+    }
+
+    int getLastChannel() {
+        return lastChannel;
+    }
+}
@@ -0,0 +1,509 @@
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+/**
+ * Benchmark of the code that runs every poll, measured against an AcromagSimulator on the loopback interface.
+ * Each benchmark is warmed up, then run for a fixed time while the duration of every operation is recorded,
+ * and is reported as throughput, latency percentiles and the bytes allocated per operation (by the benchmark
+ * thread and the Modbus I/O thread, but not by the simulator).
+ *
+ * With --check-allocation, the benchmarks are replaced by a check that a steady poll doesn't allocate, both through
+ * the controller and through the main loop of a ControlRuntime. The process exits with status 1 if either does.
+ *
+ * Options: --warmup ms, --time ms, --latency ms (simulated response latency), --only name, --check-allocation
+ */
+class PollBenchmark {
+
+    // Most latencies that are recorded per benchmark, anything beyond this only counts towards the throughput
+    private final int MAX_SAMPLES = 1 << 20;
+
+    // Operations of the conversion benchmark are too quick to time one by one, so they are timed in batches
+    private final int CONVERSION_BATCH = 1000;
+
+    // Most bytes a steady poll may allocate on the Modbus I/O thread. On JDK 17 the Selector's selected-key set is a
+    // HashSet, so each ready channel it adds allocates a 32 byte HashMap node. A poll's responses are normally read
+    // in one event, which --check-allocation measures at 32 B/poll, but can be split over two. Nothing else on that
+    // thread, and nothing at all on the thread doing the polling, may allocate
+    private final int MAX_IO_BYTES_PER_POLL = 64;
+
+    // Most times the allocation check measures each way of polling before it gives up
+    private final int MAX_MEASUREMENTS = 3;
+
+    private final long warmupTime;      // ms
+    private final long measureTime;     // ms
+    private final String only;
+
+    private final long[] samples = new long[MAX_SAMPLES];
+    private final com.sun.management.ThreadMXBean threads;
+
+    private long[] measuredThreads;
+
+    private AcromagSimulator simulator;
+    private AcromagConnection connection;
+    private AcromagController controller;
+
+    // Results of the operations end up here so that the JIT can't throw the work away
+    private volatile double sink;
+    private int counter = 0;
+
+
+    /**
+     * Something whose performance is being measured
+     */
+    interface Operation {
+        void run() throws Exception;
+    }
+
+
+    /**
+     * Main method that runs every benchmark and prints a table of the results
+     */
+    public static void main(String ... args) throws Exception {
+
+        long warmupTime  = 2000;
+        long measureTime = 5000;
+        int latency = 0;
+        String only = null;
+        boolean checkAllocation = false;
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--warmup":
+                    warmupTime = Long.valueOf(args[++i]);
+                    break;
+                case "--time":
+                    measureTime = Long.valueOf(args[++i]);
+                    break;
+                case "--latency":
+                    latency = Integer.valueOf(args[++i]);
+                    break;
+                case "--only":
+                    only = args[++i];
+                    break;
+                case "--check-allocation":
+                    checkAllocation = true;
+                    break;
+            }
+        }
+
+        PollBenchmark benchmark = new PollBenchmark(warmupTime, measureTime, only);
+        benchmark.setUp(latency);
+        boolean passed = true;
+        try {
+            if (checkAllocation) {
+                passed = benchmark.checkAllocation();
+            } else {
+                benchmark.runAll();
+            }
+        } finally {
+            benchmark.tearDown();
+        }
+        System.exit(passed ? 0 : 1);
+    }
+
+
+    /**
+     * Basic constructor
+     * @param warmupTime Time (ms) each benchmark runs before it is measured
+     * @param measureTime Time (ms) each benchmark is measured for
+     * @param only Name of the only benchmark to run, null to run them all
+     */
+    PollBenchmark(long warmupTime, long measureTime, String only){
+        this.warmupTime  = warmupTime;
+        this.measureTime = measureTime;
+        this.only        = only;
+
+        threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        if (threads.isThreadAllocatedMemorySupported()) threads.setThreadAllocatedMemoryEnabled(true);
+    }
+
+
+    /**
+     * Start a simulator and connect a controller to it
+     * @param latency Time (ms) the simulator holds back every response
+     */
+    void setUp(int latency) throws Exception {
+        simulator = new AcromagSimulator(0);
+        simulator.setResponseLatency(latency);
+        simulator.start();
+
+        connection = new AcromagConnection("127.0.0.1", simulator.getPort(), 1000);
+        controller = new AcromagController(connection, DeviceConfiguration.fromConfiguration());
+        connection.start();
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!controller.isConnected()) {
+            if (System.currentTimeMillis() > deadline) throw new IllegalStateException("Unable to connect to the simulator");
+            Thread.sleep(10);
+        }
+
+        // The kind of frame ControlRuntime.pollCycle() sends with HV enabled
+        controller.beginOutputFrame();
+        controller.setPowerSupplyEnable(true);
+        controller.setPowerSupplyVoltage(10.0);
+        controller.setPowerSupplyCurrent(1.0);
+        controller.setLdEnable(false);
+        controller.commitOutputFrameAndReadInputs();
+
+
+        // Allocations are counted on our thread and the I/O thread
+        measuredThreads = new long[] {Thread.currentThread().getId(), -1};
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().equals("Modbus I/O")) measuredThreads[1] = thread.getId();
+        }
+    }
+
+
+    void tearDown(){
+        if (connection != null) connection.close();
+        if (simulator != null) simulator.stop();
+    }
+
+
+    /**
+     * Run every benchmark and print the results
+     */
+    void runAll() throws Exception {
+
+        System.out.println(String.format("%-28s %12s %10s %10s %10s %10s %10s %12s",
+                "Benchmark", "ops/s", "p50 (us)", "p90 (us)", "p99 (us)", "p99.9 (us)", "max (us)", "B/op"));
+
+
+        // What the main loop does every poll when nothing has changed
+        run("cycle.steady", 1, new Operation() {
+            @Override
+            public void run() throws Exception {
+                pollCycle(10.0);
+            }
+        });
+
+        // What the main loop does every poll while a setting is changing (e.g. while ramping)
+        run("cycle.ramping", 1, new Operation() {
+            @Override
+            public void run() throws Exception {
+                pollCycle(10.0 + 0.001 * (counter++ % 1000));
+            }
+        });
+
+        run("getPowerSupplyVoltage", 1, new Operation() {
+            @Override
+            public void run() throws Exception {
+                sink = controller.getPowerSupplyVoltage();
+            }
+        });
+
+        run("getPowerSupplyCurrent", 1, new Operation() {
+            @Override
+            public void run() throws Exception {
+                sink = controller.getPowerSupplyCurrent();
+            }
+        });
+
+        // Alternate the value so that the write is never skipped as unchanged
+        run("setChannelOutputVoltage", 1, new Operation() {
+            @Override
+            public void run() throws Exception {
+                controller.setChannelOutputVoltage(Configuration.getLdCurrentControlChannel(), 0.01 * (counter++ & 1));
+            }
+        });
+
+        // Raw counts to volts, as done for every input channel of every snapshot
+        run("getInputVoltage", CONVERSION_BATCH, new Operation() {
+            @Override
+            public void run() throws Exception {
+                double total = 0.0;
+                for (int i = 0; i < CONVERSION_BATCH; i++) {
+                    total += controller.getInputVoltage(i & 1, (counter++ * 7) % 30000);
+                }
+                sink = total;
+            }
+        });
+    }
+
+
+    /**
+     * Check that a steady poll doesn't allocate. The controller is polled directly from this thread, then a
+     * ControlRuntime is run against the simulator with the power supply on and holding its voltage
+     * @return true if neither allocated more than it may
+     */
+    boolean checkAllocation() throws Exception {
+        long pollThread = measuredThreads[0];
+        long ioThread   = measuredThreads[1];
+
+
+        // Polling the controller directly. The JIT compiler can still allocate a little on the polling thread long
+        // after the warmup (when it recompiles the poll), which only happens once, while a poll that allocates does
+        // so every time. So a measurement that allocates is repeated (within reason) before the check fails
+        pollFor(warmupTime);
+
+        long polls = 0, pollAllocated = 0, ioAllocated = 0;
+        for (int measurement = 0; measurement < MAX_MEASUREMENTS; measurement++) {
+            if (measurement > 0) System.out.println("controller: " + pollAllocated + " B allocated by the polling thread and " +
+                    ioAllocated + " B by the I/O thread in " + polls + " polls, measuring again");
+
+            long pollBefore = getAllocatedBytes(pollThread);
+            long ioBefore   = getAllocatedBytes(ioThread);
+            polls = pollFor(measureTime);
+            pollAllocated = getAllocatedBytes(pollThread) - pollBefore;
+            ioAllocated   = getAllocatedBytes(ioThread) - ioBefore;
+            if (isWithinBudget(polls, pollAllocated, ioAllocated)) break;
+        }
+        boolean passed = reportAllocation("controller", polls, pollAllocated, ioAllocated);
+
+
+        // The main loop of a runtime, polling quickly but with time for a response (the poll period is also the
+        // timeout). The watchdog's reads go through the I/O thread as well, and aren't part of the poll, so it's
+        // held off for the length of the check
+        File directory = Files.createTempDirectory("PollBenchmark").toFile();
+        Configuration.setAcromagIpAddress("127.0.0.1");
+        Configuration.setModbusPort(simulator.getPort());
+        Configuration.setPollPeriod(20);
+        Configuration.setFastPollPeriod(20);
+        Configuration.setIdlePollPeriod(20);
+        Configuration.setWatchdogPeriod((int) (10 * (warmupTime + measureTime)));
+        Configuration.setHistoryCapacity(10000);
+        Configuration.setSampleLogDirectory(directory.getPath());
+        Configuration.setControlServerPort(0);
+
+        ControlRuntime runtime = new ControlRuntime(DeviceConfiguration.fromConfiguration());
+        runtime.start();
+        try {
+            long end = System.currentTimeMillis() + 5000;
+            while (runtime.isLocked()) {
+                if (System.currentTimeMillis() > end) throw new IllegalStateException("The runtime didn't unlock");
+                Thread.sleep(10);
+            }
+            runtime.setPowerSupplyEnabled(true);
+            runtime.setPowerSupplyVoltage(10.0);
+            runtime.setPowerSupplyCurrent(1.0);
+
+            long loopThread = -1;
+            for (Thread thread : Thread.getAllStackTraces().keySet()) {
+                if (thread.getName().equals("Control Loop " + runtime.getConfiguration().getName())) loopThread = thread.getId();
+            }
+
+            // Measured the same way as the controller
+            Thread.sleep(warmupTime);
+
+            long cycles = 0, loopAllocated = 0;
+            for (int measurement = 0; measurement < MAX_MEASUREMENTS; measurement++) {
+                if (measurement > 0) System.out.println("runtime: " + loopAllocated + " B allocated by the polling thread and " +
+                        ioAllocated + " B by the I/O thread in " + cycles + " polls, measuring again");
+
+                long loopBefore   = getAllocatedBytes(loopThread);
+                long ioBefore     = getAllocatedBytes(ioThread);
+                long cyclesBefore = runtime.getCycleCount();
+                Thread.sleep(measureTime);
+                loopAllocated = getAllocatedBytes(loopThread) - loopBefore;
+                ioAllocated   = getAllocatedBytes(ioThread) - ioBefore;
+                cycles = runtime.getCycleCount() - cyclesBefore;
+                if (isWithinBudget(cycles, loopAllocated, ioAllocated)) break;
+            }
+
+            if (runtime.isLocked()) {
+                System.out.println("runtime: locked while being checked (" + runtime.getStatusMessage() + ")");
+                passed = false;
+            }
+            passed &= reportAllocation("runtime", cycles, loopAllocated, ioAllocated);
+        }
+        finally {
+            runtime.stop();
+            deleteDirectory(directory);
+        }
+
+        System.out.println(passed ? "A steady poll doesn't allocate" : "A steady poll allocates");
+        return passed;
+    }
+
+
+    /**
+     * Print how much a number of polls allocated and check it against what they may allocate
+     * @param name What was polled
+     * @param polls Number of polls
+     * @param pollAllocated Bytes allocated by the thread that polled
+     * @param ioAllocated Bytes allocated by the Modbus I/O thread
+     * @return true if the polls allocated no more than they may
+     */
+    private boolean reportAllocation(String name, long polls, long pollAllocated, long ioAllocated){
+        if (pollAllocated < 0 || ioAllocated < 0) {
+            System.out.println(name + ": the JVM doesn't count the bytes each thread allocates");
+            return false;
+        }
+
+        boolean passed = isWithinBudget(polls, pollAllocated, ioAllocated);
+        System.out.println(String.format("%s: %d polls, %d B allocated by the polling thread, %.1f B/poll by the I/O thread (at most %d): %s",
+                name, polls, pollAllocated, (double) ioAllocated / Math.max(1, polls), MAX_IO_BYTES_PER_POLL, passed ? "ok" : "FAILED"));
+        return passed;
+    }
+
+
+    /**
+     * Check a number of polls against what they may allocate
+     * @param polls Number of polls
+     * @param pollAllocated Bytes allocated by the thread that polled
+     * @param ioAllocated Bytes allocated by the Modbus I/O thread
+     * @return true if the polls allocated no more than they may
+     */
+    private boolean isWithinBudget(long polls, long pollAllocated, long ioAllocated){
+        return polls > 0 && pollAllocated == 0 && ioAllocated >= 0 && ioAllocated <= MAX_IO_BYTES_PER_POLL * polls;
+    }
+
+
+    /**
+     * Convenience function for removing the directory the runtime logged its samples to
+     * @param directory Directory to remove
+     */
+    private void deleteDirectory(File directory) throws IOException {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                Files.deleteIfExists(file.toPath());
+            }
+        }
+        Files.deleteIfExists(directory.toPath());
+    }
+
+
+    /**
+     * Method that polls the controller over and over for a while
+     * @param time Time (ms) to keep polling for
+     * @return Number of polls
+     */
+    private long pollFor(long time) throws Exception {
+        long polls = 0;
+        long end = System.nanoTime() + time * 1000000L;
+        while (System.nanoTime() < end) {
+            pollCycle(10.0);
+            polls++;
+        }
+        return polls;
+    }
+
+
+    /**
+     * The Acromag traffic of a single cycle of the main loop, as ControlRuntime.pollCycle() drives the controller:
+     * one output frame, with the inputs read back in the same exchange and converted to readings. The runtime's own
+     * bookkeeping (history, watchdog, observers) is left to the allocation check, which runs a real ControlRuntime
+     * @param voltageSetting HVPS voltage (kV) to send
+     */
+    private void pollCycle(double voltageSetting) throws Exception {
+        controller.beginOutputFrame();
+        controller.setPowerSupplyEnable(true);
+        controller.setPowerSupplyVoltage(voltageSetting);
+        controller.setPowerSupplyCurrent(1.0);
+        controller.setLdEnable(false);
+        controller.setLaserDiodeCurrent(0.0);
+
+        InputBuffer inputs = controller.commitOutputFrameAndReadInputs();
+        sink = controller.getPowerSupplyVoltage(inputs) + controller.getPowerSupplyCurrent(inputs);
+    }
+
+
+    /**
+     * Warm up, measure and report a single benchmark
+     * @param name Name of the benchmark
+     * @param batchSize Number of operations performed by each call of the operation
+     * @param operation Operation to measure
+     */
+    private void run(String name, int batchSize, Operation operation) throws Exception {
+        if (only != null && !only.equals(name)) return;
+
+
+        // Warm up
+        long end = System.nanoTime() + warmupTime * 1000000L;
+        while (System.nanoTime() < end) {
+            operation.run();
+        }
+
+
+        // Measure
+        int numSamples = 0;
+        long calls = 0;
+        long allocatedBefore = getAllocatedBytes();
+        long start = System.nanoTime();
+        end = start + measureTime * 1000000L;
+
+        long now = start;
+        while (now < end) {
+            operation.run();
+            long finish = System.nanoTime();
+
+            if (numSamples < MAX_SAMPLES) samples[numSamples++] = finish - now;
+            calls++;
+            now = finish;
+        }
+
+        long elapsed = now - start;
+        long allocated = (allocatedBefore < 0) ? -1 : getAllocatedBytes() - allocatedBefore;
+        report(name, calls * batchSize, elapsed, numSamples, batchSize, allocated);
+    }
+
+
+    /**
+     * Print one line of the results table
+     * @param name Name of the benchmark
+     * @param ops Number of operations performed
+     * @param elapsed Time (ns) they took
+     * @param numSamples Number of latency samples recorded
+     * @param batchSize Number of operations in each sample
+     * @param allocated Bytes allocated while measuring, -1 if unknown
+     */
+    private void report(String name, long ops, long elapsed, int numSamples, int batchSize, long allocated){
+        Arrays.sort(samples, 0, numSamples);
+
+        double throughput = ops / (elapsed / 1e9);
+        String bytesPerOp = (allocated < 0) ? "n/a" : String.format("%.1f", (double) allocated / ops);
+
+        System.out.println(String.format("%-28s %12.1f %10.3f %10.3f %10.3f %10.3f %10.3f %12s",
+                name, throughput,
+                percentile(numSamples, 0.50) / batchSize,
+                percentile(numSamples, 0.90) / batchSize,
+                percentile(numSamples, 0.99) / batchSize,
+                percentile(numSamples, 0.999) / batchSize,
+                percentile(numSamples, 1.0) / batchSize,
+                bytesPerOp));
+    }
+
+
+    /**
+     * Convenience function for reading a percentile off the sorted samples
+     * @param numSamples Number of samples
+     * @param fraction Percentile as a fraction (0-1)
+     * @return Latency (us) of the percentile
+     */
+    private double percentile(int numSamples, double fraction){
+        if (numSamples == 0) return 0.0;
+        int index = (int) Math.ceil(fraction * numSamples) - 1;
+        return samples[Math.max(0, Math.min(numSamples - 1, index))] / 1e3;
+    }
+
+
+    /**
+     * Convenience function for the number of bytes allocated so far by the measured threads
+     * @return Bytes allocated, -1 if the JVM doesn't keep track
+     */
+    private long getAllocatedBytes(){
+        if (!threads.isThreadAllocatedMemoryEnabled()) return -1;
+
+        long total = 0;
+        for (long allocated : threads.getThreadAllocatedBytes(measuredThreads)) {
+            if (allocated > 0) total += allocated;
+        }
+        return total;
+    }
+
+
+    /**
+     * Convenience function for the number of bytes allocated so far by a single thread. Unlike asking about several
+     * threads at once, asking doesn't allocate, so it doesn't count towards what is measured
+     * @param threadID ID of the thread
+     * @return Bytes allocated, -1 if the JVM doesn't keep track
+     */
+    private long getAllocatedBytes(long threadID){
+        if (!threads.isThreadAllocatedMemoryEnabled()) return -1;
+        return threads.getThreadAllocatedBytes(threadID);
+    }
+}
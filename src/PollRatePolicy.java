@@ -0,0 +1,148 @@
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Picks the period of the main loop from one cycle to the next. The loop polls at the fast period while the power
+ * supply is conditioning, while its setting has recently changed or while its readings are noisy, and drops to the
+ * idle period while HV and the laser diode are both off. Otherwise it polls at the normal poll period. The
+ * ramp and the interlock work from elapsed time, so neither depends on which period is picked
+ */
+class PollRatePolicy {
+
+    /**
+     * Why the current period was picked
+     */
+    enum Mode {
+        IDLE("idle"),
+        NORMAL("normal"),
+        CONDITIONING("fast, conditioning"),
+        SETPOINT_CHANGING("fast, setpoint changing"),
+        NOISY("fast, noisy readings");
+
+        private final String label;
+
+        Mode(String label){
+            this.label = label;
+        }
+
+        String getLabel() {
+            return label;
+        }
+    }
+
+    // Time (ms) after a change of setting during which the loop keeps polling fast while the supply follows it
+    private final long SETPOINT_HOLD_TIME = 5000;
+
+    // Spread (kV rms) of the recent voltage readings above which they count as noisy
+    private final double NOISE_THRESHOLD = 0.1;
+
+    // Number of recent readings the spread is taken over
+    private final int NOISE_WINDOW = 10;
+
+    // Voltage (kV) below which a power supply that is off counts as discharged
+    private final double DISCHARGED_VOLTAGE = 1.0;
+
+    private volatile DeviceConfiguration configuration;
+    private volatile Mode mode = Mode.NORMAL;
+    private volatile int period;
+
+    // Only touched on the thread of the main loop
+    private final double[] recentReadings = new double[NOISE_WINDOW];
+    private int readingCount = 0;           // Stops counting once the window is full, so it can't wrap
+    private int nextReading = 0;            // Where the next reading goes in the window
+    private double lastSetting = Double.NaN;
+    private long lastSettingChange = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(SETPOINT_HOLD_TIME);    // ns
+
+
+    /**
+     * Basic constructor
+     * @param configuration Settings of the device, which hold the bounds of the period
+     */
+    PollRatePolicy(DeviceConfiguration configuration){
+        this.configuration = configuration;
+        this.period        = configuration.getPollPeriod();
+    }
+
+
+    void setConfiguration(DeviceConfiguration configuration){
+        this.configuration = configuration;
+    }
+
+
+    /**
+     * Method that picks the period until the next cycle
+     * @param hvState State of the power supply
+     * @param ldState State of the laser diode
+     * @param locked Whether the system is locked, in which case it's waiting to get going again and polls normally
+     * @param hasReading Whether this cycle read the power supply
+     * @return Period (ms) until the next cycle
+     */
+    int choosePeriod(PowerSupplyState hvState, LaserDiodeState ldState, boolean locked, boolean hasReading){
+        long now = System.nanoTime();
+
+        // The first setting seen is where things start rather than a change
+        double setting = hvState.getVoltageSetting();
+        if (Double.isNaN(lastSetting)) {
+            lastSetting = setting;
+        } else if (setting != lastSetting) {
+            lastSetting       = setting;
+            lastSettingChange = now;
+        }
+
+        if (hasReading) {
+            recentReadings[nextReading] = hvState.getVoltageReading();
+            nextReading = (nextReading + 1) % NOISE_WINDOW;
+            if (readingCount < NOISE_WINDOW) readingCount++;
+        }
+
+        if (hvState.isConditioning()) {
+            mode = Mode.CONDITIONING;
+        } else if (now - lastSettingChange < TimeUnit.MILLISECONDS.toNanos(SETPOINT_HOLD_TIME)) {
+            mode = Mode.SETPOINT_CHANGING;
+        } else if (getNoise() > NOISE_THRESHOLD) {
+            mode = Mode.NOISY;
+        } else if (!locked && !hvState.isEnabled() && !ldState.isEnabled() && Math.abs(hvState.getVoltageReading()) < DISCHARGED_VOLTAGE) {
+            mode = Mode.IDLE;
+        } else {
+            mode = Mode.NORMAL;
+        }
+
+        // Keep to the bounds even if they've been configured the wrong way round
+        DeviceConfiguration configuration = this.configuration;
+        int normal = configuration.getPollPeriod();
+        int fast   = Math.min(configuration.getFastPollPeriod(), normal);
+        int idle   = Math.max(configuration.getIdlePollPeriod(), normal);
+
+        switch (mode) {
+            case IDLE:   period = idle;   break;
+            case NORMAL: period = normal; break;
+            default:     period = fast;   break;
+        }
+        return period;
+    }
+
+
+    /**
+     * Method that works out how much the recent voltage readings have spread
+     * @return Standard deviation (kV) of the recent readings, 0 until there are enough of them
+     */
+    private double getNoise(){
+        if (readingCount < NOISE_WINDOW) return 0;
+
+        double sum = 0, sumOfSquares = 0;
+        for (double reading : recentReadings) {
+            sum          += reading;
+            sumOfSquares += reading * reading;
+        }
+        double mean = sum / NOISE_WINDOW;
+        return Math.sqrt(Math.max(0, sumOfSquares / NOISE_WINDOW - mean * mean));
+    }
+
+
+    Mode getMode() {
+        return mode;
+    }
+
+    int getPeriod() {
+        return period;
+    }
+}
@@ -0,0 +1,156 @@
+/**
+ * Everything recorded about a single poll of the Acromag. Instances are meant to be reused, so that recording
+ * and reading back the history doesn't allocate
+ */
+class PollSample {
+
+    // Bits of the flags
+    static final int HV_ENABLED   = 1;
+    static final int LD_ENABLED   = 1 << 1;
+    static final int LOCKED       = 1 << 2;
+    static final int CONDITIONING = 1 << 3;
+
+    private long sequence;
+    private long timestamp;             // ms
+    private double referenceVoltage;    // V
+    private double voltageReading;      // kV
+    private double currentReading;      // mA
+    private double voltageSetting;      // kV
+    private double currentSetting;      // mA
+    private double ldCurrentSetting;    // mA
+    private int interlockCount;
+    private int flags;
+    private final double[] inputVoltages = new double[Constants.getNumChannels()];   // V
+
+
+    /**
+     * Copy every input channel of a set of readings, along with its timestamp
+     * @param inputs Readings of the input channels
+     */
+    void setInputs(InputReadings inputs){
+        timestamp = inputs.getTimestamp();
+        for (int i = 0; i < inputVoltages.length; i++) {
+            inputVoltages[i] = inputs.getVoltage(i);
+        }
+    }
+
+
+    /**
+     * Copy everything from another sample
+     * @param other Sample to copy
+     */
+    void copyFrom(PollSample other){
+        sequence         = other.sequence;
+        timestamp        = other.timestamp;
+        referenceVoltage = other.referenceVoltage;
+        voltageReading   = other.voltageReading;
+        currentReading   = other.currentReading;
+        voltageSetting   = other.voltageSetting;
+        currentSetting   = other.currentSetting;
+        ldCurrentSetting = other.ldCurrentSetting;
+        interlockCount   = other.interlockCount;
+        flags            = other.flags;
+        System.arraycopy(other.inputVoltages, 0, inputVoltages, 0, inputVoltages.length);
+    }
+
+
+    boolean isFlagSet(int flag) {
+        return (flags & flag) != 0;
+    }
+
+    void setFlag(int flag, boolean isSet) {
+        flags = isSet ? (flags | flag) : (flags & ~flag);
+    }
+
+    long getSequence() {
+        return sequence;
+    }
+
+    long getTimestamp() {
+        return timestamp;
+    }
+
+    double getReferenceVoltage() {
+        return referenceVoltage;
+    }
+
+    double getVoltageReading() {
+        return voltageReading;
+    }
+
+    double getCurrentReading() {
+        return currentReading;
+    }
+
+    double getVoltageSetting() {
+        return voltageSetting;
+    }
+
+    double getCurrentSetting() {
+        return currentSetting;
+    }
+
+    double getLdCurrentSetting() {
+        return ldCurrentSetting;
+    }
+
+    int getInterlockCount() {
+        return interlockCount;
+    }
+
+    int getFlags() {
+        return flags;
+    }
+
+    double getInputVoltage(int channelID) {
+        return inputVoltages[channelID];
+    }
+
+    int getNumChannels() {
+        return inputVoltages.length;
+    }
+
+    void setSequence(long sequence) {
+        this.sequence = sequence;
+    }
+
+    void setTimestamp(long timestamp) {
+        this.timestamp = timestamp;
+    }
+
+    void setReferenceVoltage(double referenceVoltage) {
+        this.referenceVoltage = referenceVoltage;
+    }
+
+    void setVoltageReading(double voltageReading) {
+        this.voltageReading = voltageReading;
+    }
+
+    void setCurrentReading(double currentReading) {
+        this.currentReading = currentReading;
+    }
+
+    void setVoltageSetting(double voltageSetting) {
+        this.voltageSetting = voltageSetting;
+    }
+
+    void setCurrentSetting(double currentSetting) {
+        this.currentSetting = currentSetting;
+    }
+
+    void setLdCurrentSetting(double ldCurrentSetting) {
+        this.ldCurrentSetting = ldCurrentSetting;
+    }
+
+    void setInterlockCount(int interlockCount) {
+        this.interlockCount = interlockCount;
+    }
+
+    void setFlags(int flags) {
+        this.flags = flags;
+    }
+
+    void setInputVoltage(int channelID, double voltage) {
+        inputVoltages[channelID] = voltage;
+    }
+}
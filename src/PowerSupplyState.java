@@ -0,0 +1,142 @@
+/**
+ * State of the HV power supply, as requested by the user and as last read back from the Acromag
+ */
+class PowerSupplyState {
+
+    private volatile boolean enabled;
+    private volatile boolean conditioning;
+
+    private volatile double voltageSetting;
+    private volatile double currentSetting;
+
+    private volatile double voltageReading;
+    private volatile double currentReading;
+
+    private double rampRate;        // kV per ms
+
+    // Counts every change of the voltage setting made in one go, which the power supply needs time to follow.
+    // A conditioning ramp moves it gradually instead, and doesn't count. Neither does setting it to what it already is
+    private volatile int stepCount;
+
+
+    void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+
+        // If we're turning if off we should zero all the settings and kill any conditioning
+        if (!enabled){
+            this.conditioning = false;
+            changeVoltageSetting(0.0, true);
+            this.currentSetting = 0.0;
+        }
+        // If enabled, set the current to it's max
+        else{
+            this.currentSetting = Constants.getPowerSupplyMaxCurrent();
+        }
+    }
+
+    /**
+     * Start ramping the voltage up to the maximum allowed, which the main loop does from here
+     * @param conditionTime Time (min) the ramp from 0 kV should take
+     * @param maxV Maximum voltage (kV) allowed on the power supply
+     */
+    void startConditioning(int conditionTime, double maxV){
+
+        // Calculate our ramp rate, in double so that no number of minutes can overflow it
+        final double totalTime_ms = conditionTime * 60000.0;
+
+        // Update the state, the main loop will ramp the voltage from here
+        this.rampRate = maxV / totalTime_ms;
+        this.conditioning = true;
+    }
+
+    /**
+     * Make the settings the same as another state's. Readings are left alone, since they come from the Acromag
+     * @param other State to copy the settings of
+     */
+    void copySettingsFrom(PowerSupplyState other){
+        this.enabled        = other.enabled;
+        this.conditioning   = other.conditioning;
+        changeVoltageSetting(other.voltageSetting, true);
+        this.currentSetting = other.currentSetting;
+        this.rampRate       = other.rampRate;
+    }
+
+    void stopConditioning(){
+        this.conditioning = false;
+    }
+
+    /**
+     * Advance the conditioning ramp. Does nothing unless conditioning, so a ramp that was aborted or turned off
+     * can't leave a setting behind
+     * @param elapsed Time (ms) since the ramp was last advanced
+     * @param maxV Maximum voltage (kV) allowed on the power supply, where the ramp ends
+     */
+    void rampVoltage(double elapsed, double maxV){
+        if (!conditioning) return;
+
+        double newVoltage = this.voltageSetting + rampRate * elapsed;
+        if (newVoltage > maxV){
+            newVoltage = maxV;
+            stopConditioning();
+        }
+        changeVoltageSetting(newVoltage, false);
+    }
+
+    void setVoltageSetting(double voltageSetting) {
+        changeVoltageSetting(voltageSetting, true);
+    }
+
+    /**
+     * Change the voltage setting. Every change goes through here
+     * @param voltageSetting New voltage setting (kV)
+     * @param isStep Whether the change is a step the power supply needs time to follow, which is only counted if
+     *               the setting actually moves. The gradual moves of a conditioning ramp aren't, or the interlock
+     *               would never get to trip during one
+     */
+    private void changeVoltageSetting(double voltageSetting, boolean isStep) {
+        if (voltageSetting == this.voltageSetting) return;
+
+        this.voltageSetting = voltageSetting;
+        if (isStep) this.stepCount++;
+    }
+
+    void setCurrentSetting(double currentSetting) {
+        this.currentSetting = currentSetting;
+    }
+
+    void setVoltageReading(double voltageReading) {
+        this.voltageReading = voltageReading;
+    }
+
+    void setCurrentReading(double currentReading) {
+        this.currentReading = currentReading;
+    }
+
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    boolean isConditioning() {
+        return conditioning;
+    }
+
+    double getVoltageSetting() {
+        return voltageSetting;
+    }
+
+    int getStepCount() {
+        return stepCount;
+    }
+
+    double getCurrentSetting() {
+        return currentSetting;
+    }
+
+    double getVoltageReading() {
+        return voltageReading;
+    }
+
+    double getCurrentReading() {
+        return currentReading;
+    }
+}
@@ -0,0 +1,259 @@
+import javax.swing.*;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
+import java.awt.*;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * Window that plays back a recorded session. It shows the same readings and chart as the main window along with
+ * the state the controller was in, and has its own controls for the speed and position of the replay. Nothing
+ * here is connected to the Acromag, so a replay can be reviewed while the controller carries on running
+ */
+class ReplayWindow extends JFrame {
+
+    // Minimum time (ms) between updates of the display
+    private final int FRAME_PERIOD = 50;
+
+    // Resolution of the position slider
+    private final int SLIDER_RESOLUTION = 10000;
+
+    private final int PROGRESS_BAR_RESOLUTION = 1000;
+
+    private final double[] SPEEDS = {1, 10, 100, 1000};
+
+    private final SessionReplay replay;
+    private final PollSample sample = new PollSample();
+    private final SimpleDateFormat timeFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+
+    private SampleHistory shownHistory;
+    private long shownSequence = -1;
+
+    private GridBagConstraints constraints;
+    private StripChart stripChart;
+    private JProgressBar voltageReading, currentReading, ldCurrentSetting;
+    private JLabel timeLabel, stateLabel;
+    private JButton playButton;
+    private JSlider positionSlider;
+    private boolean isUpdatingSlider = false;
+    private Timer frameTimer;
+
+
+    /**
+     * Basic constructor, which opens the window and starts the replay paused at the beginning of the session
+     * @param title Name of the session shown in the title bar
+     * @param replay Replay of the session
+     */
+    ReplayWindow(String title, SessionReplay replay){
+        super("Replay - " + title);
+        this.replay = replay;
+        this.shownHistory = replay.getHistory();
+
+        buildWindow();
+
+        frameTimer = new Timer(FRAME_PERIOD, new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                updateDisplay();
+            }
+        });
+
+        addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosed(WindowEvent e) {
+                frameTimer.stop();
+                ReplayWindow.this.replay.stop();
+            }
+        });
+
+        replay.start();
+        replay.seek(replay.getStartTime());
+        frameTimer.start();
+        setVisible(true);
+    }
+
+
+    private void buildWindow(){
+        JPanel panel = new JPanel(new GridBagLayout());
+        constraints = new GridBagConstraints();
+        constraints.fill = GridBagConstraints.HORIZONTAL;
+
+        int yPos = 0;
+
+        // Time and state of the controller at that time
+        timeLabel = new JLabel("-", JLabel.LEFT);
+        setConstraints(0, yPos, 6, 1);
+        setPadding(10, 10, 10, 0);
+        panel.add(timeLabel, constraints);
+
+        stateLabel = new JLabel("-", JLabel.LEFT);
+        setConstraints(0, ++yPos, 6, 1);
+        setPadding(10, 10, 5, 5);
+        panel.add(stateLabel, constraints);
+
+        // Readings
+        voltageReading = addReading(panel, "Voltage Reading", "- kV", ++yPos);
+        yPos += 2;
+        currentReading = addReading(panel, "Current Reading", "- mA", yPos);
+        yPos += 2;
+        ldCurrentSetting = addReading(panel, "LD Current Setting", "- mA", yPos);
+        yPos += 2;
+
+        // Chart and its views
+        stripChart = new StripChart(shownHistory, false);
+        setConstraints(0, yPos, 6, 1);
+        setPadding(10, 10, 10, 5);
+        panel.add(stripChart, constraints);
+
+        yPos++;
+        ButtonGroup chartViewGroup = new ButtonGroup();
+        int xPos = 0;
+        for (final StripChart.View view : StripChart.View.values()) {
+            JToggleButton viewButton = new JToggleButton(view.getLabel(), view == stripChart.getView());
+            viewButton.addActionListener(new ActionListener() {
+                @Override
+                public void actionPerformed(ActionEvent e) {
+                    stripChart.setView(view);
+                }
+            });
+            chartViewGroup.add(viewButton);
+
+            setConstraints(xPos, yPos, 2, 1);
+            setPadding(10, 10, 0, 5);
+            panel.add(viewButton, constraints);
+            xPos += 2;
+        }
+
+        // Position in the session
+        positionSlider = new JSlider(0, SLIDER_RESOLUTION, 0);
+        positionSlider.addChangeListener(new ChangeListener() {
+            @Override
+            public void stateChanged(ChangeEvent e) {
+                // Only seek once the user lets go, otherwise every step of the drag would start a new history
+                if (!isUpdatingSlider && !positionSlider.getValueIsAdjusting()) {
+                    replay.seek(getSliderTime(positionSlider.getValue()));
+                }
+            }
+        });
+        setConstraints(0, ++yPos, 6, 1);
+        setPadding(10, 10, 10, 5);
+        panel.add(positionSlider, constraints);
+
+        // Play / pause and speed
+        playButton = new JButton("Play");
+        playButton.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                if (replay.isPaused() && replay.isFinished()) replay.seek(replay.getStartTime());
+                replay.setPaused(!replay.isPaused());
+            }
+        });
+        setConstraints(0, ++yPos, 3, 1);
+        setPadding(10, 10, 5, 10);
+        panel.add(playButton, constraints);
+
+        final JComboBox<String> speedBox = new JComboBox<String>();
+        for (double speed : SPEEDS) speedBox.addItem(String.format("%.0fx", speed));
+        speedBox.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                replay.setSpeed(SPEEDS[speedBox.getSelectedIndex()]);
+            }
+        });
+        setConstraints(3, yPos, 3, 1);
+        setPadding(10, 10, 5, 10);
+        panel.add(speedBox, constraints);
+
+        add(panel);
+        setSize(new Dimension(600, getPreferredSize().height));
+        setDefaultCloseOperation(DISPOSE_ON_CLOSE);
+    }
+
+
+    /**
+     * Bring the display up to date with the replay. Runs on the event dispatch thread once per frame
+     */
+    private void updateDisplay(){
+
+        // A seek starts a new history
+        SampleHistory history = replay.getHistory();
+        if (history != shownHistory) {
+            shownHistory  = history;
+            shownSequence = -1;
+            stripChart.setHistory(history);
+        }
+        stripChart.update();
+
+        playButton.setText(replay.isFinished() ? "Restart" : replay.isPaused() ? "Play" : "Pause");
+        if (!positionSlider.getValueIsAdjusting()) {
+            isUpdatingSlider = true;
+            positionSlider.setValue(getSliderValue(replay.getPosition()));
+            isUpdatingSlider = false;
+        }
+
+        // Only redraw the readings if there's a new sample
+        long latest = history.getWriteCount() - 1;
+        if (latest == shownSequence || !history.readLatest(sample)) return;
+        shownSequence = sample.getSequence();
+
+        timeLabel.setText(timeFormat.format(new Date(sample.getTimestamp())));
+        stateLabel.setText(String.format("HV %s, LD %s%s%s, reference %.2f V, interlock count %d",
+                sample.isFlagSet(PollSample.HV_ENABLED) ? "on" : "off",
+                sample.isFlagSet(PollSample.LD_ENABLED) ? "on" : "off",
+                sample.isFlagSet(PollSample.CONDITIONING) ? ", conditioning" : "",
+                sample.isFlagSet(PollSample.LOCKED) ? ", locked" : "",
+                sample.getReferenceVoltage(), sample.getInterlockCount()));
+
+        showReading(voltageReading, -sample.getVoltageReading(), sample.getVoltageReading() / Configuration.getMaxAllowablePowerSupplyVoltage(), "kV");
+        showReading(currentReading, sample.getCurrentReading(), sample.getCurrentReading() / Constants.getPowerSupplyMaxCurrent(), "mA");
+        showReading(ldCurrentSetting, sample.getLdCurrentSetting(), sample.getLdCurrentSetting() / Constants.getLaserDiodeMaxCurrent(), "mA");
+    }
+
+
+    private JProgressBar addReading(JPanel panel, String label, String blank, int yPos){
+        setConstraints(0, yPos, 6, 1);
+        setPadding(10, 10, 5, 5);
+        panel.add(new JLabel(label, JLabel.CENTER), constraints);
+
+        JProgressBar bar = new JProgressBar(0, PROGRESS_BAR_RESOLUTION);
+        bar.setStringPainted(true);
+        bar.setString(blank);
+        bar.setPreferredSize(new Dimension(4, 30));
+
+        setConstraints(0, yPos + 1, 6, 1);
+        setPadding(10, 10, 0, 0);
+        panel.add(bar, constraints);
+        return bar;
+    }
+
+    private void showReading(JProgressBar bar, double value, double fraction, String units){
+        fraction = Math.max(0, Math.min(1, fraction));
+        bar.setString(String.format("%.2f %s", value, units));
+        bar.setValue((int) (PROGRESS_BAR_RESOLUTION * fraction));
+    }
+
+    private int getSliderValue(long timestamp){
+        long span = Math.max(1, replay.getEndTime() - replay.getStartTime());
+        return (int) Math.max(0, Math.min(SLIDER_RESOLUTION, (timestamp - replay.getStartTime()) * SLIDER_RESOLUTION / span));
+    }
+
+    private long getSliderTime(int value){
+        long span = replay.getEndTime() - replay.getStartTime();
+        return replay.getStartTime() + (span * value) / SLIDER_RESOLUTION;
+    }
+
+    private void setConstraints(int x, int y, int width, int height){
+        constraints.gridx = x;
+        constraints.gridy = y;
+        constraints.gridwidth  = width;
+        constraints.gridheight = height;
+    }
+
+    private void setPadding(int left, int right, int top, int bottom){
+        constraints.insets = new Insets(top, left, bottom, right);
+    }
+}
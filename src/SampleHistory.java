@@ -0,0 +1,223 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-capacity ring buffer of poll samples, kept entirely in one primitive array so that recording a sample
+ * never allocates and the history creates no work for the garbage collector however long it is.
+ *
+ * There must only be one writer, but any number of threads can read at the same time without locking. Every
+ * slot carries the sequence number of the sample in it, which the writer clears before overwriting the slot and
+ * sets once it's done. A reader checks the sequence number before and after copying a sample out, so it can tell
+ * when the writer got there first and never sees a half written sample. All accesses are volatile, which keeps
+ * that check sound without relying on anything beyond the Java memory model
+ */
+class SampleHistory {
+
+    // Layout of each slot, in longs
+    private static final int SEQUENCE = 0;          // Sequence number + 1, 0 while empty or being written
+    private static final int TIMESTAMP = 1;
+    private static final int REFERENCE_VOLTAGE = 2;
+    private static final int VOLTAGE_READING = 3;
+    private static final int CURRENT_READING = 4;
+    private static final int VOLTAGE_SETTING = 5;
+    private static final int CURRENT_SETTING = 6;
+    private static final int LD_CURRENT_SETTING = 7;
+    private static final int FLAGS = 8;             // Interlock count in the upper half, flags in the lower
+    private static final int INPUT_VOLTAGES = 9;    // Input channels are stored as floats, two to a long
+
+    private final int numChannels = Constants.getNumChannels();
+    private final int slotLength = getSlotLength(numChannels);
+
+    private final int capacity;
+    private final AtomicLongArray slots;
+
+    // Number of samples written so far, which is also the sequence number of the next one
+    private volatile long writeCount = 0;
+
+
+    /**
+     * Basic constructor, which allocates all of the memory the history will ever use
+     * @param capacity Number of samples kept before the oldest start being overwritten
+     * @throws IllegalArgumentException if the capacity is below 1 or above getMaxCapacity()
+     */
+    SampleHistory(int capacity){
+        if (capacity < 1 || capacity > getMaxCapacity()) {
+            throw new IllegalArgumentException("History capacity must be between 1 and " + getMaxCapacity() + ", not " + capacity);
+        }
+        this.capacity = capacity;
+        this.slots    = new AtomicLongArray(capacity * slotLength);
+    }
+
+
+    /**
+     * Add a sample to the history, overwriting the oldest one if the history is full. Only one thread may write
+     * @param sample Sample to add. Its sequence number is set to the one it was given in the history
+     */
+    void append(PollSample sample){
+        long sequence = writeCount;
+        int base = getBase(sequence);
+
+        // Mark the slot as being written so that readers of the sample it held stop trusting it
+        slots.set(base + SEQUENCE, 0);
+
+        slots.set(base + TIMESTAMP, sample.getTimestamp());
+        slots.set(base + REFERENCE_VOLTAGE, Double.doubleToRawLongBits(sample.getReferenceVoltage()));
+        slots.set(base + VOLTAGE_READING, Double.doubleToRawLongBits(sample.getVoltageReading()));
+        slots.set(base + CURRENT_READING, Double.doubleToRawLongBits(sample.getCurrentReading()));
+        slots.set(base + VOLTAGE_SETTING, Double.doubleToRawLongBits(sample.getVoltageSetting()));
+        slots.set(base + CURRENT_SETTING, Double.doubleToRawLongBits(sample.getCurrentSetting()));
+        slots.set(base + LD_CURRENT_SETTING, Double.doubleToRawLongBits(sample.getLdCurrentSetting()));
+        slots.set(base + FLAGS, ((long) sample.getInterlockCount() << 32) | (sample.getFlags() & 0xFFFFFFFFL));
+
+        for (int i = 0; i < numChannels; i += 2) {
+            long low  = Float.floatToRawIntBits((float) sample.getInputVoltage(i)) & 0xFFFFFFFFL;
+            long high = (i + 1 < numChannels) ? Float.floatToRawIntBits((float) sample.getInputVoltage(i + 1)) & 0xFFFFFFFFL : 0;
+            slots.set(base + INPUT_VOLTAGES + i / 2, (high << 32) | low);
+        }
+
+        slots.set(base + SEQUENCE, sequence + 1);
+        sample.setSequence(sequence);
+        writeCount = sequence + 1;
+    }
+
+
+    /**
+     * Copy a sample out of the history
+     * @param sequence Sequence number of the sample
+     * @param sample Sample to copy into
+     * @return true if the sample was copied, false if it hasn't been written yet or has already been overwritten
+     */
+    boolean read(long sequence, PollSample sample){
+        if (sequence < 0 || sequence >= writeCount) return false;
+
+        int base = getBase(sequence);
+        if (slots.get(base + SEQUENCE) != sequence + 1) return false;
+
+        sample.setSequence(sequence);
+        sample.setTimestamp(slots.get(base + TIMESTAMP));
+        sample.setReferenceVoltage(Double.longBitsToDouble(slots.get(base + REFERENCE_VOLTAGE)));
+        sample.setVoltageReading(Double.longBitsToDouble(slots.get(base + VOLTAGE_READING)));
+        sample.setCurrentReading(Double.longBitsToDouble(slots.get(base + CURRENT_READING)));
+        sample.setVoltageSetting(Double.longBitsToDouble(slots.get(base + VOLTAGE_SETTING)));
+        sample.setCurrentSetting(Double.longBitsToDouble(slots.get(base + CURRENT_SETTING)));
+        sample.setLdCurrentSetting(Double.longBitsToDouble(slots.get(base + LD_CURRENT_SETTING)));
+        long flags = slots.get(base + FLAGS);
+        sample.setInterlockCount((int) (flags >>> 32));
+        sample.setFlags((int) flags);
+
+        for (int i = 0; i < numChannels; i += 2) {
+            long packed = slots.get(base + INPUT_VOLTAGES + i / 2);
+            sample.setInputVoltage(i, Float.intBitsToFloat((int) packed));
+            if (i + 1 < numChannels) sample.setInputVoltage(i + 1, Float.intBitsToFloat((int) (packed >>> 32)));
+        }
+
+        // If the writer reached the slot while we were copying, what we have may be a mix of two samples
+        return slots.get(base + SEQUENCE) == sequence + 1;
+    }
+
+
+    /**
+     * Copy the most recent sample out of the history
+     * @param sample Sample to copy into
+     * @return true if there was a sample to copy
+     */
+    boolean readLatest(PollSample sample){
+        while (true) {
+            long latest = writeCount - 1;
+            if (latest < 0) return false;
+            if (read(latest, sample)) return true;
+        }
+    }
+
+
+    /**
+     * Return the timestamp of a sample without copying the rest of it
+     * @param sequence Sequence number of the sample
+     * @return Timestamp (ms) of the sample, Long.MIN_VALUE if it isn't available
+     */
+    long getTimestamp(long sequence){
+        if (sequence < 0 || sequence >= writeCount) return Long.MIN_VALUE;
+
+        int base = getBase(sequence);
+        if (slots.get(base + SEQUENCE) != sequence + 1) return Long.MIN_VALUE;
+        long timestamp = slots.get(base + TIMESTAMP);
+
+        return (slots.get(base + SEQUENCE) == sequence + 1) ? timestamp : Long.MIN_VALUE;
+    }
+
+
+    /**
+     * Find the first sample taken at or after a given time. Samples are appended in time order, so this is a
+     * binary search over what the history still holds
+     * @param timestamp Time (ms) of interest
+     * @return Sequence number of the first such sample, getWriteCount() if there is none
+     */
+    long findSequence(long timestamp){
+        long low  = getFirstSequence();
+        long high = writeCount;
+
+        while (low < high) {
+            long middle = (low + high) >>> 1;
+            long sampleTime = getTimestamp(middle);
+
+            // Anything that's been overwritten is older than what we're looking for
+            if (sampleTime == Long.MIN_VALUE || sampleTime < timestamp) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+
+    /**
+     * Return the sequence number of the oldest sample the history still holds
+     * @return Sequence number of the oldest sample
+     */
+    long getFirstSequence(){
+        return Math.max(0, writeCount - capacity);
+    }
+
+
+    /**
+     * Return the number of samples ever written, which is also the sequence number the next one will get
+     * @return Number of samples written
+     */
+    long getWriteCount(){
+        return writeCount;
+    }
+
+
+    int getCapacity(){
+        return capacity;
+    }
+
+
+    /**
+     * Return the largest capacity a history can have, which is as many slots as an array can be indexed by an int
+     * @return Maximum number of samples
+     */
+    static int getMaxCapacity(){
+        return Integer.MAX_VALUE / getSlotLength(Constants.getNumChannels());
+    }
+
+
+    /**
+     * Convenience function for the length of each slot
+     * @param numChannels Number of input channels in each sample
+     * @return Length of a slot, in longs
+     */
+    private static int getSlotLength(int numChannels){
+        return INPUT_VOLTAGES + (numChannels + 1) / 2;
+    }
+
+
+    /**
+     * Convenience function for the position in the array of the slot that holds a sample
+     * @param sequence Sequence number of the sample
+     * @return Index of the first long of the slot
+     */
+    private int getBase(long sequence){
+        return (int) (sequence % capacity) * slotLength;
+    }
+}
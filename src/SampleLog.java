@@ -0,0 +1,526 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only binary log of every poll sample. The log has its own thread, which follows the SampleHistory and
+ * copies whatever is new into a memory-mapped file of fixed-size records, so the control loop never waits on the
+ * disk. If the disk falls so far behind that the history wraps around, the samples that were overwritten are
+ * counted as dropped rather than holding anything up
+ *
+ * Files are pre-sized when they're created and a new one is started once the current one is full or older than
+ * the rotation period. Every record ends with a CRC of its contents, so after a crash the end of a file is simply
+ * the first record that doesn't check out, and any file that wasn't closed cleanly is cut back to that point the
+ * next time the log is started. The file being written is locked for as long as it's open, so that a log started
+ * by another process on the same directory leaves it alone rather than cutting it off
+ *
+ * File layout (big-endian):
+ *   Header (64 bytes): magic, version, record size, number of channels, state, creation time, record count
+ *   Records: sequence, timestamp, reference V, HV V/I readings, HV V/I settings, LD current setting,
+ *            interlock count, flags, input voltages (floats), CRC32 of everything before it, padding
+ */
+class SampleLog {
+
+    /**
+     * Receiver of anything that goes wrong on the log's thread
+     */
+    interface ErrorHandler {
+        void handleError(String message);
+    }
+
+    // File format
+    static final long MAGIC = 0x4856505353414D50L;     // "HVPSSAMP"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 64;
+    static final String FILE_PREFIX = "samples-";
+    static final String FILE_SUFFIX = ".dat";
+
+    // Offsets of the header fields
+    static final int HEADER_MAGIC = 0;
+    static final int HEADER_VERSION = 8;
+    static final int HEADER_RECORD_SIZE = 12;
+    static final int HEADER_NUM_CHANNELS = 16;
+    static final int HEADER_STATE = 20;
+    static final int HEADER_CREATED = 24;
+    static final int HEADER_RECORD_COUNT = 32;
+
+    // States a file can be in
+    static final int STATE_OPEN = 0;
+    static final int STATE_CLOSED = 1;
+
+    // Offsets of the record fields
+    static final int RECORD_SEQUENCE = 0;
+    static final int RECORD_TIMESTAMP = 8;
+    private static final int RECORD_REFERENCE_VOLTAGE = 16;
+    private static final int RECORD_VOLTAGE_READING = 24;
+    private static final int RECORD_CURRENT_READING = 32;
+    private static final int RECORD_VOLTAGE_SETTING = 40;
+    private static final int RECORD_CURRENT_SETTING = 48;
+    private static final int RECORD_LD_CURRENT_SETTING = 56;
+    private static final int RECORD_INTERLOCK_COUNT = 64;
+    private static final int RECORD_FLAGS = 68;
+    private static final int RECORD_INPUT_VOLTAGES = 72;
+
+    // Time (ms) the thread sleeps between looking for new samples
+    private final int DRAIN_PERIOD = 100;
+
+    // Time (ms) between forcing what has been written out to the disk
+    private final int FORCE_PERIOD = 1000;
+
+    // Time (ms) to wait before trying to open a new file after failing to
+    private final int RETRY_PERIOD = 10000;
+
+    private final SampleHistory history;
+    private final File directory;
+    private final long fileSize;
+    private final long rotationPeriod;
+    private final ErrorHandler errorHandler;
+
+    private final int numChannels = Constants.getNumChannels();
+    private final int recordSize = getRecordSize(numChannels);
+
+    private volatile boolean running;
+    private Thread thread;
+
+    // Only touched on the log's thread
+    private final PollSample sample = new PollSample();
+    private final ByteBuffer record;
+    private final CRC32 crc = new CRC32();
+    private long nextSequence;
+    private FileChannel channel;
+    private FileLock lock;
+    private MappedByteBuffer buffer;
+    private long fileOpenedTime;
+    private long lastForceTime;
+    private long retryTime;
+    private int fileRecordCount;
+    private int fileCapacity;
+
+    // Statistics of the log
+    private volatile File currentFile;
+    private volatile long recordCount;
+    private volatile long droppedCount;
+
+
+    /**
+     * Basic constructor
+     * @param history History to log the samples of
+     * @param directory Directory the files are written to
+     * @param fileSize Size (bytes) a file may grow to before a new one is started
+     * @param rotationPeriod Time (ms) after which a new file is started regardless of size
+     * @param errorHandler Receiver of anything that goes wrong while logging
+     */
+    SampleLog(SampleHistory history, File directory, long fileSize, long rotationPeriod, ErrorHandler errorHandler){
+        this.history        = history;
+        this.directory      = directory;
+        this.fileSize       = Math.max(fileSize, HEADER_SIZE + recordSize);
+        this.rotationPeriod = rotationPeriod;
+        this.errorHandler   = errorHandler;
+        this.record         = ByteBuffer.allocate(recordSize);
+    }
+
+
+    /**
+     * Recover any file left open by a previous run and start logging every sample appended to the history from now on
+     */
+    synchronized void start(){
+        if (running) return;
+        running = true;
+
+        nextSequence = history.getWriteCount();
+
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                recoverDirectory();
+                runLog();
+            }
+        }, "Sample Log");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+
+    /**
+     * Stop logging. Whatever is already in the history is written out and the current file is closed before this returns
+     */
+    void close(){
+        Thread logThread;
+        synchronized (this) {
+            if (!running) return;
+            running = false;
+            logThread = thread;
+        }
+
+        LockSupport.unpark(logThread);
+        try {
+            logThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+    /**
+     * Main loop of the log's thread
+     */
+    private void runLog(){
+        lastForceTime = System.currentTimeMillis();
+
+        while (running) {
+            drain();
+
+            long now = System.currentTimeMillis();
+            if (buffer != null && now - lastForceTime >= FORCE_PERIOD) {
+                buffer.force();
+                lastForceTime = now;
+            }
+
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(DRAIN_PERIOD));
+        }
+
+        // Catch whatever was appended while we were asleep
+        drain();
+        closeFile();
+    }
+
+
+    /**
+     * Write out every sample that has been appended to the history since the last drain
+     */
+    private void drain(){
+        long end = history.getWriteCount();
+
+        while (nextSequence < end) {
+            if (history.read(nextSequence, sample)) {
+                write(sample);
+                nextSequence++;
+                continue;
+            }
+
+            // The only way a sample we haven't reached yet can be missing is if it's been overwritten
+            long first = history.getFirstSequence();
+            if (nextSequence < first) {
+                droppedCount += first - nextSequence;
+                nextSequence = first;
+            }
+        }
+    }
+
+
+    /**
+     * Append a sample to the current file, moving on to a new file if it's time to
+     * @param sample Sample to append
+     */
+    private void write(PollSample sample){
+        long now = System.currentTimeMillis();
+        if (buffer != null && (fileRecordCount >= fileCapacity || now - fileOpenedTime >= rotationPeriod)) {
+            closeFile();
+        }
+
+        if (buffer == null) {
+            if (now < retryTime || !openFile(now)) {
+                droppedCount++;
+                return;
+            }
+        }
+
+        encode(sample);
+        buffer.position(HEADER_SIZE + fileRecordCount * recordSize);
+        buffer.put(record);
+
+        fileRecordCount++;
+        recordCount++;
+    }
+
+
+    /**
+     * Fill the record buffer with a sample, followed by its CRC
+     * @param sample Sample to encode
+     */
+    private void encode(PollSample sample){
+        record.clear();
+        record.putLong(RECORD_SEQUENCE, sample.getSequence());
+        record.putLong(RECORD_TIMESTAMP, sample.getTimestamp());
+        record.putDouble(RECORD_REFERENCE_VOLTAGE, sample.getReferenceVoltage());
+        record.putDouble(RECORD_VOLTAGE_READING, sample.getVoltageReading());
+        record.putDouble(RECORD_CURRENT_READING, sample.getCurrentReading());
+        record.putDouble(RECORD_VOLTAGE_SETTING, sample.getVoltageSetting());
+        record.putDouble(RECORD_CURRENT_SETTING, sample.getCurrentSetting());
+        record.putDouble(RECORD_LD_CURRENT_SETTING, sample.getLdCurrentSetting());
+        record.putInt(RECORD_INTERLOCK_COUNT, sample.getInterlockCount());
+        record.putInt(RECORD_FLAGS, sample.getFlags());
+
+        for (int i = 0; i < numChannels; i++) {
+            record.putFloat(RECORD_INPUT_VOLTAGES + 4 * i, (float) sample.getInputVoltage(i));
+        }
+
+        int crcOffset = getCrcOffset(numChannels);
+        crc.reset();
+        crc.update(record.array(), 0, crcOffset);
+        record.putInt(crcOffset, (int) crc.getValue());
+    }
+
+
+    /**
+     * Create and map a new file
+     * @param now Current time (ms)
+     * @return true if the file is ready to be written to
+     */
+    private boolean openFile(long now){
+        File file = new File(directory, FILE_PREFIX + new SimpleDateFormat("yyyyMMdd-HHmmss-SSS").format(new Date(now)) + FILE_SUFFIX);
+
+        try {
+            if (!directory.isDirectory() && !directory.mkdirs()) throw new IOException("Unable to create " + directory);
+
+            channel = new RandomAccessFile(file, "rw").getChannel();
+            lock    = tryLock(channel);
+            if (lock == null) throw new IOException(file + " is already in use");
+            buffer  = channel.map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+
+            buffer.putLong(HEADER_MAGIC, MAGIC);
+            buffer.putInt(HEADER_VERSION, VERSION);
+            buffer.putInt(HEADER_RECORD_SIZE, recordSize);
+            buffer.putInt(HEADER_NUM_CHANNELS, numChannels);
+            buffer.putInt(HEADER_STATE, STATE_OPEN);
+            buffer.putLong(HEADER_CREATED, now);
+            buffer.putLong(HEADER_RECORD_COUNT, 0);
+            buffer.force();
+        }
+        catch (IOException e) {
+            errorHandler.handleError("Unable to open sample log " + file + ": " + e.getMessage());
+            closeChannel();
+            retryTime = now + RETRY_PERIOD;
+            return false;
+        }
+
+        currentFile     = file;
+        fileOpenedTime  = now;
+        fileRecordCount = 0;
+        fileCapacity    = (int) Math.min(Integer.MAX_VALUE, (fileSize - HEADER_SIZE) / recordSize);
+        return true;
+    }
+
+
+    /**
+     * Mark the current file as cleanly closed and close it
+     */
+    private void closeFile(){
+        if (buffer == null) return;
+
+        buffer.putLong(HEADER_RECORD_COUNT, fileRecordCount);
+        buffer.putInt(HEADER_STATE, STATE_CLOSED);
+        buffer.force();
+
+        // Java has no way to unmap a file, the mapping goes away once the buffer is collected
+        buffer = null;
+        closeChannel();
+        currentFile = null;
+    }
+
+
+    private void closeChannel(){
+        if (channel == null) return;
+        try {
+            // Closing the channel releases the lock
+            channel.close();
+        } catch (IOException e) {
+            errorHandler.handleError("Unable to close sample log: " + e.getMessage());
+        }
+        channel = null;
+        lock    = null;
+    }
+
+
+    /**
+     * Take the lock a log holds on the file it's writing for as long as the file is open
+     * @param fileChannel Channel of the file
+     * @return The lock, null if a log in this or another process already holds it
+     * @throws IOException if the lock can't be taken for any other reason
+     */
+    private static FileLock tryLock(FileChannel fileChannel) throws IOException {
+        try {
+            return fileChannel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            return null;
+        }
+    }
+
+
+    /**
+     * Recover every file in the log directory that wasn't closed cleanly and isn't still being written
+     */
+    private void recoverDirectory(){
+        File[] files = directory.listFiles();
+        if (files == null) return;
+
+        for (File file : files) {
+            if (!file.getName().startsWith(FILE_PREFIX) || !file.getName().endsWith(FILE_SUFFIX)) continue;
+            try {
+                long recovered = recover(file);
+                if (recovered >= 0) errorHandler.handleError("Recovered " + recovered + " samples from unclosed sample log " + file);
+            } catch (IOException e) {
+                errorHandler.handleError("Unable to recover sample log " + file + ": " + e.getMessage());
+            }
+        }
+    }
+
+
+    /**
+     * Method that makes a file that wasn't closed cleanly (the program crashed or lost power while writing it) look
+     * as though it had been. The file is cut back to the last record that is intact, and marked as closed. A file
+     * that another log still holds the lock of is being written right now, and is left alone
+     * @param file Log file to recover
+     * @return Number of records in the file, -1 if the file was already closed cleanly or is still being written
+     * @throws IOException if the file can't be read or isn't a sample log
+     */
+    static long recover(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            FileChannel fileChannel = raf.getChannel();
+
+            // Held until the file is closed, so that no other log can start writing it while it's being cut back
+            if (tryLock(fileChannel) == null) return -1;
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            readFully(fileChannel, header, 0);
+            int recordSize = checkHeader(header, file);
+            if (header.getInt(HEADER_STATE) == STATE_CLOSED) return -1;
+
+            long count = countValidRecords(fileChannel, recordSize, header.getInt(HEADER_NUM_CHANNELS));
+
+            fileChannel.truncate(HEADER_SIZE + count * recordSize);
+            header.putLong(HEADER_RECORD_COUNT, count);
+            header.putInt(HEADER_STATE, STATE_CLOSED);
+            header.rewind();
+            fileChannel.write(header, 0);
+            fileChannel.force(true);
+
+            return count;
+        }
+    }
+
+
+    /**
+     * Count the records at the start of a file that are intact, stopping at the first one that isn't
+     * @param fileChannel Channel of the file
+     * @param recordSize Size (bytes) of each record
+     * @param numChannels Number of input channels in each record
+     * @return Number of intact records
+     * @throws IOException if the file can't be read
+     */
+    static long countValidRecords(FileChannel fileChannel, int recordSize, int numChannels) throws IOException {
+        ByteBuffer record = ByteBuffer.allocate(recordSize);
+        CRC32 recordCrc = new CRC32();
+
+        long count = 0;
+        long position = HEADER_SIZE;
+        while (position + recordSize <= fileChannel.size()) {
+            record.clear();
+            readFully(fileChannel, record, position);
+            if (!isValidRecord(record, 0, numChannels, recordCrc)) break;
+
+            count++;
+            position += recordSize;
+        }
+        return count;
+    }
+
+
+    /**
+     * Check that the header of a file is that of a sample log this version can read
+     * @param header Buffer holding the header
+     * @param file File the header came from
+     * @return Size (bytes) of each record in the file
+     * @throws IOException if it isn't
+     */
+    static int checkHeader(ByteBuffer header, File file) throws IOException {
+        if (header.getLong(HEADER_MAGIC) != MAGIC) throw new IOException(file + " is not a sample log");
+        if (header.getInt(HEADER_VERSION) != VERSION) throw new IOException(file + " has unsupported version " + header.getInt(HEADER_VERSION));
+
+        int recordSize = header.getInt(HEADER_RECORD_SIZE);
+        if (recordSize != getRecordSize(header.getInt(HEADER_NUM_CHANNELS))) throw new IOException(file + " has a corrupt header");
+        return recordSize;
+    }
+
+
+    /**
+     * Check that a record is intact
+     * @param buffer Heap buffer holding the record
+     * @param offset Position of the record in the buffer
+     * @param numChannels Number of input channels in the record
+     * @param recordCrc CRC to compute the check with
+     * @return true if the record's CRC matches its contents
+     */
+    static boolean isValidRecord(ByteBuffer buffer, int offset, int numChannels, CRC32 recordCrc){
+        int crcOffset = getCrcOffset(numChannels);
+        recordCrc.reset();
+        recordCrc.update(buffer.array(), buffer.arrayOffset() + offset, crcOffset);
+        return buffer.getInt(offset + crcOffset) == (int) recordCrc.getValue();
+    }
+
+
+    /**
+     * Copy a record into a sample
+     * @param buffer Buffer holding the record
+     * @param offset Position of the record in the buffer
+     * @param numChannels Number of input channels in the record
+     * @param sample Sample to copy into
+     */
+    static void decode(ByteBuffer buffer, int offset, int numChannels, PollSample sample){
+        sample.setSequence(buffer.getLong(offset + RECORD_SEQUENCE));
+        sample.setTimestamp(buffer.getLong(offset + RECORD_TIMESTAMP));
+        sample.setReferenceVoltage(buffer.getDouble(offset + RECORD_REFERENCE_VOLTAGE));
+        sample.setVoltageReading(buffer.getDouble(offset + RECORD_VOLTAGE_READING));
+        sample.setCurrentReading(buffer.getDouble(offset + RECORD_CURRENT_READING));
+        sample.setVoltageSetting(buffer.getDouble(offset + RECORD_VOLTAGE_SETTING));
+        sample.setCurrentSetting(buffer.getDouble(offset + RECORD_CURRENT_SETTING));
+        sample.setLdCurrentSetting(buffer.getDouble(offset + RECORD_LD_CURRENT_SETTING));
+        sample.setInterlockCount(buffer.getInt(offset + RECORD_INTERLOCK_COUNT));
+        sample.setFlags(buffer.getInt(offset + RECORD_FLAGS));
+
+        for (int i = 0; i < Math.min(numChannels, sample.getNumChannels()); i++) {
+            sample.setInputVoltage(i, buffer.getFloat(offset + RECORD_INPUT_VOLTAGES + 4 * i));
+        }
+    }
+
+
+    static int getRecordSize(int numChannels){
+        // CRC plus padding to keep records 8 byte aligned
+        return (getCrcOffset(numChannels) + 4 + 7) & ~7;
+    }
+
+    private static int getCrcOffset(int numChannels){
+        return RECORD_INPUT_VOLTAGES + 4 * numChannels;
+    }
+
+    static void readFully(FileChannel fileChannel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = fileChannel.read(buffer, position + buffer.position());
+            if (read < 0) throw new IOException("Unexpected end of file");
+        }
+        buffer.flip();
+    }
+
+
+    File getCurrentFile() {
+        return currentFile;
+    }
+
+    long getRecordCount() {
+        return recordCount;
+    }
+
+    long getDroppedCount() {
+        return droppedCount;
+    }
+}
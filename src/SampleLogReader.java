@@ -0,0 +1,280 @@
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Reads back a session recorded by the SampleLog, one sample at a time. Records are streamed from disk a chunk at
+ * a time and only the file being read is kept open, so a recording of any length can be read in a small heap.
+ * Records are fixed size, which makes seeking to a point in time a binary search
+ */
+class SampleLogReader {
+
+    // Number of records read from disk at a time
+    private final int CHUNK_RECORDS = 512;
+
+    private final List<Segment> segments;
+
+    private int segmentIndex = 0;
+    private long recordIndex = 0;
+
+    // Chunk of the current segment held in memory
+    private FileChannel channel;
+    private ByteBuffer chunk = ByteBuffer.allocate(0);
+    private long chunkStart = 0;
+    private int chunkCount = 0;
+
+    private final CRC32 crc = new CRC32();
+    private final ByteBuffer timestampBuffer = ByteBuffer.allocate(8);
+
+
+    /**
+     * One file of the session
+     */
+    private static class Segment {
+        File file;
+        int recordSize;
+        int numChannels;
+        long recordCount;
+        long firstSequence;
+        long lastSequence;
+        long firstTimestamp;
+        long lastTimestamp;
+    }
+
+
+    /**
+     * Basic constructor
+     * @param files Files of the session, in the order they were written
+     * @throws IOException if any of the files can't be read or isn't a sample log
+     */
+    SampleLogReader(List<File> files) throws IOException {
+        segments = new ArrayList<Segment>();
+        for (File file : files) {
+            Segment segment = readSegment(file);
+            if (segment.recordCount > 0) segments.add(segment);
+        }
+        if (segments.isEmpty()) throw new IOException("No samples were recorded in " + files);
+    }
+
+
+    /**
+     * Method that finds every file that belongs to the same session as a given one. A session is the unbroken run of
+     * files written by one run of the controller, which starts numbering its samples from zero
+     * @param selected Any file of the session
+     * @return Files of the session, in the order they were written
+     * @throws IOException if the files can't be read
+     */
+    static List<File> findSession(File selected) throws IOException {
+        File[] files = selected.getAbsoluteFile().getParentFile().listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.getName().startsWith(SampleLog.FILE_PREFIX) && file.getName().endsWith(SampleLog.FILE_SUFFIX);
+            }
+        });
+        if (files == null) throw new IOException("Unable to list " + selected.getParentFile());
+
+        // File names are timestamps, so sorting them puts them in the order they were written
+        Arrays.sort(files);
+
+        List<File> session = new ArrayList<File>();
+        boolean found = false;
+        long lastSequence = -1;
+
+        for (File file : files) {
+            Segment segment = readSegment(file);
+            if (segment.recordCount == 0) continue;
+
+            // A new session starts whenever the numbering goes backwards
+            if (segment.firstSequence <= lastSequence) {
+                if (found) break;
+                session.clear();
+            }
+
+            session.add(file);
+            lastSequence = segment.lastSequence;
+            if (file.getAbsoluteFile().equals(selected.getAbsoluteFile())) found = true;
+        }
+
+        if (!found) throw new IOException("No samples were recorded in " + selected);
+        return session;
+    }
+
+
+    /**
+     * Read the next sample of the session
+     * @param sample Sample to copy into
+     * @return true if there was a sample, false at the end of the session
+     * @throws IOException if the file can't be read
+     */
+    boolean next(PollSample sample) throws IOException {
+        while (segmentIndex < segments.size()) {
+            Segment segment = segments.get(segmentIndex);
+
+            if (recordIndex < segment.recordCount) {
+                if (recordIndex < chunkStart || recordIndex >= chunkStart + chunkCount) loadChunk(segment);
+
+                int offset = (int) (recordIndex - chunkStart) * segment.recordSize;
+                if (SampleLog.isValidRecord(chunk, offset, segment.numChannels, crc)) {
+                    SampleLog.decode(chunk, offset, segment.numChannels, sample);
+                    recordIndex++;
+                    return true;
+                }
+
+                // A damaged record can only be the torn end of a file that was never recovered
+                segment.recordCount = recordIndex;
+            }
+
+            // Move on to the next file
+            closeChannel();
+            segmentIndex++;
+            recordIndex = 0;
+        }
+        return false;
+    }
+
+
+    /**
+     * Move to the first sample taken at or after a given time
+     * @param timestamp Time (ms) to move to
+     * @throws IOException if the file can't be read
+     */
+    void seek(long timestamp) throws IOException {
+        closeChannel();
+
+        segmentIndex = 0;
+        while (segmentIndex < segments.size() && segments.get(segmentIndex).lastTimestamp < timestamp) {
+            segmentIndex++;
+        }
+        recordIndex = 0;
+        if (segmentIndex == segments.size()) return;
+
+        // Binary search the file for the first record at or after the time
+        Segment segment = segments.get(segmentIndex);
+        openChannel(segment);
+
+        long low  = 0;
+        long high = segment.recordCount - 1;
+        while (low < high) {
+            long middle = (low + high) >>> 1;
+            if (readTimestamp(segment, middle) < timestamp) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        recordIndex = low;
+    }
+
+
+    /**
+     * Close the file being read. The reader can still be used afterwards, it reopens files as they're needed
+     */
+    void close(){
+        closeChannel();
+    }
+
+
+    long getStartTime() {
+        return segments.get(0).firstTimestamp;
+    }
+
+    long getEndTime() {
+        return segments.get(segments.size() - 1).lastTimestamp;
+    }
+
+
+    /**
+     * Read the chunk of records that starts at the current record
+     * @param segment File being read
+     * @throws IOException if the file can't be read
+     */
+    private void loadChunk(Segment segment) throws IOException {
+        openChannel(segment);
+
+        int count = (int) Math.min(CHUNK_RECORDS, segment.recordCount - recordIndex);
+        int length = count * segment.recordSize;
+        if (chunk.capacity() < CHUNK_RECORDS * segment.recordSize) chunk = ByteBuffer.allocate(CHUNK_RECORDS * segment.recordSize);
+
+        chunk.clear();
+        chunk.limit(length);
+        SampleLog.readFully(channel, chunk, SampleLog.HEADER_SIZE + recordIndex * segment.recordSize);
+
+        chunkStart = recordIndex;
+        chunkCount = count;
+    }
+
+
+    private long readTimestamp(Segment segment, long index) throws IOException {
+        timestampBuffer.clear();
+        SampleLog.readFully(channel, timestampBuffer, SampleLog.HEADER_SIZE + index * segment.recordSize + SampleLog.RECORD_TIMESTAMP);
+        return timestampBuffer.getLong(0);
+    }
+
+
+    private void openChannel(Segment segment) throws IOException {
+        if (channel != null) return;
+        channel = new RandomAccessFile(segment.file, "r").getChannel();
+        chunkCount = 0;
+    }
+
+
+    private void closeChannel(){
+        if (channel == null) return;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Nothing was written, so there's nothing to lose
+        }
+        channel = null;
+        chunkCount = 0;
+    }
+
+
+    /**
+     * Read what's needed to find our way around a file: its layout, how many records it holds and the sequence
+     * numbers and times of the first and last of them
+     * @param file File to read
+     * @return Description of the file
+     * @throws IOException if the file can't be read or isn't a sample log
+     */
+    private static Segment readSegment(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            FileChannel fileChannel = raf.getChannel();
+
+            ByteBuffer header = ByteBuffer.allocate(SampleLog.HEADER_SIZE);
+            SampleLog.readFully(fileChannel, header, 0);
+
+            Segment segment = new Segment();
+            segment.file        = file;
+            segment.recordSize  = SampleLog.checkHeader(header, file);
+            segment.numChannels = header.getInt(SampleLog.HEADER_NUM_CHANNELS);
+
+            // Files still being written (or left open by a crash) have to be scanned for their end
+            if (header.getInt(SampleLog.HEADER_STATE) == SampleLog.STATE_CLOSED) {
+                segment.recordCount = header.getLong(SampleLog.HEADER_RECORD_COUNT);
+            } else {
+                segment.recordCount = SampleLog.countValidRecords(fileChannel, segment.recordSize, segment.numChannels);
+            }
+            if (segment.recordCount == 0) return segment;
+
+            ByteBuffer record = ByteBuffer.allocate(16);
+            SampleLog.readFully(fileChannel, record, SampleLog.HEADER_SIZE);
+            segment.firstSequence  = record.getLong(SampleLog.RECORD_SEQUENCE);
+            segment.firstTimestamp = record.getLong(SampleLog.RECORD_TIMESTAMP);
+
+            record.clear();
+            SampleLog.readFully(fileChannel, record, SampleLog.HEADER_SIZE + (segment.recordCount - 1) * segment.recordSize);
+            segment.lastSequence  = record.getLong(SampleLog.RECORD_SEQUENCE);
+            segment.lastTimestamp = record.getLong(SampleLog.RECORD_TIMESTAMP);
+
+            return segment;
+        }
+    }
+}
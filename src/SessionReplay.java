@@ -0,0 +1,230 @@
+import java.io.IOException;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Plays a recorded session back in time, at anything from real time to a thousand times faster. Samples are read
+ * from the SampleLogReader on the replay's own thread and appended to a SampleHistory as their time comes, so
+ * anything that can show the live history (the strip chart, the readings) can show the replay the same way
+ *
+ * Seeking starts a fresh history, since samples have to be appended in time order. The history can then be
+ * picked up again with getHistory()
+ */
+class SessionReplay {
+
+    /**
+     * Receiver of anything that goes wrong on the replay's thread
+     */
+    interface ErrorHandler {
+        void handleError(String message);
+    }
+
+    static final double MIN_SPEED = 1.0;
+    static final double MAX_SPEED = 1000.0;
+
+    // Gaps (ms of recorded time) longer than this are skipped over rather than waited out
+    private final long MAX_GAP = 5000;
+
+    // Samples kept in the history of the replay, which is about an hour of a 30 Hz recording
+    private final int HISTORY_CAPACITY = 100000;
+
+    private final SampleLogReader reader;
+    private final ErrorHandler errorHandler;
+
+    private volatile boolean running;
+    private volatile boolean paused = true;
+    private volatile boolean finished;
+    private volatile double speed = MIN_SPEED;
+    private volatile long seekTarget = Long.MIN_VALUE;
+    private volatile long position;             // ms, time of the last sample played
+    private volatile SampleHistory history;
+
+    // Bumped on every change of speed, pause or seek so that a wait in progress can start over
+    private volatile int controlVersion;
+
+    private Thread thread;
+
+
+    /**
+     * Basic constructor
+     * @param reader Reader of the recorded session
+     * @param errorHandler Receiver of anything that goes wrong during the replay
+     */
+    SessionReplay(SampleLogReader reader, ErrorHandler errorHandler){
+        this.reader       = reader;
+        this.errorHandler = errorHandler;
+        this.history      = new SampleHistory(HISTORY_CAPACITY);
+        this.position     = reader.getStartTime();
+    }
+
+
+    /**
+     * Start the replay's thread. Playback itself starts paused
+     */
+    synchronized void start(){
+        if (running) return;
+        running = true;
+
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runReplay();
+            }
+        }, "Session Replay");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+
+    /**
+     * Stop the replay and close the recording
+     */
+    synchronized void stop(){
+        running = false;
+        if (thread != null) LockSupport.unpark(thread);
+    }
+
+
+    void setPaused(boolean paused){
+        this.paused = paused;
+        signal();
+    }
+
+
+    /**
+     * Change how fast the recording is played
+     * @param speed Multiple of real time (1-1000)
+     */
+    void setSpeed(double speed){
+        this.speed = Math.max(MIN_SPEED, Math.min(MAX_SPEED, speed));
+        signal();
+    }
+
+
+    /**
+     * Jump to a point in the recording
+     * @param timestamp Time (ms) to jump to
+     */
+    void seek(long timestamp){
+        seekTarget = timestamp;
+        signal();
+    }
+
+
+    /**
+     * Main loop of the replay's thread
+     */
+    private void runReplay(){
+        PollSample sample = new PollSample();
+        boolean hasSample = false;
+
+        // Point in recorded time that corresponds to a point in real time, from which the schedule is worked out
+        long anchorTime  = position;
+        long anchorNanos = System.nanoTime();
+
+        try {
+            while (running) {
+                int version = controlVersion;
+
+                long target = seekTarget;
+                if (target != Long.MIN_VALUE) {
+                    seekTarget = Long.MIN_VALUE;
+                    reader.seek(target);
+                    history   = new SampleHistory(HISTORY_CAPACITY);
+                    position  = target;
+                    finished  = false;
+                    hasSample = false;
+
+                    // Show where we've landed straight away, even if we're paused
+                    if (reader.next(sample)) {
+                        history.append(sample);
+                        position = sample.getTimestamp();
+                    }
+                    anchorTime  = position;
+                    anchorNanos = System.nanoTime();
+                }
+
+                if (paused) {
+                    LockSupport.park(this);
+                    anchorTime  = position;
+                    anchorNanos = System.nanoTime();
+                    continue;
+                }
+
+                if (!hasSample) {
+                    if (!reader.next(sample)) {
+                        finished = true;
+                        paused   = true;
+                        continue;
+                    }
+                    hasSample = true;
+
+                    // Don't sit through long stretches where nothing was recorded
+                    if (sample.getTimestamp() - position > MAX_GAP) {
+                        anchorTime  = sample.getTimestamp();
+                        anchorNanos = System.nanoTime();
+                    }
+                }
+
+                // Wait for the sample's turn, starting over if the controls change in the meantime
+                long due = anchorNanos + (long) ((sample.getTimestamp() - anchorTime) * 1e6 / speed);
+                long remaining = due - System.nanoTime();
+                while (running && remaining > 0 && version == controlVersion) {
+                    LockSupport.parkNanos(this, remaining);
+                    remaining = due - System.nanoTime();
+                }
+                if (version != controlVersion) {
+                    anchorTime  = position;
+                    anchorNanos = System.nanoTime();
+                    continue;
+                }
+
+                history.append(sample);
+                position  = sample.getTimestamp();
+                hasSample = false;
+            }
+        }
+        catch (IOException e) {
+            errorHandler.handleError("Unable to read the recording: " + e.getMessage());
+            finished = true;
+            paused   = true;
+        }
+        finally {
+            reader.close();
+        }
+    }
+
+
+    private void signal(){
+        controlVersion++;
+        LockSupport.unpark(thread);
+    }
+
+
+    boolean isPaused() {
+        return paused;
+    }
+
+    boolean isFinished() {
+        return finished;
+    }
+
+    double getSpeed() {
+        return speed;
+    }
+
+    long getPosition() {
+        return position;
+    }
+
+    long getStartTime() {
+        return reader.getStartTime();
+    }
+
+    long getEndTime() {
+        return reader.getEndTime();
+    }
+
+    SampleHistory getHistory() {
+        return history;
+    }
+}
@@ -0,0 +1,386 @@
+import javax.swing.*;
+import java.awt.*;
+
+/**
+ * Strip chart of the HV voltage and current, drawn from the SampleHistory
+ *
+ * Samples are decimated into one bucket per pixel column, each holding the smallest and largest value that fell in
+ * it, so spikes are never lost and drawing costs the same however many samples the view covers. New samples are
+ * folded into the buckets as they arrive, and only a change of view or width requires going back over the history
+ */
+class StripChart extends JComponent {
+
+    /**
+     * Span of time shown by the chart
+     */
+    enum View {
+        MINUTE("Last minute", 60000),
+        HOUR("Last hour", 3600000),
+        SESSION("Session", 0);          // Everything the history holds, compressed further as it grows
+
+        private final String label;
+        private final long span;        // ms
+
+        View(String label, long span){
+            this.label = label;
+            this.span  = span;
+        }
+
+        String getLabel() {
+            return label;
+        }
+    }
+
+    // Space (px) left around the plot for the labels
+    private final int MARGIN = 4;
+    private final int LABEL_HEIGHT = 14;
+
+    private final Color BACKGROUND_COLOR = Color.WHITE;
+    private final Color GRID_COLOR = new Color(225, 225, 225);
+    private final Color VOLTAGE_COLOR = new Color(0, 90, 200);
+    private final Color SETTING_COLOR = new Color(150, 150, 150);
+    private final Color CURRENT_COLOR = new Color(200, 40, 40);
+
+    private final PollSample sample = new PollSample();
+    private final boolean live;
+
+    // Only touched on the event dispatch thread
+    private SampleHistory history;
+    private View view = View.MINUTE;
+    private int columns = 0;
+    private long bucketDuration;        // ms
+    private long origin;                // ms, start of bucket 0
+    private long lastBucket;            // Bucket shown in the rightmost column
+    private long nextSequence;          // Next sample of the history to fold into the buckets
+
+    private final Series voltage = new Series(VOLTAGE_COLOR);
+    private final Series voltageSetting = new Series(SETTING_COLOR);
+    private final Series current = new Series(CURRENT_COLOR);
+
+
+    /**
+     * Smallest and largest value of one quantity in each bucket. Buckets are stored in a ring, so moving the chart
+     * along doesn't shift anything
+     */
+    private static class Series {
+        final Color color;
+        double[] min = new double[0];
+        double[] max = new double[0];
+
+        Series(Color color){
+            this.color = color;
+        }
+
+        void resize(int columns){
+            min = new double[columns];
+            max = new double[columns];
+            for (int i = 0; i < columns; i++) clear(i);
+        }
+
+        void clear(int index){
+            min[index] = Double.POSITIVE_INFINITY;
+            max[index] = Double.NEGATIVE_INFINITY;
+        }
+
+        void add(int index, double value){
+            if (value < min[index]) min[index] = value;
+            if (value > max[index]) max[index] = value;
+        }
+
+        boolean isEmpty(int index){
+            return min[index] > max[index];
+        }
+
+        /**
+         * Merge every pair of buckets into one, packing the results into the first half
+         */
+        void halve(){
+            int columns = min.length;
+            int halved  = (columns + 1) / 2;
+            for (int i = 0; i < halved; i++) {
+                double low  = min[2 * i];
+                double high = max[2 * i];
+                if (2 * i + 1 < columns) {
+                    low  = Math.min(low, min[2 * i + 1]);
+                    high = Math.max(high, max[2 * i + 1]);
+                }
+                min[i] = low;
+                max[i] = high;
+            }
+            for (int i = halved; i < columns; i++) clear(i);
+        }
+    }
+
+
+    /**
+     * Basic constructor
+     * @param history History to draw the samples from
+     * @param live Whether the history is being recorded now. Otherwise it's a replay, and the chart follows the
+     *             time of the latest sample rather than the clock
+     */
+    StripChart(SampleHistory history, boolean live){
+        this.history = history;
+        this.live    = live;
+        setPreferredSize(new Dimension(4, 160));
+    }
+
+
+    /**
+     * Start drawing from a different history
+     * @param history History to draw the samples from
+     */
+    void setHistory(SampleHistory history){
+        this.history = history;
+        rebuild();
+        repaint();
+    }
+
+
+    /**
+     * Change the span of time shown
+     * @param view Span to show
+     */
+    void setView(View view){
+        this.view = view;
+        rebuild();
+        repaint();
+    }
+
+
+    View getView() {
+        return view;
+    }
+
+
+    /**
+     * Bring the chart up to date with the history. Only the samples added since the last update are looked at.
+     * Must be called on the event dispatch thread
+     */
+    void update(){
+        if (getPlotWidth() != columns) rebuild();
+        if (columns == 0) return;
+
+        boolean changed = advanceTo(getNow());
+
+        long end = history.getWriteCount();
+        if (nextSequence < history.getFirstSequence()) nextSequence = history.getFirstSequence();
+
+        while (nextSequence < end) {
+            if (history.read(nextSequence, sample)) {
+                addSample(sample);
+                changed = true;
+            }
+            nextSequence++;
+        }
+
+        if (changed) repaint();
+    }
+
+
+    /**
+     * Start the buckets over for the current view and width, and fill them from the history
+     */
+    private void rebuild(){
+        columns = getPlotWidth();
+        voltage.resize(columns);
+        voltageSetting.resize(columns);
+        current.resize(columns);
+        if (columns == 0) return;
+
+        long now = getNow();
+
+        if (view == View.SESSION) {
+            // Start at the oldest sample and let the buckets grow from the resolution of the shortest view
+            long first = history.getFirstSequence();
+            long firstTime = history.getTimestamp(first);
+            origin = (firstTime == Long.MIN_VALUE) ? now : firstTime;
+            bucketDuration = Math.max(1, View.MINUTE.span / columns);
+            lastBucket = columns - 1;
+            nextSequence = first;
+        } else {
+            // Align the buckets with the epoch so that they don't depend on when the view was chosen
+            origin = 0;
+            bucketDuration = Math.max(1, (view.span + columns - 1) / columns);
+            lastBucket = getBucket(now);
+            nextSequence = history.findSequence(now - view.span);
+        }
+
+        advanceTo(now);
+    }
+
+
+    /**
+     * Move the chart along so that a given time is on screen
+     * @param timestamp Time (ms) that needs to be shown
+     * @return true if anything changed
+     */
+    private boolean advanceTo(long timestamp){
+        if (view == View.SESSION) {
+            // The session view never scrolls, the buckets get wider instead
+            boolean changed = false;
+            while (getBucket(timestamp) >= columns) {
+                voltage.halve();
+                voltageSetting.halve();
+                current.halve();
+                bucketDuration *= 2;
+                changed = true;
+            }
+            return changed;
+        }
+
+        long bucket = getBucket(timestamp);
+        if (bucket <= lastBucket) return false;
+
+        // Clear the columns that are scrolling in
+        long first = Math.max(lastBucket + 1, bucket - columns + 1);
+        for (long b = first; b <= bucket; b++) {
+            int index = getIndex(b);
+            voltage.clear(index);
+            voltageSetting.clear(index);
+            current.clear(index);
+        }
+
+        lastBucket = bucket;
+        return true;
+    }
+
+
+    /**
+     * Fold a sample into the bucket it belongs to
+     * @param sample Sample to add
+     */
+    private void addSample(PollSample sample){
+        advanceTo(sample.getTimestamp());
+
+        // Samples that have scrolled off are dropped
+        long bucket = getBucket(sample.getTimestamp());
+        if (bucket > lastBucket || bucket <= lastBucket - columns || bucket < 0) return;
+
+        int index = getIndex(bucket);
+        voltage.add(index, sample.getVoltageReading());
+        voltageSetting.add(index, sample.getVoltageSetting());
+        current.add(index, sample.getCurrentReading());
+    }
+
+
+    @Override
+    protected void paintComponent(Graphics g) {
+        Graphics2D g2 = (Graphics2D) g.create();
+        int width  = getWidth();
+        int height = getHeight();
+
+        g2.setColor(BACKGROUND_COLOR);
+        g2.fillRect(0, 0, width, height);
+
+        int top    = MARGIN + LABEL_HEIGHT;
+        int bottom = height - MARGIN - LABEL_HEIGHT;
+        int plotHeight = Math.max(1, bottom - top);
+
+        // Grid at every quarter of full scale
+        g2.setColor(GRID_COLOR);
+        for (int i = 0; i <= 4; i++) {
+            int y = top + (plotHeight * i) / 4;
+            g2.drawLine(MARGIN, y, MARGIN + columns, y);
+        }
+
+        // Labels
+        FontMetrics metrics = g2.getFontMetrics();
+        double maxVoltage = Configuration.getMaxAllowablePowerSupplyVoltage();
+        double maxCurrent = Constants.getPowerSupplyMaxCurrent();
+
+        g2.setColor(VOLTAGE_COLOR);
+        g2.drawString(String.format("%.0f kV", -maxVoltage), MARGIN, MARGIN + metrics.getAscent());
+        g2.setColor(CURRENT_COLOR);
+        String currentLabel = String.format("%.2f mA", maxCurrent);
+        g2.drawString(currentLabel, width - MARGIN - metrics.stringWidth(currentLabel), MARGIN + metrics.getAscent());
+        g2.setColor(Color.GRAY);
+        g2.drawString(getSpanLabel(), MARGIN, height - MARGIN - metrics.getDescent());
+
+        // Traces, with the setting underneath the readings
+        paintSeries(g2, voltageSetting, maxVoltage, top, plotHeight);
+        paintSeries(g2, voltage, maxVoltage, top, plotHeight);
+        paintSeries(g2, current, maxCurrent, top, plotHeight);
+
+        g2.dispose();
+    }
+
+
+    /**
+     * Draw one quantity as a vertical line per column, spanning its smallest to largest value. Each line is stretched
+     * to meet the column before it so that the trace is continuous. Columns left empty because samples are further
+     * apart than a column are bridged, but anything longer than a couple of poll periods is left as a gap
+     * @param g2 Graphics to draw with
+     * @param series Quantity to draw
+     * @param fullScale Value at the top of the plot
+     * @param top Position (px) of the top of the plot
+     * @param plotHeight Height (px) of the plot
+     */
+    private void paintSeries(Graphics2D g2, Series series, double fullScale, int top, int plotHeight){
+        g2.setColor(series.color);
+
+        long firstBucket = lastBucket - columns + 1;
+        long maxGap = 2 * Math.max(Configuration.getPollPeriod(), Configuration.getIdlePollPeriod()) / bucketDuration + 1;
+        int previousX = Integer.MIN_VALUE;
+        int previousLow = 0, previousHigh = 0;
+
+        for (int x = 0; x < columns; x++) {
+            long bucket = firstBucket + x;
+            int index = getIndex(bucket);
+            if (bucket < 0 || series.isEmpty(index)) continue;
+
+            // Larger values are higher up, which is a smaller y
+            int low  = getY(series.max[index], fullScale, top, plotHeight);
+            int high = getY(series.min[index], fullScale, top, plotHeight);
+
+            if (x - previousX == 1) {
+                g2.drawLine(MARGIN + x, Math.min(low, previousHigh), MARGIN + x, Math.max(high, previousLow));
+            } else {
+                if (x - previousX <= maxGap) {
+                    g2.drawLine(MARGIN + previousX, (previousLow + previousHigh) / 2, MARGIN + x, (low + high) / 2);
+                }
+                g2.drawLine(MARGIN + x, low, MARGIN + x, high);
+            }
+
+            previousX    = x;
+            previousLow  = low;
+            previousHigh = high;
+        }
+    }
+
+
+    /**
+     * Convenience function for the time at the right edge of the chart
+     * @return Current time (ms), or the time of the latest sample if this is a replay
+     */
+    private long getNow(){
+        if (live) return System.currentTimeMillis();
+
+        long latest = history.getTimestamp(history.getWriteCount() - 1);
+        return (latest == Long.MIN_VALUE) ? 0 : latest;
+    }
+
+
+    private String getSpanLabel(){
+        if (view != View.SESSION) return view.getLabel();
+
+        long minutes = (bucketDuration * columns) / 60000;
+        return String.format("%s (%d min across)", view.getLabel(), minutes);
+    }
+
+    private int getY(double value, double fullScale, int top, int plotHeight){
+        double fraction = Math.max(0, Math.min(1, value / fullScale));
+        return top + (int) Math.round((1 - fraction) * (plotHeight - 1));
+    }
+
+    private long getBucket(long timestamp){
+        return Math.floorDiv(timestamp - origin, bucketDuration);
+    }
+
+    private int getIndex(long bucket){
+        return (int) Math.floorMod(bucket, (long) columns);
+    }
+
+    private int getPlotWidth(){
+        return Math.max(0, getWidth() - 2 * MARGIN);
+    }
+}
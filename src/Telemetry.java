@@ -0,0 +1,110 @@
+/**
+ * Immutable snapshot of everything the display needs from a single cycle of the main loop
+ */
+final class Telemetry {
+
+    private final long timestamp;
+    private final boolean locked;
+
+    private final String statusMessage;
+    private final boolean statusError;
+
+    private final double voltageReading;       // kV
+    private final double currentReading;       // mA
+    private final double ldCurrentSetting;     // mA
+
+    private final int pollPeriod;              // ms
+    private final double averagePollPeriod;    // ms
+    private final double averagePollJitter;    // ms
+    private final long overrunCount;
+    private final long missedPollCount;
+    private final PollRatePolicy.Mode pollMode;
+
+
+    /**
+     * Basic constructor
+     * @param timestamp Wall clock time (ms) of the cycle
+     * @param locked Whether the system is locked because of an error
+     * @param statusMessage Message for the status bar
+     * @param statusError Whether the status message describes an error
+     * @param voltageReading HVPS voltage (kV) that was read
+     * @param currentReading HVPS current (mA) that was read
+     * @param ldCurrentSetting Laser diode current (mA) that is being requested
+     * @param scheduler Scheduler running the main loop, used for its timing statistics
+     * @param pollMode Why the main loop is running at its current period
+     */
+    Telemetry(long timestamp, boolean locked, String statusMessage, boolean statusError,
+              double voltageReading, double currentReading, double ldCurrentSetting, ControlScheduler scheduler,
+              PollRatePolicy.Mode pollMode){
+
+        this.timestamp = timestamp;
+        this.locked    = locked;
+
+        this.statusMessage = statusMessage;
+        this.statusError   = statusError;
+
+        this.voltageReading   = voltageReading;
+        this.currentReading   = currentReading;
+        this.ldCurrentSetting = ldCurrentSetting;
+
+        this.pollPeriod        = scheduler.getPeriod();
+        this.averagePollPeriod = scheduler.getAveragePeriod();
+        this.averagePollJitter = scheduler.getAverageJitter();
+        this.overrunCount      = scheduler.getOverrunCount();
+        this.missedPollCount   = scheduler.getMissedTickCount();
+        this.pollMode          = pollMode;
+    }
+
+
+    long getTimestamp() {
+        return timestamp;
+    }
+
+    boolean isLocked() {
+        return locked;
+    }
+
+    String getStatusMessage() {
+        return statusMessage;
+    }
+
+    boolean isStatusError() {
+        return statusError;
+    }
+
+    double getVoltageReading() {
+        return voltageReading;
+    }
+
+    double getCurrentReading() {
+        return currentReading;
+    }
+
+    double getLdCurrentSetting() {
+        return ldCurrentSetting;
+    }
+
+    int getPollPeriod() {
+        return pollPeriod;
+    }
+
+    double getAveragePollPeriod() {
+        return averagePollPeriod;
+    }
+
+    double getAveragePollJitter() {
+        return averagePollJitter;
+    }
+
+    long getOverrunCount() {
+        return overrunCount;
+    }
+
+    long getMissedPollCount() {
+        return missedPollCount;
+    }
+
+    PollRatePolicy.Mode getPollMode() {
+        return pollMode;
+    }
+}
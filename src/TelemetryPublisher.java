@@ -0,0 +1,91 @@
+import javax.swing.*;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Hands the most recent telemetry from the main loop to the Swing event dispatch thread. At most one update is
+ * queued at a time and updates are limited to one per display frame, so anything published in between is dropped
+ */
+class TelemetryPublisher {
+
+    /**
+     * Receiver of the telemetry, always called on the event dispatch thread
+     */
+    interface Display {
+        void showTelemetry(Telemetry telemetry);
+    }
+
+    private final Display display;
+    private final int framePeriod;
+
+    private final AtomicReference<Telemetry> latest = new AtomicReference<>();
+    private final AtomicBoolean isQueued = new AtomicBoolean(false);
+
+    // Only touched on the event dispatch thread
+    private final Timer frameTimer;
+    private long lastFrameTime = 0;
+
+    private final Runnable drain = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+
+    /**
+     * Basic constructor
+     * @param display Receiver of the telemetry
+     * @param framePeriod Minimum time (ms) between updates of the display
+     */
+    TelemetryPublisher(Display display, int framePeriod){
+        this.display = display;
+        this.framePeriod = framePeriod;
+
+        frameTimer = new Timer(framePeriod, new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                drain();
+            }
+        });
+        frameTimer.setRepeats(false);
+    }
+
+
+    /**
+     * Publish new telemetry, replacing anything that hasn't been displayed yet. Safe to call from any thread
+     * @param telemetry Telemetry to display
+     */
+    void publish(Telemetry telemetry){
+        latest.set(telemetry);
+
+        // Only queue an update if there isn't one already on its way
+        if (isQueued.compareAndSet(false, true)) {
+            SwingUtilities.invokeLater(drain);
+        }
+    }
+
+
+    /**
+     * Show the latest telemetry, or wait for the next frame if the last one was too recent
+     */
+    private void drain(){
+        long now = System.currentTimeMillis();
+        long wait = lastFrameTime + framePeriod - now;
+
+        if (wait > 0) {
+            frameTimer.setInitialDelay((int) wait);
+            frameTimer.restart();
+            return;
+        }
+
+        // Clear the flag before taking the value so that anything published from here on queues a new update
+        isQueued.set(false);
+        lastFrameTime = now;
+
+        Telemetry telemetry = latest.getAndSet(null);
+        if (telemetry != null) display.showTelemetry(telemetry);
+    }
+}